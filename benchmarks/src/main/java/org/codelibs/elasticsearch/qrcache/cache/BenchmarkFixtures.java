@@ -0,0 +1,162 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.codelibs.elasticsearch.qrcache.QueryResultCachePlugin;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.metrics.max.InternalMax;
+import org.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.AliasFilter;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Builds the cache, its node services and realistic search payloads outside
+ * a node. The cluster state holds one cached index with {@link #SHARDS}
+ * shards and never changes.
+ */
+final class BenchmarkFixtures {
+
+    static final String INDEX = "logs";
+
+    static final int SHARDS = 5;
+
+    static final NamedWriteableRegistry REGISTRY =
+            new NamedWriteableRegistry(new SearchModule(Settings.EMPTY, false, emptyList()).getNamedWriteables());
+
+    private static final long NOW = 1550000000000L;
+
+    private BenchmarkFixtures() {
+    }
+
+    static ThreadPool threadPool() {
+        return new ThreadPool(Settings.builder().put("node.name", "benchmark").build());
+    }
+
+    static QueryResultCache cache(final Settings settings, final ThreadPool threadPool) {
+        final Set<Setting<?>> settingSet = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        for (final Setting<?> setting : new QueryResultCachePlugin(settings).getSettings()) {
+            if (setting.hasNodeScope()) {
+                settingSet.add(setting);
+            }
+        }
+        final ClusterState state = ClusterState.builder(ClusterName.DEFAULT).metaData(MetaData.builder()
+                .put(IndexMetaData.builder(INDEX)
+                        .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                                .put(IndexMetaData.SETTING_INDEX_UUID, "_na_")
+                                .put(QueryResultCache.INDEX_ENABLED_SETTING.getKey(), true))
+                        .numberOfShards(SHARDS).numberOfReplicas(0))
+                .build()).build();
+        final ClusterService clusterService =
+                new ClusterService(settings, new ClusterSettings(settings, settingSet), threadPool, emptyMap()) {
+                    @Override
+                    public ClusterState state() {
+                        return state;
+                    }
+                };
+        return new QueryResultCache(settings, null, clusterService, threadPool, null, REGISTRY);
+    }
+
+    static ShardId shardId(final int shard) {
+        return new ShardId(new Index(INDEX, "_na_"), shard);
+    }
+
+    /**
+     * A search of a kind seen in log analytics, with i varying the terms.
+     */
+    static SearchSourceBuilder source(final String kind, final int i) {
+        switch (kind) {
+        case "term":
+            return new SearchSourceBuilder().query(QueryBuilders.termQuery("user.id", "user-" + i)).size(10);
+        case "filtered":
+            return new SearchSourceBuilder()
+                    .query(QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("message", "connection timeout " + i))
+                            .filter(QueryBuilders.termQuery("service", "checkout"))
+                            .filter(QueryBuilders.termsQuery("level", "ERROR", "WARN"))
+                            .filter(QueryBuilders.rangeQuery("@timestamp").gte("now-15m/m").lte("now/m")))
+                    .sort("@timestamp", SortOrder.DESC).size(20);
+        case "aggs":
+            return new SearchSourceBuilder()
+                    .query(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("service", "service-" + i))
+                            .filter(QueryBuilders.rangeQuery("@timestamp").gte("now-24h/h").lte("now/h")))
+                    .aggregation(AggregationBuilders.dateHistogram("per_hour").field("@timestamp")
+                            .dateHistogramInterval(DateHistogramInterval.HOUR)
+                            .subAggregation(AggregationBuilders.percentiles("latency").field("response_time")))
+                    .aggregation(AggregationBuilders.terms("hosts").field("host").size(50)
+                            .subAggregation(AggregationBuilders.max("max_bytes").field("bytes"))
+                            .subAggregation(AggregationBuilders.sum("total_bytes").field("bytes")))
+                    .size(0);
+        default:
+            throw new IllegalArgumentException("Unknown payload: " + kind);
+        }
+    }
+
+    static ShardSearchTransportRequest request(final SearchSourceBuilder source, final int shard) {
+        final SearchRequest searchRequest = new SearchRequest(INDEX).source(source).allowPartialSearchResults(true);
+        return new ShardSearchTransportRequest(new OriginalIndices(new String[] { INDEX }, IndicesOptions.strictExpandOpen()),
+                searchRequest, shardId(shard), SHARDS, new AliasFilter(null, new String[0]), 1.0f, NOW, null, null);
+    }
+
+    /**
+     * A shard response: ten hits and, for a positive number of buckets, a
+     * terms aggregation with a max and a sum per bucket.
+     */
+    static QuerySearchResult result(final int numBuckets, final int shard) {
+        final ScoreDoc[] scoreDocs = new ScoreDoc[10];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            scoreDocs[i] = new ScoreDoc(i, 10 - i);
+        }
+        final QuerySearchResult result = new QuerySearchResult(1, new SearchShardTarget("node", shardId(shard).getIndex(), shard, null));
+        result.from(0);
+        result.size(scoreDocs.length);
+        result.topDocs(new TopDocs(1000 + numBuckets, scoreDocs, 10), null);
+        if (numBuckets > 0) {
+            final List<LongTerms.Bucket> buckets = new ArrayList<>(numBuckets);
+            for (int i = 0; i < numBuckets; i++) {
+                final List<InternalAggregation> subAggs = Arrays.asList(
+                        new InternalMax("max_bytes", i * 1.5, DocValueFormat.RAW, emptyList(), emptyMap()),
+                        new InternalSum("total_bytes", i * 10.0, DocValueFormat.RAW, emptyList(), emptyMap()));
+                buckets.add(new LongTerms.Bucket(i, numBuckets - i, new InternalAggregations(subAggs), false, 0, DocValueFormat.RAW));
+            }
+            result.aggregations(new InternalAggregations(Arrays.asList(new LongTerms("hosts", BucketOrder.count(false), numBuckets,
+                    1, emptyList(), emptyMap(), DocValueFormat.RAW, numBuckets, false, 0, buckets, 0))));
+        }
+        return result;
+    }
+}
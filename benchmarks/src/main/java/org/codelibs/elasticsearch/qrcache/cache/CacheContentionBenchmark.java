@@ -0,0 +1,139 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hits and puts on the cache of each policy from several threads, with keys
+ * drawn from a Zipf distribution over four times as many responses as fit.
+ * getOrPut is the cache-aside pattern of the search threads; the mixed group
+ * runs dedicated readers and writers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheContentionBenchmark {
+
+    private static final int KEYS = 1 << 16;
+
+    private static final int SAMPLES = 1 << 20;
+
+    private static final int VALUE_SIZE = 1024;
+
+    @Param({ QueryResultCache.POLICY_LRU, QueryResultCache.POLICY_TINYLFU, QueryResultCache.POLICY_GDS })
+    public String policy;
+
+    @Param({ "0.99" })
+    public double skew;
+
+    private ThreadPool threadPool;
+
+    private QueryResultCache cache;
+
+    private final Key[] keys = new Key[KEYS];
+
+    private final CacheValue[] values = new CacheValue[KEYS];
+
+    private final int[] samples = new int[SAMPLES];
+
+    @Setup
+    public void setup() throws IOException {
+        threadPool = BenchmarkFixtures.threadPool();
+        // about a quarter of the responses fit
+        final long maxSize = (long) KEYS * (VALUE_SIZE + 200) / 4;
+        cache = BenchmarkFixtures.cache(Settings.builder().put(QueryResultCache.MAX_SIZE_SETTING.getKey(), maxSize + "b")
+                .put(QueryResultCache.POLICY_SETTING.getKey(), policy).build(), threadPool);
+        final KeyBuilder keyBuilder = new KeyBuilder(KeyBuilder.FULL);
+        final BytesArray bytes = new BytesArray(new byte[VALUE_SIZE]);
+        final Random random = new Random(0);
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = keyBuilder.build(BenchmarkFixtures.request(BenchmarkFixtures.source("term", i), i % BenchmarkFixtures.SHARDS));
+            values[i] = new CacheValue(bytes, 0);
+            // from a cheap term query up to a heavy aggregation
+            values[i].costNanos(TimeUnit.MICROSECONDS.toNanos(100 + random.nextInt(50000)));
+        }
+
+        final double[] cdf = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            final int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            // spread the hot ranks over the key space
+            samples[i] = (int) (((rank < 0 ? -rank - 1 : rank) * 0x9E3779B1L) & (KEYS - 1));
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            cache.cache.put(keys[samples[i]], values[samples[i]]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next = ThreadLocalRandom.current().nextInt(SAMPLES);
+
+        int next() {
+            return next++ & (SAMPLES - 1);
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public CacheValue getOrPut(final Cursor cursor) {
+        final int i = samples[cursor.next()];
+        final CacheValue value = cache.cache.getIfPresent(keys[i]);
+        if (value == null) {
+            cache.cache.put(keys[i], values[i]);
+        }
+        return value;
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public CacheValue get(final Cursor cursor) {
+        return cache.cache.getIfPresent(keys[samples[cursor.next()]]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void put(final Cursor cursor) {
+        final int i = samples[cursor.next()];
+        cache.cache.put(keys[i], values[i]);
+    }
+}
@@ -0,0 +1,61 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the key of a shard query request: serializing the source into the
+ * per-thread buffer, hashing it and, for full keys, copying the bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyBuilderBenchmark {
+
+    private static final int REQUESTS = 64;
+
+    @Param({ KeyBuilder.FULL, KeyBuilder.COMPACT })
+    public String mode;
+
+    @Param({ "false", "true" })
+    public boolean normalize;
+
+    @Param({ "term", "filtered", "aggs" })
+    public String payload;
+
+    private KeyBuilder keyBuilder;
+
+    private final ShardSearchTransportRequest[] requests = new ShardSearchTransportRequest[REQUESTS];
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        keyBuilder = new KeyBuilder(mode, normalize);
+        for (int i = 0; i < REQUESTS; i++) {
+            requests[i] = BenchmarkFixtures.request(BenchmarkFixtures.source(payload, i), i % BenchmarkFixtures.SHARDS);
+        }
+    }
+
+    @Benchmark
+    public Key build() throws IOException {
+        return keyBuilder.build(requests[next++ & (REQUESTS - 1)]);
+    }
+}
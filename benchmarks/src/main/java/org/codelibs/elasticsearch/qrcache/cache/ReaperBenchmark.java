@@ -0,0 +1,71 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of the reaper over a full cache with an expiry that none of the
+ * entries has reached, which is what every clean interval costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class ReaperBenchmark {
+
+    @Param({ QueryResultCache.POLICY_LRU, QueryResultCache.POLICY_TINYLFU, QueryResultCache.POLICY_GDS })
+    public String policy;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int entries;
+
+    private ThreadPool threadPool;
+
+    private QueryResultCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        threadPool = BenchmarkFixtures.threadPool();
+        cache = BenchmarkFixtures.cache(Settings.builder().put(QueryResultCache.MAX_SIZE_SETTING.getKey(), "2gb")
+                .put(QueryResultCache.EXPIRE_SETTING.getKey(), "1h").put(QueryResultCache.CLEAN_INTERVAL_SETTING.getKey(), "1h")
+                .put(QueryResultCache.POLICY_SETTING.getKey(), policy).build(), threadPool);
+        final KeyBuilder keyBuilder = new KeyBuilder(KeyBuilder.COMPACT);
+        final BytesArray bytes = new BytesArray(new byte[256]);
+        for (int i = 0; i < entries; i++) {
+            cache.cache.put(keyBuilder.build(BenchmarkFixtures.request(BenchmarkFixtures.source("term", i), i % BenchmarkFixtures.SHARDS)),
+                    new CacheValue(bytes, 0));
+        }
+        if (cache.cache.size() != entries) {
+            throw new IllegalStateException("Expected " + entries + " entries, but got " + cache.cache.size());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public void reap() {
+        cache.reap();
+    }
+}
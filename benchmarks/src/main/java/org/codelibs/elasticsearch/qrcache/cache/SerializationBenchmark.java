@@ -0,0 +1,84 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchPhaseResult;
+import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stores a shard query response the way a miss does, serializing it and
+ * putting it in the cache, and reads it back: readFromCache deserializes the
+ * stored bytes, hit also looks the key up and decompresses them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({ "0", "50", "500" })
+    public int buckets;
+
+    @Param({ "false", "true" })
+    public boolean compress;
+
+    private ThreadPool threadPool;
+
+    private QueryResultCache cache;
+
+    private Key key;
+
+    private QuerySearchResult result;
+
+    private BytesReference bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        threadPool = BenchmarkFixtures.threadPool();
+        cache = BenchmarkFixtures.cache(Settings.builder().put(QueryResultCache.MAX_SIZE_SETTING.getKey(), "64mb")
+                .put(QueryResultCache.COMPRESS_ENABLED_SETTING.getKey(), compress).build(), threadPool);
+        key = new KeyBuilder(KeyBuilder.FULL).build(BenchmarkFixtures.request(BenchmarkFixtures.source("aggs", 0), 0));
+        result = BenchmarkFixtures.result(buckets, 0);
+        bytes = cache.onCache(key, 0, result, false, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public BytesReference onCache() throws IOException {
+        return cache.onCache(key, 0, result, false, TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Benchmark
+    public SearchPhaseResult readFromCache() throws IOException {
+        return cache.readFromCache(bytes, false, 1);
+    }
+
+    @Benchmark
+    public SearchPhaseResult hit() throws IOException {
+        return cache.read(cache.cache.getIfPresent(key), false, 1);
+    }
+}
@@ -1,19 +1,35 @@
 package org.codelibs.elasticsearch.qrcache;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Supplier;
 
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsAction;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheAction;
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsAction;
+import org.codelibs.elasticsearch.qrcache.action.TransportCacheStatsAction;
+import org.codelibs.elasticsearch.qrcache.action.TransportClearCacheAction;
+import org.codelibs.elasticsearch.qrcache.action.TransportInvalidateShardsAction;
 import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.codelibs.elasticsearch.qrcache.cache.SearchContextReleaser;
+import org.codelibs.elasticsearch.qrcache.filter.QrcActionFilter;
+import org.codelibs.elasticsearch.qrcache.index.ShardRefreshWatcher;
 import org.codelibs.elasticsearch.qrcache.rest.RestClearQrcAction;
+import org.codelibs.elasticsearch.qrcache.rest.RestMetricsQrcAction;
 import org.codelibs.elasticsearch.qrcache.rest.RestStatsQrcAction;
 import org.codelibs.elasticsearch.qrcache.transport.QrcTransportInterceptor;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.support.ActionFilter;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
@@ -23,6 +39,7 @@ import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.NetworkPlugin;
 import org.elasticsearch.plugins.Plugin;
@@ -39,6 +56,8 @@ public class QueryResultCachePlugin extends Plugin implements ActionPlugin, Netw
 
     private QueryResultCache queryResultCache;
 
+    private ShardRefreshWatcher shardRefreshWatcher;
+
     public QueryResultCachePlugin(Settings settings) {
         this.settings = settings;
     }
@@ -48,7 +67,60 @@ public class QueryResultCachePlugin extends Plugin implements ActionPlugin, Netw
         return Arrays.asList(QueryResultCache.CLEAN_INTERVAL_SETTING, //
                 QueryResultCache.EXPIRE_SETTING, //
                 QueryResultCache.MAX_SIZE_SETTING, //
-                QueryResultCache.INDEX_ENABLED_SETTING);
+                QueryResultCache.KEY_MODE_SETTING, //
+                QueryResultCache.NORMALIZE_KEYS_SETTING, //
+                QueryResultCache.HIT_MODE_SETTING, //
+                QueryResultCache.DECODED_MAX_SIZE_SETTING, //
+                QueryResultCache.POLICY_SETTING, //
+                QueryResultCache.COMPRESS_ENABLED_SETTING, //
+                QueryResultCache.COMPRESS_THRESHOLD_SETTING, //
+                QueryResultCache.COALESCE_ENABLED_SETTING, //
+                QueryResultCache.COALESCE_TIMEOUT_SETTING, //
+                QueryResultCache.WINDOW_SIZE_SETTING, //
+                QueryResultCache.ADMISSION_MIN_COST_SETTING, //
+                QueryResultCache.STALE_SOFT_TTL_SETTING, //
+                QueryResultCache.STALE_HARD_TTL_SETTING, //
+                QueryResultCache.WARMUP_SIZE_SETTING, //
+                QueryResultCache.WARMUP_RATE_SETTING, //
+                QueryResultCache.WARMUP_CONCURRENCY_SETTING, //
+                QueryResultCache.WARMUP_INDEX_INTERVAL_SETTING, //
+                QueryResultCache.STORAGE_SETTING, //
+                QueryResultCache.OFF_HEAP_SIZE_SETTING, //
+                QueryResultCache.METRICS_TOP_KEYS_SETTING, //
+                QueryResultCache.METRICS_SOURCE_LABELS_SETTING, //
+                QueryResultCache.DISK_ENABLED_SETTING, //
+                QueryResultCache.DISK_SIZE_SETTING, //
+                QueryResultCache.DISK_SEGMENT_SIZE_SETTING, //
+                QueryResultCache.SEARCH_RESPONSE_ENABLED_SETTING, //
+                QueryResultCache.SEARCH_RESPONSE_MAX_SIZE_SETTING, //
+                QueryResultCache.PARTITION_ENABLED_SETTING, //
+                QueryResultCache.INDEX_ENABLED_SETTING, //
+                QueryResultCache.INDEX_NOW_ROUNDING_SETTING, //
+                QueryResultCache.INDEX_PARTITION_MIN_SHARE_SETTING, //
+                QueryResultCache.INDEX_PARTITION_MAX_SHARE_SETTING);
+    }
+
+    @Override
+    public void onIndexModule(final IndexModule indexModule) {
+        if (QueryResultCache.INDEX_ENABLED_SETTING.get(indexModule.getSettings())) {
+            indexModule.addIndexEventListener(shardRefreshWatcher);
+            indexModule.addIndexOperationListener(shardRefreshWatcher);
+        }
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(new ActionHandler<>(InvalidateShardsAction.INSTANCE, TransportInvalidateShardsAction.class), //
+                new ActionHandler<>(CacheStatsAction.INSTANCE, TransportCacheStatsAction.class), //
+                new ActionHandler<>(ClearCacheAction.INSTANCE, TransportClearCacheAction.class));
+    }
+
+    @Override
+    public List<ActionFilter> getActionFilters() {
+        if (queryResultCache == null || queryResultCache.searchResponseCache() == null && queryResultCache.warmer() == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(new QrcActionFilter(queryResultCache.searchResponseCache(), queryResultCache.warmer()));
     }
 
     @Override
@@ -60,14 +132,28 @@ public class QueryResultCachePlugin extends Plugin implements ActionPlugin, Netw
     public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter, IndexNameExpressionResolver indexNameExpressionResolver,
             Supplier<DiscoveryNodes> nodesInCluster) {
-        return Arrays.asList(new RestClearQrcAction(settings, restController, queryResultCache), //
-                new RestStatsQrcAction(settings, restController, queryResultCache));
+        return Arrays.asList(new RestClearQrcAction(settings, restController), //
+                new RestStatsQrcAction(settings, restController), //
+                new RestMetricsQrcAction(settings, restController, queryResultCache));
     }
 
     public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
             ResourceWatcherService resourceWatcherService, ScriptService scriptService, NamedXContentRegistry xContentRegistry,
             Environment environment, NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
-        queryResultCache = new QueryResultCache(settings, clusterService, threadPool);
+        queryResultCache = new QueryResultCache(settings, client, clusterService, threadPool, nodeEnvironment, namedWriteableRegistry);
+        shardRefreshWatcher = new ShardRefreshWatcher(client, threadPool);
         return Arrays.asList(queryResultCache);
     }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> getGuiceServiceClasses() {
+        return Collections.singletonList(SearchContextReleaser.class);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (queryResultCache != null) {
+            queryResultCache.close();
+        }
+    }
 }
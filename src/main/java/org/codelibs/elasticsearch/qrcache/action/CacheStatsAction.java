@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class CacheStatsAction extends Action<CacheStatsRequest, CacheStatsResponse, CacheStatsRequestBuilder> {
+
+    public static final CacheStatsAction INSTANCE = new CacheStatsAction();
+
+    public static final String NAME = "cluster:monitor/qrc/stats";
+
+    private CacheStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public CacheStatsRequestBuilder newRequestBuilder(final ElasticsearchClient client) {
+        return new CacheStatsRequestBuilder(client, this);
+    }
+
+    @Override
+    public CacheStatsResponse newResponse() {
+        return new CacheStatsResponse();
+    }
+}
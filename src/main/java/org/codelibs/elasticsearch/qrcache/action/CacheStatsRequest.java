@@ -0,0 +1,10 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+public class CacheStatsRequest extends BaseNodesRequest<CacheStatsRequest> {
+
+    public CacheStatsRequest(final String... nodesIds) {
+        super(nodesIds);
+    }
+}
@@ -0,0 +1,11 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class CacheStatsRequestBuilder extends NodesOperationRequestBuilder<CacheStatsRequest, CacheStatsResponse, CacheStatsRequestBuilder> {
+
+    public CacheStatsRequestBuilder(final ElasticsearchClient client, final CacheStatsAction action) {
+        super(client, action, new CacheStatsRequest());
+    }
+}
@@ -0,0 +1,167 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCacheStats;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Cache statistics of each node. Shard statistics are summed over the nodes
+ * that cached responses of the shard, and index statistics over its shards.
+ */
+public class CacheStatsResponse extends BaseNodesResponse<CacheStatsResponse.NodeResponse> implements ToXContentFragment {
+
+    CacheStatsResponse() {
+    }
+
+    public CacheStatsResponse(final ClusterName clusterName, final List<NodeResponse> nodes, final List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+        return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(final StreamOutput out, final List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    public QueryResultCacheStats getTotal() {
+        final QueryResultCacheStats total = new QueryResultCacheStats();
+        for (final NodeResponse node : getNodes()) {
+            total.add(node.getStats());
+        }
+        return total;
+    }
+
+    public Map<String, Map<Integer, QueryResultCacheStats>> getShards() {
+        final Map<String, Map<Integer, QueryResultCacheStats>> indices = new TreeMap<>();
+        for (final NodeResponse node : getNodes()) {
+            for (final Map.Entry<ShardId, QueryResultCacheStats> entry : node.getShards().entrySet()) {
+                final ShardId shardId = entry.getKey();
+                final QueryResultCacheStats stats = indices.computeIfAbsent(shardId.getIndexName(), k -> new TreeMap<>())
+                        .computeIfAbsent(shardId.id(), k -> new QueryResultCacheStats());
+                stats.add(entry.getValue());
+            }
+        }
+        return indices;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject("_all");
+        getTotal().toXContent(builder, params);
+        builder.endObject();
+
+        builder.startObject("indices");
+        for (final Map.Entry<String, Map<Integer, QueryResultCacheStats>> index : getShards().entrySet()) {
+            builder.startObject(index.getKey());
+            final QueryResultCacheStats indexStats = new QueryResultCacheStats();
+            for (final QueryResultCacheStats shardStats : index.getValue().values()) {
+                indexStats.add(shardStats);
+            }
+            indexStats.toXContent(builder, params);
+            builder.startObject("shards");
+            for (final Map.Entry<Integer, QueryResultCacheStats> shard : index.getValue().entrySet()) {
+                builder.startObject(shard.getKey().toString());
+                shard.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+
+        builder.startObject("nodes");
+        for (final NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            node.getStats().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+
+        if (hasFailures()) {
+            builder.startArray("failures");
+            for (final FailedNodeException failure : failures()) {
+                builder.startObject();
+                failure.toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endArray();
+        }
+        return builder;
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private QueryResultCacheStats stats;
+
+        private Map<ShardId, QueryResultCacheStats> shards;
+
+        NodeResponse() {
+        }
+
+        public NodeResponse(final DiscoveryNode node, final QueryResultCacheStats stats, final Map<ShardId, QueryResultCacheStats> shards) {
+            super(node);
+            this.stats = stats;
+            this.shards = shards;
+        }
+
+        public QueryResultCacheStats getStats() {
+            return stats;
+        }
+
+        public Map<ShardId, QueryResultCacheStats> getShards() {
+            return Collections.unmodifiableMap(shards);
+        }
+
+        static NodeResponse readNodeResponse(final StreamInput in) throws IOException {
+            final NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            stats = new QueryResultCacheStats();
+            stats.readFrom(in);
+            final int size = in.readVInt();
+            shards = new HashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                final ShardId shardId = ShardId.readShardId(in);
+                final QueryResultCacheStats shardStats = new QueryResultCacheStats();
+                shardStats.readFrom(in);
+                shards.put(shardId, shardStats);
+            }
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            stats.writeTo(out);
+            out.writeVInt(shards.size());
+            for (final Map.Entry<ShardId, QueryResultCacheStats> entry : shards.entrySet()) {
+                entry.getKey().writeTo(out);
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class ClearCacheAction extends Action<ClearCacheRequest, ClearCacheResponse, ClearCacheRequestBuilder> {
+
+    public static final ClearCacheAction INSTANCE = new ClearCacheAction();
+
+    public static final String NAME = "cluster:admin/qrc/clear";
+
+    private ClearCacheAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ClearCacheRequestBuilder newRequestBuilder(final ElasticsearchClient client) {
+        return new ClearCacheRequestBuilder(client, this);
+    }
+
+    @Override
+    public ClearCacheResponse newResponse() {
+        return new ClearCacheResponse();
+    }
+}
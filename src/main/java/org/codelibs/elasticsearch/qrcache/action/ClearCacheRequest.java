@@ -0,0 +1,41 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+public class ClearCacheRequest extends BaseNodesRequest<ClearCacheRequest> {
+
+    private String[] indices = Strings.EMPTY_ARRAY;
+
+    public ClearCacheRequest() {
+    }
+
+    public ClearCacheRequest(final String... indices) {
+        this.indices = indices;
+    }
+
+    public String[] indices() {
+        return indices;
+    }
+
+    public ClearCacheRequest indices(final String... indices) {
+        this.indices = indices;
+        return this;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        indices = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringArray(indices);
+    }
+}
@@ -0,0 +1,16 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class ClearCacheRequestBuilder extends NodesOperationRequestBuilder<ClearCacheRequest, ClearCacheResponse, ClearCacheRequestBuilder> {
+
+    public ClearCacheRequestBuilder(final ElasticsearchClient client, final ClearCacheAction action) {
+        super(client, action, new ClearCacheRequest());
+    }
+
+    public ClearCacheRequestBuilder setIndices(final String... indices) {
+        request.indices(indices);
+        return this;
+    }
+}
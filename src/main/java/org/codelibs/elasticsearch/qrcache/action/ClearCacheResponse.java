@@ -0,0 +1,101 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+public class ClearCacheResponse extends BaseNodesResponse<ClearCacheResponse.NodeResponse> implements ToXContentFragment {
+
+    ClearCacheResponse() {
+    }
+
+    public ClearCacheResponse(final ClusterName clusterName, final List<NodeResponse> nodes, final List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+        return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(final StreamOutput out, final List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    public long getRemoved() {
+        long removed = 0;
+        for (final NodeResponse node : getNodes()) {
+            removed += node.getRemoved();
+        }
+        return removed;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.field("acknowledged", !hasFailures());
+        builder.field("removed", getRemoved());
+        builder.startObject("nodes");
+        for (final NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            builder.field("acknowledged", true);
+            builder.field("removed", node.getRemoved());
+            builder.endObject();
+        }
+        for (final FailedNodeException failure : failures()) {
+            builder.startObject(failure.nodeId());
+            builder.field("acknowledged", false);
+            builder.startObject("error");
+            failure.toXContent(builder, params);
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private long removed;
+
+        NodeResponse() {
+        }
+
+        public NodeResponse(final DiscoveryNode node, final long removed) {
+            super(node);
+            this.removed = removed;
+        }
+
+        public long getRemoved() {
+            return removed;
+        }
+
+        static NodeResponse readNodeResponse(final StreamInput in) throws IOException {
+            final NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            removed = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLong(removed);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class InvalidateShardsAction extends Action<InvalidateShardsRequest, InvalidateShardsResponse, InvalidateShardsRequestBuilder> {
+
+    public static final InvalidateShardsAction INSTANCE = new InvalidateShardsAction();
+
+    public static final String NAME = "cluster:admin/qrc/invalidate_shards";
+
+    private InvalidateShardsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public InvalidateShardsRequestBuilder newRequestBuilder(final ElasticsearchClient client) {
+        return new InvalidateShardsRequestBuilder(client, this);
+    }
+
+    @Override
+    public InvalidateShardsResponse newResponse() {
+        return new InvalidateShardsResponse();
+    }
+}
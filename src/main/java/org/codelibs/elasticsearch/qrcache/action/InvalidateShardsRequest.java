@@ -0,0 +1,39 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+public class InvalidateShardsRequest extends BaseNodesRequest<InvalidateShardsRequest> {
+
+    private List<ShardId> shardIds = new ArrayList<>();
+
+    public InvalidateShardsRequest() {
+    }
+
+    public InvalidateShardsRequest(final Collection<ShardId> shardIds) {
+        this.shardIds = new ArrayList<>(shardIds);
+    }
+
+    public List<ShardId> shardIds() {
+        return shardIds;
+    }
+
+    @Override
+    public void readFrom(final StreamInput in) throws IOException {
+        super.readFrom(in);
+        shardIds = in.readList(ShardId::readShardId);
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStreamableList(shardIds);
+    }
+}
@@ -0,0 +1,12 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class InvalidateShardsRequestBuilder
+        extends NodesOperationRequestBuilder<InvalidateShardsRequest, InvalidateShardsResponse, InvalidateShardsRequestBuilder> {
+
+    public InvalidateShardsRequestBuilder(final ElasticsearchClient client, final InvalidateShardsAction action) {
+        super(client, action, new InvalidateShardsRequest());
+    }
+}
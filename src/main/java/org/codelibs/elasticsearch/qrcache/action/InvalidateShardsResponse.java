@@ -0,0 +1,48 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+public class InvalidateShardsResponse extends BaseNodesResponse<InvalidateShardsResponse.NodeResponse> {
+
+    InvalidateShardsResponse() {
+    }
+
+    public InvalidateShardsResponse(final ClusterName clusterName, final List<NodeResponse> nodes, final List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+        return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(final StreamOutput out, final List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+
+        NodeResponse() {
+        }
+
+        public NodeResponse(final DiscoveryNode node) {
+            super(node);
+        }
+
+        static NodeResponse readNodeResponse(final StreamInput in) throws IOException {
+            final NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+    }
+}
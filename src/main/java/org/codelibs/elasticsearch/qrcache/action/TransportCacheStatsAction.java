@@ -0,0 +1,80 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportCacheStatsAction extends TransportNodesAction<CacheStatsRequest, CacheStatsResponse, //
+        TransportCacheStatsAction.NodeRequest, CacheStatsResponse.NodeResponse> {
+
+    private final QueryResultCache queryResultCache;
+
+    @Inject
+    public TransportCacheStatsAction(final Settings settings, final ThreadPool threadPool, final ClusterService clusterService,
+            final TransportService transportService, final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver, final QueryResultCache queryResultCache) {
+        super(settings, CacheStatsAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                CacheStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT, CacheStatsResponse.NodeResponse.class);
+        this.queryResultCache = queryResultCache;
+    }
+
+    @Override
+    protected CacheStatsResponse newResponse(final CacheStatsRequest request, final List<CacheStatsResponse.NodeResponse> responses,
+            final List<FailedNodeException> failures) {
+        return new CacheStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(final String nodeId, final CacheStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected CacheStatsResponse.NodeResponse newNodeResponse() {
+        return new CacheStatsResponse.NodeResponse();
+    }
+
+    @Override
+    protected CacheStatsResponse.NodeResponse nodeOperation(final NodeRequest request) {
+        return new CacheStatsResponse.NodeResponse(clusterService.localNode(), queryResultCache.stats(), queryResultCache.shardStats());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        CacheStatsRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(final String nodeId, final CacheStatsRequest request) {
+            super(nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new CacheStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportClearCacheAction extends TransportNodesAction<ClearCacheRequest, ClearCacheResponse, //
+        TransportClearCacheAction.NodeRequest, ClearCacheResponse.NodeResponse> {
+
+    private final QueryResultCache queryResultCache;
+
+    @Inject
+    public TransportClearCacheAction(final Settings settings, final ThreadPool threadPool, final ClusterService clusterService,
+            final TransportService transportService, final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver, final QueryResultCache queryResultCache) {
+        super(settings, ClearCacheAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                ClearCacheRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT, ClearCacheResponse.NodeResponse.class);
+        this.queryResultCache = queryResultCache;
+    }
+
+    @Override
+    protected ClearCacheResponse newResponse(final ClearCacheRequest request, final List<ClearCacheResponse.NodeResponse> responses,
+            final List<FailedNodeException> failures) {
+        return new ClearCacheResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(final String nodeId, final ClearCacheRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected ClearCacheResponse.NodeResponse newNodeResponse() {
+        return new ClearCacheResponse.NodeResponse();
+    }
+
+    @Override
+    protected ClearCacheResponse.NodeResponse nodeOperation(final NodeRequest request) {
+        final String[] indices = request.request.indices();
+        long removed = 0;
+        if (indices == null || indices.length == 0) {
+            removed = queryResultCache.clear();
+        } else {
+            // wildcards and aliases are resolved against the local cluster state
+            for (final String index : indexNameExpressionResolver.concreteIndexNames(clusterService.state(),
+                    IndicesOptions.lenientExpandOpen(), indices)) {
+                removed += queryResultCache.clear(index);
+            }
+        }
+        return new ClearCacheResponse.NodeResponse(clusterService.localNode(), removed);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        ClearCacheRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(final String nodeId, final ClearCacheRequest request) {
+            super(nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new ClearCacheRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.codelibs.elasticsearch.qrcache.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportInvalidateShardsAction extends TransportNodesAction<InvalidateShardsRequest, InvalidateShardsResponse, //
+        TransportInvalidateShardsAction.NodeRequest, InvalidateShardsResponse.NodeResponse> {
+
+    private final QueryResultCache queryResultCache;
+
+    @Inject
+    public TransportInvalidateShardsAction(final Settings settings, final ThreadPool threadPool, final ClusterService clusterService,
+            final TransportService transportService, final ActionFilters actionFilters,
+            final IndexNameExpressionResolver indexNameExpressionResolver, final QueryResultCache queryResultCache) {
+        super(settings, InvalidateShardsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, InvalidateShardsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                InvalidateShardsResponse.NodeResponse.class);
+        this.queryResultCache = queryResultCache;
+    }
+
+    @Override
+    protected InvalidateShardsResponse newResponse(final InvalidateShardsRequest request,
+            final List<InvalidateShardsResponse.NodeResponse> responses, final List<FailedNodeException> failures) {
+        return new InvalidateShardsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(final String nodeId, final InvalidateShardsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected InvalidateShardsResponse.NodeResponse newNodeResponse() {
+        return new InvalidateShardsResponse.NodeResponse();
+    }
+
+    @Override
+    protected InvalidateShardsResponse.NodeResponse nodeOperation(final NodeRequest request) {
+        queryResultCache.invalidate(request.request.shardIds());
+        return new InvalidateShardsResponse.NodeResponse(clusterService.localNode());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        InvalidateShardsRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(final String nodeId, final InvalidateShardsRequest request) {
+            super(nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(final StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new InvalidateShardsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(final StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * The map, locking, read buffer, expiry and removal notifications of our
+ * weighted caches; a subclass links the nodes into its policy and chooses
+ * the victims.
+ *
+ * Reads are recorded in a lossy buffer and applied under the policy lock by
+ * whichever thread gets it next, so hits never block on each other. Entries
+ * are also kept in access order, so that expiry only visits the head of the
+ * access lists. Removal listeners are called outside of the lock.
+ */
+abstract class AbstractBoundedCache<K, V, N extends AbstractBoundedCache.Node<K, V>> extends AbstractCache<K, V>
+        implements BoundedCache<K, V> {
+
+    private static final int READ_BUFFER_SIZE = 128;
+
+    private static final int DRAIN_THRESHOLD = 32;
+
+    private static final int EXPIRY_SCAN_LIMIT = 1024;
+
+    protected final ConcurrentMap<K, N> data = ConcurrentCollections.newConcurrentMap();
+
+    protected final ReentrantLock lock = new ReentrantLock();
+
+    private final Queue<Object> readBuffer = ConcurrentCollections.newQueue();
+
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+
+    private final Weigher<K, V> weigher;
+
+    private final RemovalListener<K, V> removalListener;
+
+    private volatile long maximumWeight;
+
+    private volatile long expireAfterAccessNanos;
+
+    private final List<RemovalNotification<K, V>> pendingNotifications = new ArrayList<>();
+
+    private ConcurrentMap<K, V> asMap;
+
+    AbstractBoundedCache(final long maximumWeight, final Weigher<K, V> weigher, final RemovalListener<K, V> removalListener,
+            final long expireAfterAccessNanos) {
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.removalListener = removalListener;
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+    }
+
+    /**
+     * Creates the node of a new entry.
+     */
+    protected abstract N newNode(K key, V value, int weight);
+
+    /**
+     * Links a new node into the policy; called under the lock.
+     */
+    protected abstract void link(N node);
+
+    /**
+     * Unlinks a node from the policy if it is linked; called under the lock.
+     */
+    protected abstract void unlink(N node);
+
+    /**
+     * Evicts entries until the cache is within its maximum weight; called
+     * under the lock.
+     */
+    protected abstract void evict();
+
+    /**
+     * Applies a read recorded by {@link #recordRead(Object)}; called under
+     * the lock.
+     */
+    protected abstract void onRead(Object event);
+
+    /**
+     * Returns the lists that keep the linked nodes in access order.
+     */
+    protected abstract List<AccessList<K, V>> accessLists();
+
+    /**
+     * Called on a lookup of a key that is not cached.
+     */
+    protected void onMiss(final Object key) {
+    }
+
+    /**
+     * Called under the lock when the maximum weight changed, before entries
+     * over it are evicted.
+     */
+    protected void onResize(final long maximumWeight) {
+    }
+
+    @Override
+    public V getIfPresent(final Object key) {
+        final N node = data.get(key);
+        if (node == null) {
+            onMiss(key);
+            return null;
+        }
+        final long expireNanos = expireAfterAccessNanos;
+        final long now = System.nanoTime();
+        if (expireNanos > 0 && now - node.accessTime > expireNanos) {
+            remove(node, RemovalCause.EXPIRED);
+            return null;
+        }
+        node.accessTime = now;
+        recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    public void put(final K key, final V value) {
+        replaceOrPut(key, value);
+    }
+
+    private V replaceOrPut(final K key, final V value) {
+        final N node = newNode(key, value);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            final N old = data.put(key, node);
+            added(node, old);
+            return old == null ? null : old.value;
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    private V putIfAbsent(final K key, final V value) {
+        final N node = newNode(key, value);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            final N old = data.putIfAbsent(key, node);
+            if (old != null) {
+                return old.value;
+            }
+            added(node, null);
+            return null;
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    private V replace(final K key, final V value) {
+        final N node = newNode(key, value);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            final N old = data.replace(key, node);
+            if (old == null) {
+                return null;
+            }
+            added(node, old);
+            return old.value;
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    private boolean replace(final K key, final V oldValue, final V newValue) {
+        final N node = newNode(key, newValue);
+        lock.lock();
+        try {
+            drainReadBuffer();
+            while (true) {
+                // entries are removed outside of the lock, so the node may change under us
+                final N old = data.get(key);
+                if (old == null || !old.value.equals(oldValue)) {
+                    return false;
+                }
+                if (data.replace(key, old, node)) {
+                    added(node, old);
+                    return true;
+                }
+            }
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    private N newNode(final K key, final V value) {
+        final N node = newNode(key, value, weigher.weigh(key, value));
+        node.accessTime = System.nanoTime();
+        return node;
+    }
+
+    /**
+     * Links a node just put in the map in place of old, null if there was
+     * none; called under the lock.
+     */
+    private void added(final N node, final N old) {
+        if (old != null) {
+            unlink(old);
+            pendingNotifications.add(RemovalNotification.create(old.key, old.value, RemovalCause.REPLACED));
+        }
+        link(node);
+        evict();
+    }
+
+    /**
+     * Unlinks an entry chosen by the policy and removes it from the map;
+     * called under the lock.
+     */
+    protected void evict(final N victim) {
+        unlink(victim);
+        // an entry being invalidated concurrently is already gone from the map and notified by its remover
+        if (data.remove(victim.key, victim)) {
+            pendingNotifications.add(RemovalNotification.create(victim.key, victim.value, RemovalCause.SIZE));
+        }
+    }
+
+    @Override
+    public void invalidate(final Object key) {
+        final N node = data.get(key);
+        if (node != null) {
+            remove(node, RemovalCause.EXPLICIT);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (final N node : data.values()) {
+            remove(node, RemovalCause.EXPLICIT);
+        }
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public void cleanUp() {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            final long expireNanos = expireAfterAccessNanos;
+            if (expireNanos > 0) {
+                final long now = System.nanoTime();
+                for (final AccessList<K, V> list : accessLists()) {
+                    // a read dropped from the full buffer refreshes the access time without moving the
+                    // node, so expired entries can sit behind live ones; look past a bounded number of them
+                    int live = 0;
+                    Node<K, V> node = list.head;
+                    while (node != null && live < EXPIRY_SCAN_LIMIT) {
+                        final Node<K, V> next = node.next;
+                        if (now - node.accessTime <= expireNanos) {
+                            live++;
+                        } else if (data.remove(node.key, node)) {
+                            @SuppressWarnings("unchecked")
+                            final N expired = (N) node;
+                            unlink(expired);
+                            pendingNotifications.add(RemovalNotification.create(node.key, node.value, RemovalCause.EXPIRED));
+                        }
+                        node = next;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        if (asMap == null) {
+            asMap = new MapView();
+        }
+        return asMap;
+    }
+
+    @Override
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    @Override
+    public void setMaximumWeight(final long maximumWeight) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            this.maximumWeight = maximumWeight;
+            onResize(maximumWeight);
+            evict();
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+    }
+
+    @Override
+    public void setExpireAfterAccess(final long expireAfterAccessNanos) {
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+    }
+
+    private boolean remove(final N node, final RemovalCause cause) {
+        if (!data.remove(node.key, node)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            unlink(node);
+            pendingNotifications.add(RemovalNotification.create(node.key, node.value, cause));
+        } finally {
+            lock.unlock();
+            notifyRemovals();
+        }
+        return true;
+    }
+
+    /**
+     * Records a read to be applied by {@link #onRead(Object)} under the lock,
+     * or drops it if the buffer is full.
+     */
+    protected void recordRead(final Object event) {
+        final int size = readBufferSize.incrementAndGet();
+        if (size > READ_BUFFER_SIZE) {
+            readBufferSize.decrementAndGet();
+        } else {
+            readBuffer.offer(event);
+        }
+        if (size >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffer() {
+        Object event;
+        while ((event = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            onRead(event);
+        }
+    }
+
+    private void notifyRemovals() {
+        if (lock.isHeldByCurrentThread()) {
+            return;
+        }
+        final List<RemovalNotification<K, V>> notifications;
+        lock.lock();
+        try {
+            if (pendingNotifications.isEmpty()) {
+                return;
+            }
+            notifications = new ArrayList<>(pendingNotifications);
+            pendingNotifications.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (final RemovalNotification<K, V> notification : notifications) {
+            removalListener.onRemoval(notification);
+        }
+    }
+
+    static class Node<K, V> {
+
+        final K key;
+
+        final V value;
+
+        final int weight;
+
+        volatile long accessTime;
+
+        boolean linked;
+
+        Node<K, V> prev;
+
+        Node<K, V> next;
+
+        Node(final K key, final V value, final int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /** Doubly linked list from least (head) to most (tail) recently used. */
+    static final class AccessList<K, V> {
+
+        Node<K, V> head;
+
+        Node<K, V> tail;
+
+        void addTail(final Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            node.linked = true;
+        }
+
+        void remove(final Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.linked = false;
+        }
+
+        void moveToTail(final Node<K, V> node) {
+            if (tail != node) {
+                remove(node);
+                addTail(node);
+            }
+        }
+    }
+
+    private final class MapView extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        @Override
+        public V get(final Object key) {
+            final N node = data.get(key);
+            return node == null ? null : node.value;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return data.containsKey(key);
+        }
+
+        @Override
+        public V remove(final Object key) {
+            final N node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+            AbstractBoundedCache.this.remove(node, RemovalCause.EXPLICIT);
+            return node.value;
+        }
+
+        @Override
+        public int size() {
+            return data.size();
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    final Iterator<N> it = data.values().iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            final N node = it.next();
+                            return new SimpleImmutableEntry<>(node.key, node.value);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return data.size();
+                }
+            };
+        }
+
+        @Override
+        public V put(final K key, final V value) {
+            return replaceOrPut(key, value);
+        }
+
+        @Override
+        public V putIfAbsent(final K key, final V value) {
+            return AbstractBoundedCache.this.putIfAbsent(key, value);
+        }
+
+        @Override
+        public boolean remove(final Object key, final Object value) {
+            final N node = data.get(key);
+            return node != null && node.value.equals(value) && AbstractBoundedCache.this.remove(node, RemovalCause.EXPLICIT);
+        }
+
+        @Override
+        public boolean replace(final K key, final V oldValue, final V newValue) {
+            return AbstractBoundedCache.this.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public V replace(final K key, final V value) {
+            return AbstractBoundedCache.this.replace(key, value);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import com.google.common.cache.Cache;
+
+/**
+ * A weighted cache whose maximum weight and expiry can be changed while it is
+ * in use.
+ */
+public interface BoundedCache<K, V> extends Cache<K, V> {
+
+    long weightedSize();
+
+    long maximumWeight();
+
+    /**
+     * Changes the maximum weight; entries over a lower maximum are evicted
+     * before this returns.
+     */
+    void setMaximumWeight(long maximumWeight);
+
+    /**
+     * Changes the idle time after which entries expire; 0 turns expiry off.
+     */
+    void setExpireAfterAccess(long expireAfterAccessNanos);
+}
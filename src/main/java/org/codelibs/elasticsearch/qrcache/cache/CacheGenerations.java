@@ -0,0 +1,74 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Invalidation counters for the whole cache, each index and each shard. All
+ * counters only grow, so the sum for a shard changes whenever any of them is
+ * bumped and an entry written under an older sum is known to be stale.
+ * Clears step over every count of refreshes a shard can reach, so that a
+ * generation also tells whether its entries were cleared or only refreshed.
+ */
+public class CacheGenerations {
+
+    private static final long CLEAR_STEP = 1L << 32;
+
+    private final AtomicLong global = new AtomicLong();
+
+    private final Map<String, AtomicLong> indices = ConcurrentCollections.newConcurrentMap();
+
+    private final Map<ShardId, AtomicLong> shards = ConcurrentCollections.newConcurrentMap();
+
+    private final AtomicLong staleReads = new AtomicLong();
+
+    public long get(final ShardId shardId) {
+        return global.get() + get(indices, shardId.getIndexName()) + get(shards, shardId);
+    }
+
+    public void bumpAll() {
+        global.addAndGet(CLEAR_STEP);
+    }
+
+    public void bumpIndex(final String index) {
+        indices.computeIfAbsent(index, k -> new AtomicLong()).addAndGet(CLEAR_STEP);
+    }
+
+    public void bumpShard(final ShardId shardId) {
+        shards.computeIfAbsent(shardId, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Returns whether the cache or the index of the shard was cleared since
+     * the given generation.
+     */
+    public boolean cleared(final ShardId shardId, final long generation) {
+        return get(shardId) / CLEAR_STEP != generation / CLEAR_STEP;
+    }
+
+    /**
+     * Counts a shard response served after its entry went stale. A result
+     * built while the count changed may contain stale hits and is not cached.
+     */
+    public void staleRead() {
+        staleReads.incrementAndGet();
+    }
+
+    public long staleReads() {
+        return staleReads.get();
+    }
+
+    public void prune(final Predicate<ShardId> shardExists, final Predicate<String> indexExists) {
+        shards.keySet().removeIf(shardExists.negate());
+        indices.keySet().removeIf(indexExists.negate());
+    }
+
+    private static <K> long get(final Map<K, AtomicLong> counters, final K key) {
+        final AtomicLong counter = counters.get(key);
+        return counter == null ? 0 : counter.get();
+    }
+}
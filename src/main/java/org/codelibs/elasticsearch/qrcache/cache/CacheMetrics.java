@@ -0,0 +1,171 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.AbstractHistogram;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Counters, latency and size distributions and the hottest keys of the
+ * cache, for the metrics endpoint. Unlike the stats, nothing here is reset by
+ * a clear; counters only grow, so a scraper can compute rates across clears.
+ */
+public class CacheMetrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final int MAX_LABEL_LENGTH = 256;
+
+    private static final int TRACK_FACTOR = 8;
+
+    final CounterMetric requests = new CounterMetric();
+
+    final CounterMetric hits = new CounterMetric();
+
+    final CounterMetric misses = new CounterMetric();
+
+    final CounterMetric fetchHits = new CounterMetric();
+
+    final CounterMetric fetchMisses = new CounterMetric();
+
+    final CounterMetric staleHits = new CounterMetric();
+
+    final CounterMetric coalesced = new CounterMetric();
+
+    final CounterMetric puts = new CounterMetric();
+
+    final CounterMetric evictions = new CounterMetric();
+
+    final CounterMetric clears = new CounterMetric();
+
+    final Distribution hitLatency = new Distribution();
+
+    final Distribution missLatency = new Distribution();
+
+    final Distribution entrySize = new Distribution();
+
+    private final int topKeys;
+
+    private final boolean sourceLabels;
+
+    private final TopKeys<QueryResultCache.Key, SearchSourceBuilder> hotKeys;
+
+    private final TopKeys<QueryResultCache.Key, SearchSourceBuilder> heavyKeys;
+
+    CacheMetrics(final int topKeys, final boolean sourceLabels) {
+        this.topKeys = topKeys;
+        this.sourceLabels = sourceLabels;
+        hotKeys = new TopKeys<>(topKeys * TRACK_FACTOR);
+        heavyKeys = new TopKeys<>(topKeys * TRACK_FACTOR);
+    }
+
+    void request(final QueryResultCache.Key key, final SearchSourceBuilder source) {
+        requests.inc();
+        if (topKeys > 0) {
+            hotKeys.record(key, 1, sourceLabels ? source : null);
+        }
+    }
+
+    void hit(final QueryResultCache.Key key, final SearchSourceBuilder source, final long bytes, final long tookNanos) {
+        hits.inc();
+        hitLatency.record(tookNanos / 1000);
+        if (topKeys > 0) {
+            heavyKeys.record(key, bytes, sourceLabels ? source : null);
+        }
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     */
+    public String exposition() {
+        final StringBuilder buf = new StringBuilder(4096);
+        counter(buf, "qrc_requests_total", requests);
+        counter(buf, "qrc_hits_total", hits);
+        counter(buf, "qrc_misses_total", misses);
+        counter(buf, "qrc_fetch_hits_total", fetchHits);
+        counter(buf, "qrc_fetch_misses_total", fetchMisses);
+        counter(buf, "qrc_stale_hits_total", staleHits);
+        counter(buf, "qrc_coalesced_total", coalesced);
+        counter(buf, "qrc_puts_total", puts);
+        counter(buf, "qrc_evictions_total", evictions);
+        counter(buf, "qrc_clears_total", clears);
+        summary(buf, "qrc_hit_latency_microseconds", hitLatency);
+        summary(buf, "qrc_miss_latency_microseconds", missLatency);
+        summary(buf, "qrc_entry_size_bytes", entrySize);
+        top(buf, "qrc_hot_key_requests", hotKeys.top(topKeys));
+        top(buf, "qrc_heavy_key_bytes", heavyKeys.top(topKeys));
+        return buf.toString();
+    }
+
+    private static void counter(final StringBuilder buf, final String name, final CounterMetric counter) {
+        buf.append("# TYPE ").append(name).append(" counter\n");
+        buf.append(name).append(' ').append(counter.count()).append('\n');
+    }
+
+    private static void summary(final StringBuilder buf, final String name, final Distribution distribution) {
+        final AbstractHistogram histogram = distribution.histogram.copy();
+        buf.append("# TYPE ").append(name).append(" summary\n");
+        for (final double quantile : QUANTILES) {
+            buf.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.getValueAtPercentile(quantile * 100)).append('\n');
+        }
+        buf.append(name).append("{quantile=\"1\"} ").append(histogram.getMaxValue()).append('\n');
+        buf.append(name).append("_sum ").append(distribution.sum.sum()).append('\n');
+        buf.append(name).append("_count ").append(histogram.getTotalCount()).append('\n');
+    }
+
+    private static void top(final StringBuilder buf, final String name,
+            final List<TopKeys.Entry<QueryResultCache.Key, SearchSourceBuilder>> top) {
+        buf.append("# TYPE ").append(name).append(" gauge\n");
+        for (int i = 0; i < top.size(); i++) {
+            final TopKeys.Entry<QueryResultCache.Key, SearchSourceBuilder> entry = top.get(i);
+            final ShardId shardId = entry.key.shardId();
+            buf.append(name).append("{rank=\"").append(i + 1).append("\",index=\"");
+            escape(buf, shardId.getIndexName());
+            buf.append("\",shard=\"").append(shardId.id()).append("\",key=\"").append(entry.key.hash());
+            if (entry.label != null) {
+                buf.append("\",source=\"");
+                escape(buf, source(entry.label));
+            }
+            buf.append("\",error=\"").append(entry.error).append("\"} ").append(entry.weight).append('\n');
+        }
+    }
+
+    private static String source(final SearchSourceBuilder source) {
+        final String s = source.toString();
+        return s.length() > MAX_LABEL_LENGTH ? s.substring(0, MAX_LABEL_LENGTH) + "..." : s;
+    }
+
+    private static void escape(final StringBuilder buf, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                buf.append('\\').append(c);
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else {
+                buf.append(c);
+            }
+        }
+    }
+
+    /**
+     * A histogram with two significant digits, which resizes itself to any
+     * value, and the sum of the recorded values.
+     */
+    static class Distribution {
+
+        final ConcurrentHistogram histogram = new ConcurrentHistogram(2);
+
+        final LongAdder sum = new LongAdder();
+
+        void record(final long value) {
+            histogram.recordValue(Math.max(0, value));
+            sum.add(value);
+        }
+    }
+}
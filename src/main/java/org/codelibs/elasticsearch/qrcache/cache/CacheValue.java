@@ -0,0 +1,161 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+public class CacheValue {
+
+    private final BytesReference bytes;
+
+    private final OffHeapArena.Handle handle;
+
+    private final long generation;
+
+    private final int rawLength;
+
+    private final long createdNanos = System.nanoTime();
+
+    private long accessedNanos = createdNanos;
+
+    private long costNanos;
+
+    private volatile DecodedQueryResult decoded;
+
+    private volatile boolean decodable = true;
+
+    private long decodedBytes;
+
+    private boolean released;
+
+    public CacheValue(final BytesReference bytes, final long generation) {
+        this(bytes, -1, generation);
+    }
+
+    public CacheValue(final OffHeapArena.Handle handle, final long generation) {
+        this(handle, -1, generation);
+    }
+
+    /**
+     * @param rawLength the uncompressed length if the bytes are compressed,
+     *        otherwise -1
+     */
+    public CacheValue(final BytesReference bytes, final int rawLength, final long generation) {
+        this.bytes = bytes;
+        this.handle = null;
+        this.rawLength = rawLength;
+        this.generation = generation;
+    }
+
+    public CacheValue(final OffHeapArena.Handle handle, final int rawLength, final long generation) {
+        this.bytes = null;
+        this.handle = handle;
+        this.rawLength = rawLength;
+        this.generation = generation;
+    }
+
+    /**
+     * Returns the stored response, or null if its off-heap pages have
+     * already been released.
+     */
+    public BytesReference bytes() {
+        return handle == null ? bytes : handle.read();
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Returns the time the response was stored, in System.nanoTime() units.
+     */
+    public long createdNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Returns the time the response was last read, in System.nanoTime()
+     * units. Reads from other threads may not be seen yet, which is good
+     * enough to order entries when the cache is rebuilt.
+     */
+    public long accessedNanos() {
+        return accessedNanos;
+    }
+
+    public void accessed() {
+        accessedNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the time it took to produce the response, which a hit saves.
+     */
+    public long costNanos() {
+        return costNanos;
+    }
+
+    public void costNanos(final long costNanos) {
+        this.costNanos = costNanos;
+    }
+
+    public int length() {
+        return handle == null ? bytes.length() : handle.length();
+    }
+
+    public boolean isCompressed() {
+        return rawLength >= 0;
+    }
+
+    public int rawLength() {
+        return rawLength >= 0 ? rawLength : length();
+    }
+
+    public boolean isOffHeap() {
+        return handle != null;
+    }
+
+    public long weight() {
+        return handle == null ? bytes.length() : handle.allocated();
+    }
+
+    public long heapBytesUsed() {
+        return handle == null ? bytes.length() : handle.ramBytesUsed();
+    }
+
+    /**
+     * Releases the off-heap pages and the decoded result, and returns the
+     * heap the decoded result held.
+     */
+    public synchronized long release() {
+        released = true;
+        decoded = null;
+        final long freed = decodedBytes;
+        decodedBytes = 0;
+        if (handle != null) {
+            handle.decRef();
+        }
+        return freed;
+    }
+
+    public DecodedQueryResult decoded() {
+        return decoded;
+    }
+
+    /**
+     * Keeps the decoded result, which holds the given number of bytes of
+     * heap, unless the value has already been released.
+     */
+    public synchronized boolean decoded(final DecodedQueryResult decoded, final long decodedBytes) {
+        if (released || this.decoded != null) {
+            return false;
+        }
+        this.decoded = decoded;
+        this.decodedBytes = decodedBytes;
+        return true;
+    }
+
+    public void notDecodable() {
+        decodable = false;
+    }
+
+    public boolean decodable() {
+        return decodable;
+    }
+}
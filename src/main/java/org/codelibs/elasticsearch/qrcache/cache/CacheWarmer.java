@@ -0,0 +1,389 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.InputStreamStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.RemoteClusterAware;
+
+/**
+ * Records the most frequent searches of this coordinating node and sends
+ * them again after their cached responses were invalidated, so that the next
+ * user finds them in the cache. Warmup searches go through the normal search
+ * action one at a time per rate interval, at most a configured number at
+ * once, and wait while the search thread pool of this node has a queue.
+ * A search is warmed again only if it was sent to this node since its last
+ * warmup, and an index is warmed at most once per interval. Warmup searches
+ * are sent without the headers of the searches they replay, so warmup can not
+ * be enabled together with security, and searches that carry credentials are
+ * not recorded.
+ */
+public class CacheWarmer {
+    private static final Logger logger = LogManager.getLogger(CacheWarmer.class);
+
+    private static final String WARMUP_TRANSIENT = "query_result_cache.warmup";
+
+    private static final int RECORD_FACTOR = 8;
+
+    private static final String SECURITY_ENABLED = "xpack.security.enabled";
+
+    private static final String AUTHORIZATION_HEADER = "Authorization";
+
+    private static final String AUTHENTICATION_HEADER = "_xpack_security_authentication";
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    private final NamedWriteableRegistry namedWriteableRegistry;
+
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    private final TopKeys<BytesReference, String[]> hotKeys;
+
+    private final int size;
+
+    private final long intervalNanos;
+
+    private final int concurrency;
+
+    private final long indexIntervalNanos;
+
+    private final Path file;
+
+    private final Map<BytesReference, TopKeys.Entry<BytesReference, String[]>> queue = new LinkedHashMap<>();
+
+    private final List<TopKeys.Entry<BytesReference, String[]>> restored = new ArrayList<>();
+
+    private final Map<BytesReference, Long> warmedNanos = new HashMap<>();
+
+    private final Map<String, Long> indexWarmedNanos = new HashMap<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private int running;
+
+    private long lastSendNanos;
+
+    private final CounterMetric warmupsMetric = new CounterMetric();
+
+    CacheWarmer(final Settings settings, final Client client, final ClusterService clusterService, final ThreadPool threadPool,
+            final NamedWriteableRegistry namedWriteableRegistry, final Path file) {
+        if (settings.getAsBoolean(SECURITY_ENABLED, false)) {
+            throw new IllegalArgumentException(QueryResultCache.WARMUP_SIZE_SETTING.getKey() + " can not be enabled together with "
+                    + SECURITY_ENABLED + ": warmup searches are sent without the credentials of the searches they replay");
+        }
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.namedWriteableRegistry = namedWriteableRegistry;
+        this.indexNameExpressionResolver = new IndexNameExpressionResolver(settings);
+        this.size = QueryResultCache.WARMUP_SIZE_SETTING.get(settings);
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / QueryResultCache.WARMUP_RATE_SETTING.get(settings);
+        this.concurrency = QueryResultCache.WARMUP_CONCURRENCY_SETTING.get(settings);
+        this.indexIntervalNanos = QueryResultCache.WARMUP_INDEX_INTERVAL_SETTING.get(settings).nanos();
+        this.hotKeys = new TopKeys<>(size * RECORD_FACTOR);
+        this.file = file;
+        this.lastSendNanos = System.nanoTime() - intervalNanos;
+        if (file != null) {
+            load();
+        }
+    }
+
+    /**
+     * Counts a search sent to this node, unless it is a warmup search, carries
+     * credentials that a warmup could not replay, or searches an index without
+     * the cache.
+     */
+    public void record(final SearchRequest request) {
+        final ThreadContext threadContext = threadPool.getThreadContext();
+        if (request.scroll() != null || threadContext.getTransient(WARMUP_TRANSIENT) != null
+                || threadContext.getHeader(AUTHORIZATION_HEADER) != null || threadContext.getHeader(AUTHENTICATION_HEADER) != null) {
+            return;
+        }
+        final String[] indices = cachedIndices(clusterService.state(), request);
+        if (indices == null) {
+            return;
+        }
+        final TaskId parentTask = request.getParentTask();
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            // the same search sent by another task is the same key
+            request.setParentTask(TaskId.EMPTY_TASK_ID);
+            request.writeTo(out);
+            hotKeys.record(out.bytes(), 1, indices);
+        } catch (final IOException e) {
+            logger.debug("Failed to record a search.", e);
+        } finally {
+            request.setParentTask(parentTask);
+        }
+    }
+
+    private String[] cachedIndices(final ClusterState state, final SearchRequest request) {
+        for (final String index : request.indices()) {
+            if (index.indexOf(RemoteClusterAware.REMOTE_CLUSTER_INDEX_SEPARATOR) >= 0) {
+                return null;
+            }
+        }
+        final Index[] indices;
+        try {
+            indices = indexNameExpressionResolver.concreteIndices(state, request);
+        } catch (final RuntimeException e) {
+            return null;
+        }
+        if (indices.length == 0) {
+            return null;
+        }
+        final String[] names = new String[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            final IndexMetaData indexMetaData = state.getMetaData().index(indices[i]);
+            if (indexMetaData == null || !QueryResultCache.INDEX_ENABLED_SETTING.get(indexMetaData.getSettings())) {
+                return null;
+            }
+            names[i] = indices[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Queues the most frequent searches of the indices for a warmup, skipping
+     * searches not sent to this node since their last warmup and indices
+     * warmed within the interval.
+     */
+    public void warm(final Predicate<String> index) {
+        int queued = 0;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            indexWarmedNanos.values().removeIf(warmed -> now - warmed >= indexIntervalNanos);
+            final List<TopKeys.Entry<BytesReference, String[]>> top = hotKeys.top(size);
+            final Set<BytesReference> topKeys = new HashSet<>();
+            final Set<String> warmedIndices = new HashSet<>();
+            for (final TopKeys.Entry<BytesReference, String[]> entry : top) {
+                topKeys.add(entry.key);
+                final Long warmed = warmedNanos.get(entry.key);
+                if (warmed != null && entry.recordedNanos - warmed <= 0) {
+                    continue;
+                }
+                for (final String name : entry.label) {
+                    if (index.test(name) && !indexWarmedNanos.containsKey(name)) {
+                        if (queue.putIfAbsent(entry.key, entry) == null) {
+                            warmedNanos.put(entry.key, now);
+                            queued++;
+                        }
+                        warmedIndices.add(name);
+                        break;
+                    }
+                }
+            }
+            warmedNanos.keySet().retainAll(topKeys);
+            for (final String name : warmedIndices) {
+                indexWarmedNanos.put(name, now);
+            }
+        }
+        if (queued > 0) {
+            drain();
+        }
+    }
+
+    /**
+     * Queues the searches recorded before a restart once all primaries of
+     * their indices are active.
+     */
+    void warmRestored(final ClusterState state) {
+        int queued = 0;
+        synchronized (this) {
+            for (final Iterator<TopKeys.Entry<BytesReference, String[]>> it = restored.iterator(); it.hasNext();) {
+                final TopKeys.Entry<BytesReference, String[]> entry = it.next();
+                boolean active = true;
+                for (final String name : entry.label) {
+                    final IndexRoutingTable routing = state.routingTable().index(name);
+                    if (routing == null || !routing.allPrimaryShardsActive()) {
+                        active = false;
+                        break;
+                    }
+                }
+                if (active) {
+                    it.remove();
+                    if (queue.putIfAbsent(entry.key, entry) == null) {
+                        warmedNanos.put(entry.key, System.nanoTime());
+                        queued++;
+                    }
+                }
+            }
+        }
+        if (queued > 0) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final TopKeys.Entry<BytesReference, String[]> entry;
+            synchronized (this) {
+                if (queue.isEmpty() || running >= concurrency) {
+                    // a running warmup drains again when it completes
+                    return;
+                }
+                final long wait = lastSendNanos + intervalNanos - System.nanoTime();
+                if (wait > 0 || searchQueued()) {
+                    schedule(wait > 0 ? wait : intervalNanos);
+                    return;
+                }
+                final Iterator<TopKeys.Entry<BytesReference, String[]>> it = queue.values().iterator();
+                entry = it.next();
+                it.remove();
+                running++;
+                lastSendNanos = System.nanoTime();
+            }
+            send(entry);
+        }
+    }
+
+    private boolean searchQueued() {
+        final ExecutorService executor = threadPool.executor(ThreadPool.Names.SEARCH);
+        return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
+    }
+
+    private void schedule(final long delayNanos) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            threadPool.schedule(TimeValue.timeValueNanos(delayNanos), ThreadPool.Names.GENERIC, () -> {
+                scheduled.set(false);
+                drain();
+            });
+        } catch (final EsRejectedExecutionException e) {
+            scheduled.set(false);
+            logger.debug("Can not schedule a cache warmup - execution rejected", e);
+        }
+    }
+
+    private void send(final TopKeys.Entry<BytesReference, String[]> entry) {
+        final SearchRequest request = new SearchRequest();
+        try (StreamInput in = new NamedWriteableAwareStreamInput(entry.key.streamInput(), namedWriteableRegistry)) {
+            request.readFrom(in);
+        } catch (final IOException e) {
+            logger.debug("Failed to read a recorded search.", e);
+            completed();
+            return;
+        }
+        final ThreadContext threadContext = threadPool.getThreadContext();
+        // the headers of the recorded searches are not kept, credentials included
+        try (ThreadContext.StoredContext ignore = threadContext.stashContext()) {
+            threadContext.putTransient(WARMUP_TRANSIENT, Boolean.TRUE);
+            warmupsMetric.inc();
+            client.search(request, ActionListener.wrap(response -> completed(), e -> {
+                logger.debug("Failed to warm up a search.", e);
+                completed();
+            }));
+        }
+    }
+
+    private void completed() {
+        synchronized (this) {
+            running--;
+        }
+        drain();
+    }
+
+    public long warmups() {
+        return warmupsMetric.count();
+    }
+
+    public int hotKeys() {
+        return hotKeys.size();
+    }
+
+    /**
+     * Writes the most frequent searches to the file, to warm them up after a
+     * restart.
+     */
+    void save() {
+        if (file == null) {
+            return;
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (OutputStream os = Files.newOutputStream(tmp); StreamOutput out = new OutputStreamStreamOutput(os)) {
+                Version.writeVersion(Version.CURRENT, out);
+                final List<TopKeys.Entry<BytesReference, String[]>> top = hotKeys.top(size);
+                out.writeVInt(top.size());
+                for (final TopKeys.Entry<BytesReference, String[]> entry : top) {
+                    out.writeBytesReference(entry.key);
+                    out.writeStringArray(entry.label);
+                    out.writeVLong(entry.weight);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            logger.warn("Failed to write hot keys to " + file, e);
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (InputStream is = Files.newInputStream(file); StreamInput in = new InputStreamStreamInput(is)) {
+            if (!Version.readVersion(in).equals(Version.CURRENT)) {
+                // requests are serialized in the format of the version that wrote them
+                return;
+            }
+            final int count = in.readVInt();
+            for (int i = 0; i < count; i++) {
+                final TopKeys.Entry<BytesReference, String[]> entry =
+                        new TopKeys.Entry<>(in.readBytesReference(), in.readStringArray(), in.readVLong(), 0, System.nanoTime());
+                hotKeys.add(entry);
+                restored.add(entry);
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to read hot keys from " + file, e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+
+/**
+ * Search contexts the fetch phase refers to after a query response went
+ * through the cache. A response served from the cache gets a negative id that
+ * no data node knows, and its fetch is answered by this node. A response
+ * loaded from a data node keeps the id of its live context, which is
+ * remembered so that the fetch response can be cached too. Either way all top
+ * documents of the response are fetched and cached together, so that a fetch
+ * of any of them is answered from the cache.
+ */
+class CachedSearchContexts {
+
+    private final AtomicLong syntheticIds = new AtomicLong();
+
+    private final Map<Long, Context> synthetic = ConcurrentCollections.newConcurrentMap();
+
+    private final Map<LiveId, Context> live = ConcurrentCollections.newConcurrentMap();
+
+    static boolean isSynthetic(final long id) {
+        return id < 0;
+    }
+
+    long nextId() {
+        return syntheticIds.decrementAndGet();
+    }
+
+    void register(final long id, final Context context) {
+        synthetic.put(id, context);
+    }
+
+    void registerLive(final String nodeId, final long id, final Context context) {
+        live.put(new LiveId(nodeId, id), context);
+    }
+
+    /**
+     * Removes the context, which is used by one fetch or free request only.
+     */
+    Context remove(final String nodeId, final long id) {
+        return isSynthetic(id) ? synthetic.remove(id) : live.remove(new LiveId(nodeId, id));
+    }
+
+    /**
+     * Drops the contexts no fetch or free request came for, for example
+     * because the search failed on another shard.
+     */
+    void prune(final long keepAliveNanos) {
+        final long now = System.nanoTime();
+        synthetic.values().removeIf(context -> now - context.createdNanos > keepAliveNanos);
+        live.values().removeIf(context -> now - context.createdNanos > keepAliveNanos);
+    }
+
+    static class Context {
+
+        final Key key;
+
+        final long generation;
+
+        /** the top documents of the query response */
+        final ScoreDoc[] scoreDocs;
+
+        /** the shard request, to run the query again for a response served from the cache */
+        final ShardSearchTransportRequest request;
+
+        final long createdNanos = System.nanoTime();
+
+        Context(final Key key, final long generation, final ScoreDoc[] scoreDocs, final ShardSearchTransportRequest request) {
+            this.key = key;
+            this.generation = generation;
+            this.scoreDocs = scoreDocs;
+            this.request = request;
+        }
+
+        /**
+         * Returns whether the given top documents rank the same hits in the
+         * same order, by score and sort values, as those of the context. Their
+         * document ids may differ, for example after a merge.
+         */
+        boolean sameRanking(final ScoreDoc[] other) {
+            if (other.length != scoreDocs.length) {
+                return false;
+            }
+            for (int i = 0; i < scoreDocs.length; i++) {
+                if (Float.compare(scoreDocs[i].score, other[i].score) != 0) {
+                    return false;
+                }
+                if (scoreDocs[i] instanceof FieldDoc) {
+                    if (!(other[i] instanceof FieldDoc) || !Arrays.equals(((FieldDoc) scoreDocs[i]).fields, ((FieldDoc) other[i]).fields)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        int[] docIds() {
+            final int[] docIds = new int[scoreDocs.length];
+            for (int i = 0; i < docIds.length; i++) {
+                docIds[i] = scoreDocs[i].doc;
+            }
+            return docIds;
+        }
+    }
+
+    private static class LiveId {
+
+        final String nodeId;
+
+        final long id;
+
+        LiveId(final String nodeId, final long id) {
+            this.nodeId = nodeId;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nodeId.hashCode() + Long.hashCode(id);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final LiveId other = (LiveId) obj;
+            return id == other.id && nodeId.equals(other.nodeId);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.grouping.CollapseTopFieldDocs;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.pipeline.SiblingPipelineAggregator;
+import org.elasticsearch.search.query.QuerySearchResult;
+
+/**
+ * A cached {@link QuerySearchResult} decoded once and shared by all hits.
+ *
+ * The top docs, sort formats and pipeline aggregators are never modified by the
+ * coordinating node, so they are shared and only the score docs are copied
+ * because the reduce phase sets their shard index. Aggregations are modified
+ * while reducing (for example terms buckets adjust their doc count error), so
+ * every hit decodes its own tree from the aggregation section of the stored
+ * bytes.
+ */
+public class DecodedQueryResult implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(DecodedQueryResult.class);
+
+    private static final long SCORE_DOC_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(ScoreDoc.class);
+
+    private static final long FIELD_DOC_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(FieldDoc.class);
+
+    private final NamedWriteableRegistry namedWriteableRegistry;
+
+    private final long requestId;
+
+    private final int from;
+
+    private final int size;
+
+    private final DocValueFormat[] sortValueFormats;
+
+    private final TopDocs topDocs;
+
+    private final BytesReference aggregations;
+
+    private final List<SiblingPipelineAggregator> pipelineAggregators;
+
+    private final boolean searchTimedOut;
+
+    private final Boolean terminatedEarly;
+
+    private final long serviceTimeEWMA;
+
+    private final int nodeQueueSize;
+
+    private DecodedQueryResult(final NamedWriteableRegistry namedWriteableRegistry, final long requestId, final int from,
+            final int size, final DocValueFormat[] sortValueFormats, final TopDocs topDocs, final BytesReference aggregations,
+            final List<SiblingPipelineAggregator> pipelineAggregators, final boolean searchTimedOut, final Boolean terminatedEarly,
+            final long serviceTimeEWMA, final int nodeQueueSize) {
+        this.namedWriteableRegistry = namedWriteableRegistry;
+        this.requestId = requestId;
+        this.from = from;
+        this.size = size;
+        this.sortValueFormats = sortValueFormats;
+        this.topDocs = topDocs;
+        this.aggregations = aggregations;
+        this.pipelineAggregators = pipelineAggregators;
+        this.searchTimedOut = searchTimedOut;
+        this.terminatedEarly = terminatedEarly;
+        this.serviceTimeEWMA = serviceTimeEWMA;
+        this.nodeQueueSize = nodeQueueSize;
+    }
+
+    /**
+     * Decodes the bytes written by {@link QuerySearchResult#writeTo}. Returns
+     * null for results with suggestions or profile results, which are consumed
+     * destructively and are read from the bytes on every hit instead.
+     */
+    public static DecodedQueryResult decode(final BytesReference bytes, final NamedWriteableRegistry namedWriteableRegistry)
+            throws IOException {
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(bytes.streamInput(), namedWriteableRegistry)) {
+            final long requestId = in.readLong();
+            final int from = in.readVInt();
+            final int size = in.readVInt();
+            final int numSortFieldsPlus1 = in.readVInt();
+            DocValueFormat[] sortValueFormats = null;
+            if (numSortFieldsPlus1 > 0) {
+                sortValueFormats = new DocValueFormat[numSortFieldsPlus1 - 1];
+                for (int i = 0; i < sortValueFormats.length; i++) {
+                    sortValueFormats[i] = in.readNamedWriteable(DocValueFormat.class);
+                }
+            }
+            final TopDocs topDocs = Lucene.readTopDocs(in);
+            BytesReference aggregations = null;
+            if (in.readBoolean()) {
+                final int start = bytes.length() - in.available();
+                InternalAggregations.readAggregations(in);
+                aggregations = bytes.slice(start, bytes.length() - in.available() - start);
+            }
+            final List<SiblingPipelineAggregator> pipelineAggregators = in.readNamedWriteableList(PipelineAggregator.class).stream()
+                    .map(a -> (SiblingPipelineAggregator) a).collect(Collectors.toList());
+            if (in.readBoolean()) {
+                return null;
+            }
+            final boolean searchTimedOut = in.readBoolean();
+            final Boolean terminatedEarly = in.readOptionalBoolean();
+            if (in.readBoolean()) {
+                return null;
+            }
+            final long serviceTimeEWMA = in.readZLong();
+            final int nodeQueueSize = in.readInt();
+
+            return new DecodedQueryResult(namedWriteableRegistry, requestId, from, size, sortValueFormats, topDocs, aggregations,
+                    pipelineAggregators, searchTimedOut, terminatedEarly, serviceTimeEWMA, nodeQueueSize);
+        }
+    }
+
+    public QuerySearchResult newResult() throws IOException {
+        return newResult(requestId);
+    }
+
+    /**
+     * Returns a new result that refers to the given search context.
+     */
+    public QuerySearchResult newResult(final long requestId) throws IOException {
+        final QuerySearchResult result = new QuerySearchResult(requestId, null);
+        result.from(from);
+        result.size(size);
+        result.topDocs(copy(topDocs), sortValueFormats);
+        if (aggregations != null) {
+            result.aggregations(readAggregations());
+        }
+        result.pipelineAggregators(pipelineAggregators);
+        result.searchTimedOut(searchTimedOut);
+        if (terminatedEarly != null) {
+            result.terminatedEarly(terminatedEarly);
+        }
+        result.serviceTimeEWMA(serviceTimeEWMA);
+        result.nodeQueueSize(nodeQueueSize);
+        return result;
+    }
+
+    /**
+     * Returns an estimate of the heap held by the decoded top docs and the
+     * aggregation section, which is a copy unless the stored bytes are on
+     * heap and uncompressed.
+     */
+    @Override
+    public long ramBytesUsed() {
+        long size = BASE_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(topDocs.scoreDocs);
+        for (final ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            if (scoreDoc instanceof FieldDoc) {
+                size += FIELD_DOC_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(((FieldDoc) scoreDoc).fields);
+                for (final Object field : ((FieldDoc) scoreDoc).fields) {
+                    size += RamUsageEstimator.shallowSizeOf(field);
+                    if (field instanceof BytesRef) {
+                        size += ((BytesRef) field).length;
+                    }
+                }
+            } else {
+                size += SCORE_DOC_RAM_BYTES_USED;
+            }
+        }
+        if (aggregations != null) {
+            size += aggregations.length();
+        }
+        return size;
+    }
+
+    private InternalAggregations readAggregations() throws IOException {
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(aggregations.streamInput(), namedWriteableRegistry)) {
+            return InternalAggregations.readAggregations(in);
+        }
+    }
+
+    private static TopDocs copy(final TopDocs topDocs) {
+        final ScoreDoc[] scoreDocs = new ScoreDoc[topDocs.scoreDocs.length];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            final ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+            if (scoreDoc instanceof FieldDoc) {
+                scoreDocs[i] = new FieldDoc(scoreDoc.doc, scoreDoc.score, ((FieldDoc) scoreDoc).fields, scoreDoc.shardIndex);
+            } else {
+                scoreDocs[i] = new ScoreDoc(scoreDoc.doc, scoreDoc.score, scoreDoc.shardIndex);
+            }
+        }
+        if (topDocs instanceof CollapseTopFieldDocs) {
+            final CollapseTopFieldDocs collapseTopDocs = (CollapseTopFieldDocs) topDocs;
+            return new CollapseTopFieldDocs(collapseTopDocs.field, topDocs.totalHits, scoreDocs, collapseTopDocs.fields,
+                    collapseTopDocs.collapseValues, topDocs.getMaxScore());
+        } else if (topDocs instanceof TopFieldDocs) {
+            return new TopFieldDocs(topDocs.totalHits, scoreDocs, ((TopFieldDocs) topDocs).fields, topDocs.getMaxScore());
+        }
+        return new TopDocs(topDocs.totalHits, scoreDocs, topDocs.getMaxScore());
+    }
+}
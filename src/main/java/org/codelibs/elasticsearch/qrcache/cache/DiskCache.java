@@ -0,0 +1,520 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Second cache tier in memory-mapped segment files. Records are appended to
+ * the newest segment and the oldest segment is dropped when the store is
+ * full. Each record carries the time it took to compute the response, the
+ * index UUID and the primary's max sequence
+ * number, taken while no write to the shard was waiting for a refresh, so
+ * that entries loaded after a restart can be checked against the current
+ * shards before they are served. A clear or a shard invalidation appends a
+ * record that drops the entries written before it when the segments are
+ * loaded again, and segments written by another format or Elasticsearch
+ * version are deleted.
+ */
+public class DiskCache {
+    private static final Logger logger = LogManager.getLogger(DiskCache.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int MAGIC = 0x51524344;
+
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int SEGMENT_HEADER_SIZE = 12;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte ENTRY_RECORD = 0;
+
+    private static final byte CLEAR_RECORD = 1;
+
+    private static final byte INVALIDATE_RECORD = 2;
+
+    static final long NOT_VALIDATED = -1;
+
+    private final Path path;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final Map<Key, Entry> entries = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * The number of live entries of each index. A clear replaces the counter,
+     * and entries that refer to a replaced counter are dropped when they are
+     * read.
+     */
+    private final Map<String, AtomicInteger> indexCounts = ConcurrentCollections.newConcurrentMap();
+
+    private Segment current;
+
+    public DiskCache(final Path path, final long maxSize, final int segmentSize) throws IOException {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        Files.createDirectories(path);
+        load();
+    }
+
+    public Entry get(final Key key) {
+        final Entry entry = entries.get(key);
+        if (entry != null && !isLive(entry)) {
+            remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    public void remove(final Key key, final Entry entry) {
+        if (entries.remove(key, entry)) {
+            entry.indexCount.decrementAndGet();
+        }
+    }
+
+    public synchronized int clear() throws IOException {
+        writeClear(null);
+        final int count = count();
+        entries.clear();
+        indexCounts.clear();
+        return count;
+    }
+
+    /**
+     * Drops the entries of the index and returns their number. The entries
+     * are removed from the map when they are read or their segment is
+     * dropped.
+     */
+    public synchronized int clear(final String index) throws IOException {
+        writeClear(index);
+        final AtomicInteger count = indexCounts.remove(index);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Records that the shards changed, so that their entries written before
+     * are not loaded again. Entries of this run are checked against the
+     * shard's generation instead.
+     */
+    public synchronized void invalidate(final Collection<ShardId> shardIds) throws IOException {
+        if (current == null || entries.isEmpty()) {
+            return;
+        }
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeByte(INVALIDATE_RECORD);
+            out.writeVInt(shardIds.size());
+            for (final ShardId shardId : shardIds) {
+                shardId.writeTo(out);
+            }
+            append(out.bytes(), BytesArray.EMPTY);
+        }
+    }
+
+    /**
+     * Returns the indices that have entries loaded from a previous run that
+     * are not validated yet.
+     */
+    public Set<String> unvalidatedIndices() {
+        final Set<String> indices = new HashSet<>();
+        for (final Entry entry : entries.values()) {
+            if (entry.generation == NOT_VALIDATED) {
+                indices.add(entry.shardId.getIndexName());
+            }
+        }
+        return indices;
+    }
+
+    public int count() {
+        int count = 0;
+        for (final AtomicInteger indexCount : indexCounts.values()) {
+            count += indexCount.get();
+        }
+        return count;
+    }
+
+    public synchronized long sizeInBytes() {
+        long size = 0;
+        for (final Segment segment : segments) {
+            size += segment.position;
+        }
+        return size;
+    }
+
+    public BytesReference read(final Entry entry) {
+        final ByteBuffer buffer = entry.segment.buffer.duplicate();
+        buffer.position(entry.valueOffset);
+        final byte[] bytes = new byte[entry.valueLength];
+        buffer.get(bytes);
+        return new BytesArray(bytes);
+    }
+
+    /**
+     * @param costNanos the time it took to compute the value, which it keeps
+     *        when it is promoted again
+     */
+    public synchronized void put(final Key key, final BytesReference value, final long generation, final long maxSeqNo,
+            final long costNanos) throws IOException {
+        final Entry existing = get(key);
+        if (existing != null && existing.generation == generation) {
+            return;
+        }
+
+        final BytesReference header;
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeByte(ENTRY_RECORD);
+            key.writeTo(out);
+            out.writeZLong(maxSeqNo);
+            out.writeVLong(costNanos);
+            out.writeVInt(value.length());
+            header = out.bytes();
+        }
+        final int valueOffset = append(header, value);
+        if (valueOffset < 0) {
+            return;
+        }
+
+        current.keys.add(key);
+        add(key, new Entry(current, key.shardId(), indexCount(key.shardId()), valueOffset, value.length(), maxSeqNo, costNanos,
+                generation));
+    }
+
+    private void add(final Key key, final Entry entry) {
+        entry.indexCount.incrementAndGet();
+        final Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            previous.indexCount.decrementAndGet();
+        }
+    }
+
+    private AtomicInteger indexCount(final ShardId shardId) {
+        return indexCounts.computeIfAbsent(shardId.getIndexName(), k -> new AtomicInteger());
+    }
+
+    private boolean isLive(final Entry entry) {
+        return indexCounts.get(entry.shardId.getIndexName()) == entry.indexCount;
+    }
+
+    /**
+     * Appends a record that drops the entries of the index, or all entries
+     * for null, written before it.
+     */
+    private void writeClear(final String index) throws IOException {
+        if (current == null) {
+            return;
+        }
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            out.writeByte(CLEAR_RECORD);
+            out.writeOptionalString(index);
+            append(out.bytes(), BytesArray.EMPTY);
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, rolling over to a new one if
+     * it does not fit, and returns the offset of the value, or -1 if the
+     * record is larger than a segment.
+     */
+    private int append(final BytesReference header, final BytesReference value) throws IOException {
+        final int payloadLength = header.length() + value.length();
+        if (SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + payloadLength > segmentSize) {
+            return -1;
+        }
+        if (current == null || current.position + RECORD_HEADER_SIZE + payloadLength > segmentSize) {
+            roll();
+        }
+
+        final CRC32 crc = new CRC32();
+        update(crc, header);
+        update(crc, value);
+        final ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(current.position);
+        buffer.putInt(payloadLength);
+        buffer.putInt((int) crc.getValue());
+        write(buffer, header);
+        final int valueOffset = buffer.position();
+        write(buffer, value);
+        current.position = buffer.position();
+        return valueOffset;
+    }
+
+    /**
+     * Checks entries loaded from a previous run. An entry becomes valid under
+     * the current generation if its index still has the same UUID and the
+     * primary's max sequence number has not moved; entries of shards whose
+     * sequence number is not known yet stay unvalidated.
+     */
+    public void validate(final Predicate<ShardId> indexExists, final Function<ShardId, Long> maxSeqNos,
+            final ToLongFunction<ShardId> generations) {
+        for (final Map.Entry<Key, Entry> e : entries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (entry.generation != NOT_VALIDATED) {
+                continue;
+            }
+            if (!isLive(entry) || !indexExists.test(entry.shardId)) {
+                remove(e.getKey(), entry);
+                continue;
+            }
+            final Long maxSeqNo = maxSeqNos.apply(entry.shardId);
+            if (maxSeqNo == null) {
+                continue;
+            }
+            if (maxSeqNo.longValue() == entry.maxSeqNo) {
+                entry.generation = generations.applyAsLong(entry.shardId);
+            } else {
+                remove(e.getKey(), entry);
+            }
+        }
+    }
+
+    public synchronized void close() {
+        for (final Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private void roll() throws IOException {
+        final int id = current == null ? 0 : current.id + 1;
+        while (segments.size() >= maxSegments) {
+            final Segment oldest = segments.removeFirst();
+            for (final Key key : oldest.keys) {
+                final Entry entry = entries.get(key);
+                if (entry != null && entry.segment == oldest) {
+                    remove(key, entry);
+                }
+            }
+            Files.deleteIfExists(oldest.file);
+        }
+        if (current != null) {
+            current.buffer.force();
+        }
+        final Path file = path.resolve(SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        current = new Segment(id, file, map(file, StandardOpenOption.CREATE_NEW));
+        current.buffer.putInt(0, MAGIC);
+        current.buffer.putInt(4, FORMAT_VERSION);
+        current.buffer.putInt(8, Version.CURRENT.id);
+        current.position = SEGMENT_HEADER_SIZE;
+        segments.addLast(current);
+    }
+
+    private MappedByteBuffer map(final Path file, final StandardOpenOption option) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, option)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private void load() throws IOException {
+        final List<Segment> loaded = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                final int id;
+                try {
+                    id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (final NumberFormatException e) {
+                    continue;
+                }
+                if (Files.size(file) != segmentSize) {
+                    Files.delete(file);
+                    continue;
+                }
+                final Segment segment = new Segment(id, file, map(file, StandardOpenOption.READ));
+                if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != FORMAT_VERSION
+                        || segment.buffer.getInt(8) != Version.CURRENT.id) {
+                    // responses are serialized in the format of the version that wrote them
+                    logger.debug("Deleting {} written by another version", file);
+                    Files.delete(file);
+                    continue;
+                }
+                loaded.add(segment);
+            }
+        }
+        loaded.sort((s1, s2) -> Integer.compare(s1.id, s2.id));
+        for (final Segment segment : loaded) {
+            scan(segment);
+            segments.addLast(segment);
+            current = segment;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded {} cached responses from {} segments in {}", count(), segments.size(), path);
+        }
+    }
+
+    private void scan(final Segment segment) throws IOException {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(SEGMENT_HEADER_SIZE);
+        segment.position = SEGMENT_HEADER_SIZE;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buffer.position();
+            final int payloadLength = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (payloadLength <= 0 || payloadLength > buffer.remaining()) {
+                break;
+            }
+            final byte[] payload = new byte[payloadLength];
+            buffer.get(payload);
+            final CRC32 crc = new CRC32();
+            crc.update(payload, 0, payloadLength);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Corrupted record at {} in {}", start, segment.file);
+                break;
+            }
+            try (StreamInput in = new BytesArray(payload).streamInput()) {
+                final byte type = in.readByte();
+                if (type == INVALIDATE_RECORD) {
+                    final Set<ShardId> shardIds = new HashSet<>();
+                    for (int i = in.readVInt(); i > 0; i--) {
+                        shardIds.add(ShardId.readShardId(in));
+                    }
+                    for (final Map.Entry<Key, Entry> e : entries.entrySet()) {
+                        if (shardIds.contains(e.getValue().shardId)) {
+                            remove(e.getKey(), e.getValue());
+                        }
+                    }
+                    segment.position = buffer.position();
+                    continue;
+                }
+                if (type == CLEAR_RECORD) {
+                    final String index = in.readOptionalString();
+                    if (index == null) {
+                        entries.clear();
+                        indexCounts.clear();
+                    } else {
+                        indexCounts.remove(index);
+                    }
+                    segment.position = buffer.position();
+                    continue;
+                }
+                final Key key = Key.readFrom(in);
+                final long maxSeqNo = in.readZLong();
+                final long costNanos = in.readVLong();
+                final int valueLength = in.readVInt();
+                final int valueOffset = buffer.position() - valueLength;
+                segment.keys.add(key);
+                if (maxSeqNo != SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                    add(key, new Entry(segment, key.shardId(), indexCount(key.shardId()), valueOffset, valueLength, maxSeqNo,
+                            costNanos, NOT_VALIDATED));
+                }
+            }
+            segment.position = buffer.position();
+        }
+    }
+
+    private static void update(final CRC32 crc, final BytesReference bytes) throws IOException {
+        final BytesRefIterator iterator = bytes.iterator();
+        BytesRef ref;
+        while ((ref = iterator.next()) != null) {
+            crc.update(ref.bytes, ref.offset, ref.length);
+        }
+    }
+
+    private static void write(final ByteBuffer buffer, final BytesReference bytes) throws IOException {
+        final BytesRefIterator iterator = bytes.iterator();
+        BytesRef ref;
+        while ((ref = iterator.next()) != null) {
+            buffer.put(ref.bytes, ref.offset, ref.length);
+        }
+    }
+
+    private static class Segment {
+
+        final int id;
+
+        final Path file;
+
+        final MappedByteBuffer buffer;
+
+        final List<Key> keys = new ArrayList<>();
+
+        int position;
+
+        Segment(final int id, final Path file, final MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    public static class Entry {
+
+        private final Segment segment;
+
+        private final ShardId shardId;
+
+        private final AtomicInteger indexCount;
+
+        private final int valueOffset;
+
+        private final int valueLength;
+
+        private final long maxSeqNo;
+
+        private final long costNanos;
+
+        private volatile long generation;
+
+        Entry(final Segment segment, final ShardId shardId, final AtomicInteger indexCount, final int valueOffset,
+                final int valueLength, final long maxSeqNo, final long costNanos, final long generation) {
+            this.segment = segment;
+            this.shardId = shardId;
+            this.indexCount = indexCount;
+            this.valueOffset = valueOffset;
+            this.valueLength = valueLength;
+            this.maxSeqNo = maxSeqNo;
+            this.costNanos = costNanos;
+            this.generation = generation;
+        }
+
+        public long generation() {
+            return generation;
+        }
+
+        /**
+         * Returns the time it took to compute the response when it was first
+         * cached.
+         */
+        public long costNanos() {
+            return costNanos;
+        }
+    }
+}
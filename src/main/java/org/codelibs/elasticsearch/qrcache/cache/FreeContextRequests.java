@@ -0,0 +1,32 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.transport.TransportRequest;
+
+/**
+ * Reads the context id of free context requests, whose class is not visible
+ * outside of its package, from their wire format: the parent task followed by
+ * the id.
+ */
+final class FreeContextRequests {
+
+    private FreeContextRequests() {
+    }
+
+    /**
+     * Returns the context id of the request.
+     */
+    static long contextId(final TransportRequest request) throws IOException {
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            request.writeTo(out);
+            try (final StreamInput in = out.bytes().streamInput()) {
+                TaskId.readFromStream(in);
+                return in.readLong();
+            }
+        }
+    }
+}
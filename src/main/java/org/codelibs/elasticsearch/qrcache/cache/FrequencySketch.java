@@ -0,0 +1,124 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+/**
+ * Count-min sketch of 4-bit counters with a doorkeeper bloom filter in front
+ * of it. The first occurrence of a key only sets doorkeeper bits, so one-hit
+ * wonders do not take counter space. All counters are halved and the
+ * doorkeeper cleared once the number of recorded accesses reaches ten times
+ * the table size, which lets old popularity fade. Not thread-safe.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+
+    private final long[] doorkeeper;
+
+    private final int tableMask;
+
+    private final int doorkeeperMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    public FrequencySketch(final long expectedEntries) {
+        final int length = ceilingPowerOfTwo((int) Math.min(Math.max(expectedEntries, 64), 1 << 24));
+        table = new long[length];
+        tableMask = length - 1;
+        doorkeeper = new long[Math.max(1, length / 4)];
+        doorkeeperMask = doorkeeper.length * Long.SIZE - 1;
+        sampleSize = 10 * length;
+    }
+
+    public int frequency(final int hashCode) {
+        final int hash = spread(hashCode);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, count(hash, i));
+        }
+        return frequency + (inDoorkeeper(hash) ? 1 : 0);
+    }
+
+    public void increment(final int hashCode) {
+        final int hash = spread(hashCode);
+        if (!inDoorkeeper(hash)) {
+            addToDoorkeeper(hash);
+        } else {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                added |= incrementAt(hash, i);
+            }
+            if (!added) {
+                return;
+            }
+        }
+        if (++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private int count(final int hash, final int i) {
+        final int index = indexOf(hash, i);
+        final int offset = counterOffset(hash, i);
+        return (int) ((table[index] >>> offset) & 0xfL);
+    }
+
+    private boolean incrementAt(final int hash, final int i) {
+        final int index = indexOf(hash, i);
+        final int offset = counterOffset(hash, i);
+        final long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean inDoorkeeper(final int hash) {
+        final int bit1 = hash & doorkeeperMask;
+        final int bit2 = (hash >>> 16 | hash << 16) & doorkeeperMask;
+        return (doorkeeper[bit1 >>> 6] & (1L << bit1)) != 0 && (doorkeeper[bit2 >>> 6] & (1L << bit2)) != 0;
+    }
+
+    private void addToDoorkeeper(final int hash) {
+        final int bit1 = hash & doorkeeperMask;
+        final int bit2 = (hash >>> 16 | hash << 16) & doorkeeperMask;
+        doorkeeper[bit1 >>> 6] |= 1L << bit1;
+        doorkeeper[bit2 >>> 6] |= 1L << bit2;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        for (int i = 0; i < doorkeeper.length; i++) {
+            doorkeeper[i] = 0;
+        }
+        size /= 2;
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int counterOffset(final int hash, final int i) {
+        // 16 counters per long; each hash function uses its own quarter
+        return ((((hash >>> (i << 3)) & 3) << 2) + i) << 2;
+    }
+
+    private static int spread(final int x) {
+        int h = ((x >>> 16) ^ x) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+    private static int ceilingPowerOfTwo(final int x) {
+        return 1 << -Integer.numberOfLeadingZeros(x - 1);
+    }
+}
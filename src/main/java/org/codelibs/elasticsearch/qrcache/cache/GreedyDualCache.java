@@ -0,0 +1,113 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+
+/**
+ * A weighted cache with the GreedyDual-Size policy. Every entry has a
+ * priority of the inflation value plus its cost per unit of weight, and the
+ * entry with the lowest priority is evicted first; the inflation value rises
+ * to the priority of each evicted entry, so entries that are not hit again
+ * age out however expensive they were. A hit restores the priority of an
+ * entry from the current inflation value. Entries of equal priority, such as
+ * entries without a cost, are evicted in least recently used order.
+ */
+public class GreedyDualCache<K, V> extends AbstractBoundedCache<K, V, GreedyDualCache.Node<K, V>> {
+
+    private final ToLongFunction<V> cost;
+
+    private final TreeSet<Node<K, V>> queue = new TreeSet<>((n1, n2) -> {
+        final int c = Double.compare(n1.priority, n2.priority);
+        return c != 0 ? c : Long.compare(n1.sequence, n2.sequence);
+    });
+
+    private final AccessList<K, V> accessList = new AccessList<>();
+
+    private final List<AccessList<K, V>> accessLists = Collections.singletonList(accessList);
+
+    private long weightedSize;
+
+    private double inflation;
+
+    private long sequence;
+
+    /**
+     * @param cost the cost of computing a value again, in any unit
+     */
+    public GreedyDualCache(final long maximumWeight, final Weigher<K, V> weigher, final ToLongFunction<V> cost,
+            final RemovalListener<K, V> removalListener, final long expireAfterAccessNanos) {
+        super(maximumWeight, weigher, removalListener, expireAfterAccessNanos);
+        this.cost = cost;
+    }
+
+    @Override
+    protected Node<K, V> newNode(final K key, final V value, final int weight) {
+        return new Node<>(key, value, weight, cost.applyAsLong(value));
+    }
+
+    @Override
+    protected List<AccessList<K, V>> accessLists() {
+        return accessLists;
+    }
+
+    @Override
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    @Override
+    protected void onRead(final Object event) {
+        @SuppressWarnings("unchecked")
+        final Node<K, V> node = (Node<K, V>) event;
+        if (node.linked) {
+            unlink(node);
+            link(node);
+        }
+    }
+
+    @Override
+    protected void evict() {
+        while (weightedSize > maximumWeight() && !queue.isEmpty()) {
+            final Node<K, V> victim = queue.first();
+            inflation = victim.priority;
+            evict(victim);
+        }
+    }
+
+    @Override
+    protected void link(final Node<K, V> node) {
+        node.priority = inflation + (double) node.cost / Math.max(1, node.weight);
+        node.sequence = sequence++;
+        queue.add(node);
+        accessList.addTail(node);
+        weightedSize += node.weight;
+    }
+
+    @Override
+    protected void unlink(final Node<K, V> node) {
+        if (node.linked) {
+            queue.remove(node);
+            accessList.remove(node);
+            weightedSize -= node.weight;
+        }
+    }
+
+    static final class Node<K, V> extends AbstractBoundedCache.Node<K, V> {
+
+        final long cost;
+
+        double priority;
+
+        long sequence;
+
+        Node(final K key, final V value, final int weight, final long cost) {
+            super(key, value, weight);
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.ShardFetchRequest;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+
+/**
+ * Builds cache keys from a per-thread serialization buffer. Compact keys keep
+ * only a 128-bit fingerprint of the serialized source; full keys also keep an
+ * exact copy of the bytes, which is compared only when fingerprints match.
+ */
+public class KeyBuilder {
+
+    public static final String FULL = "full";
+
+    public static final String COMPACT = "compact";
+
+    private static final long SEED = 0x71726361L;
+
+    private static final int MAX_RETAINED_SCRATCH = 1024 * 1024;
+
+    private final boolean compact;
+
+    private final KeyNormalizer normalizer;
+
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    public KeyBuilder(final String mode) {
+        this(mode, false);
+    }
+
+    /**
+     * @param normalize whether sources are normalized before they are keyed
+     */
+    public KeyBuilder(final String mode, final boolean normalize) {
+        this.compact = COMPACT.equals(mode);
+        this.normalizer = normalize ? new KeyNormalizer() : null;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Returns the source that is keyed for the given one.
+     */
+    public SearchSourceBuilder source(final SearchSourceBuilder source) throws IOException {
+        return normalizer == null || source == null ? source : normalizer.normalize(source);
+    }
+
+    public Key build(final ShardSearchTransportRequest request) throws IOException {
+        return build(request, false);
+    }
+
+    /**
+     * @param keyNow whether a source that mentions "now" is keyed with the
+     *            time the request resolves it against
+     */
+    public Key build(final ShardSearchTransportRequest request, final boolean keyNow) throws IOException {
+        final Buffer buffer = buffers.get();
+        buffer.out.reset();
+        source(request.source()).writeTo(buffer.out);
+        if (keyNow && NowRounding.mentionsNow(buffer.out.bytes())) {
+            buffer.out.writeLong(request.nowInMillis());
+        }
+        if (request.numberOfShards() == 1) {
+            // a single shard answers with its fetched hits, a different response
+            buffer.out.writeBoolean(true);
+        }
+        return buffer.toKey(request.shardId(), compact);
+    }
+
+    /**
+     * Builds the key of the fetch response for the given documents of a
+     * cached or cacheable query response.
+     */
+    public Key build(final Key queryKey, final ShardFetchRequest request) throws IOException {
+        final Buffer buffer = buffers.get();
+        buffer.out.reset();
+        queryKey.writeTo(buffer.out);
+        buffer.out.writeVInt(request.docIdsSize());
+        final int[] docIds = request.docIds();
+        for (int i = 0; i < request.docIdsSize(); i++) {
+            buffer.out.writeVInt(docIds[i]);
+        }
+        return buffer.toKey(queryKey.shardId(), compact);
+    }
+
+    /**
+     * Builds the key of the final response of a search on the given indices
+     * from its keyed source, the UUIDs of the indices, its types, search type,
+     * routing and preference; nothing else of the request is keyed. A source
+     * that mentions "now" is also keyed with the time each index rounds it
+     * to.
+     *
+     * @param nowIntervals the now rounding interval of each index in
+     *            milliseconds, 0 for none
+     */
+    public Key build(final SearchRequest request, final Index[] indices, final long[] nowIntervals, final long nowInMillis)
+            throws IOException {
+        final Buffer buffer = buffers.get();
+        buffer.out.reset();
+        buffer.out.writeOptionalWriteable(source(request.source()));
+        if (NowRounding.mentionsNow(buffer.out.bytes())) {
+            for (final long interval : nowIntervals) {
+                buffer.out.writeLong(interval > 0 ? NowRounding.round(nowInMillis, interval) : -1);
+            }
+        }
+        for (final Index index : indices) {
+            buffer.out.writeString(index.getUUID());
+        }
+        buffer.out.writeStringArray(request.types());
+        buffer.out.writeByte(request.searchType().id());
+        buffer.out.writeOptionalString(request.routing());
+        buffer.out.writeOptionalString(request.preference());
+        return buffer.toKey(null, compact);
+    }
+
+    private static class Buffer {
+
+        final BytesStreamOutput out = new BytesStreamOutput();
+
+        final MurmurHash3.Hash128 hash = new MurmurHash3.Hash128();
+
+        byte[] scratch = BytesRef.EMPTY_BYTES;
+
+        Key toKey(final ShardId shardId, final boolean compact) throws IOException {
+            final BytesRef bytes = contiguous(out.bytes());
+            MurmurHash3.hash128(bytes.bytes, bytes.offset, bytes.length, SEED, hash);
+            final BytesReference value = compact ? null : new BytesArray(bytes, true);
+            if (scratch.length > MAX_RETAINED_SCRATCH) {
+                scratch = BytesRef.EMPTY_BYTES;
+            }
+            return new Key(shardId, hash.h1, hash.h2, bytes.length, value);
+        }
+
+        private BytesRef contiguous(final BytesReference bytes) throws IOException {
+            final int length = bytes.length();
+            final BytesRefIterator iterator = bytes.iterator();
+            BytesRef page = iterator.next();
+            if (page == null) {
+                return new BytesRef();
+            }
+            if (page.length == length) {
+                return page;
+            }
+            scratch = ArrayUtil.grow(scratch, length);
+            int offset = 0;
+            while (page != null) {
+                System.arraycopy(page.bytes, page.offset, scratch, offset, page.length);
+                offset += page.length;
+                page = iterator.next();
+            }
+            return new BytesRef(scratch, 0, length);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+/**
+ * Rewrites a search source into a canonical form before it is keyed, so that
+ * equivalent requests share cache entries. The source of the request is not
+ * modified.
+ *
+ * Clauses of a bool query are sorted by their serialized form where their
+ * order can not change a result: always for filter and must_not clauses, and
+ * for must and should clauses only when the query does not score, because
+ * the order in which scores are summed can change their last bits. Values of
+ * a terms query are sorted and deduplicated, _source patterns are sorted, and
+ * timeout and stats groups are dropped; a response that timed out is never
+ * cached. Other queries are kept as they are.
+ */
+public class KeyNormalizer {
+
+    private static final Comparator<Object> VALUE_ORDER = (o1, o2) -> {
+        final int c = o1.getClass().getName().compareTo(o2.getClass().getName());
+        if (c != 0) {
+            return c;
+        }
+        if (o1 instanceof Comparable) {
+            @SuppressWarnings("unchecked")
+            final Comparable<Object> comparable = (Comparable<Object>) o1;
+            return comparable.compareTo(o2);
+        }
+        return o1.toString().compareTo(o2.toString());
+    };
+
+    public SearchSourceBuilder normalize(final SearchSourceBuilder source) throws IOException {
+        final SearchSourceBuilder normalized = source.copyWithNewSlice(source.slice());
+        normalized.timeout(null);
+        normalized.stats(null);
+        if (source.query() != null) {
+            normalized.query(normalize(source.query(), true));
+        }
+        if (source.postFilter() != null) {
+            normalized.postFilter(normalize(source.postFilter(), false));
+        }
+        final FetchSourceContext fetchSource = source.fetchSource();
+        if (fetchSource != null) {
+            normalized.fetchSource(new FetchSourceContext(fetchSource.fetchSource(), sorted(fetchSource.includes()),
+                    sorted(fetchSource.excludes())));
+        }
+        return normalized;
+    }
+
+    /**
+     * @param scoring whether the scores of the query are used
+     */
+    QueryBuilder normalize(final QueryBuilder query, final boolean scoring) throws IOException {
+        if (query instanceof BoolQueryBuilder) {
+            final BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            final BoolQueryBuilder normalized = new BoolQueryBuilder();
+            addAll(bool.must(), scoring, !scoring, normalized::must);
+            addAll(bool.should(), scoring, !scoring, normalized::should);
+            addAll(bool.filter(), false, true, normalized::filter);
+            addAll(bool.mustNot(), false, true, normalized::mustNot);
+            normalized.minimumShouldMatch(bool.minimumShouldMatch());
+            normalized.adjustPureNegative(bool.adjustPureNegative());
+            return copyCommon(bool, normalized);
+        }
+        if (query instanceof ConstantScoreQueryBuilder) {
+            final ConstantScoreQueryBuilder constantScore = (ConstantScoreQueryBuilder) query;
+            return copyCommon(constantScore, new ConstantScoreQueryBuilder(normalize(constantScore.innerQuery(), false)));
+        }
+        if (query instanceof TermsQueryBuilder) {
+            final TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            if (terms.termsLookup() != null) {
+                return query;
+            }
+            final List<Object> values = new ArrayList<>(terms.values());
+            values.sort(VALUE_ORDER);
+            final List<Object> distinct = new ArrayList<>(values.size());
+            for (final Object value : values) {
+                if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(value)) {
+                    distinct.add(value);
+                }
+            }
+            return copyCommon(terms, new TermsQueryBuilder(terms.fieldName(), distinct));
+        }
+        return query;
+    }
+
+    private void addAll(final List<QueryBuilder> clauses, final boolean scoring, final boolean sort, final Consumer<QueryBuilder> adder)
+            throws IOException {
+        if (!sort || clauses.size() < 2) {
+            for (final QueryBuilder clause : clauses) {
+                adder.accept(normalize(clause, scoring));
+            }
+            return;
+        }
+        final List<Clause> normalized = new ArrayList<>(clauses.size());
+        for (final QueryBuilder clause : clauses) {
+            normalized.add(new Clause(normalize(clause, scoring)));
+        }
+        normalized.sort(Comparator.comparing(c -> c.bytes));
+        for (final Clause clause : normalized) {
+            adder.accept(clause.query);
+        }
+    }
+
+    private static <Q extends QueryBuilder> Q copyCommon(final QueryBuilder from, final Q to) {
+        to.boost(from.boost());
+        to.queryName(from.queryName());
+        return to;
+    }
+
+    private static String[] sorted(final String[] patterns) {
+        if (patterns == null || patterns.length < 2) {
+            return patterns;
+        }
+        final String[] sorted = patterns.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static class Clause {
+
+        final QueryBuilder query;
+
+        final BytesReference bytes;
+
+        Clause(final QueryBuilder query) throws IOException {
+            this.query = query;
+            try (final BytesStreamOutput out = new BytesStreamOutput()) {
+                out.writeNamedWriteable(query);
+                this.bytes = out.bytes();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+
+/**
+ * Rounds the time against which a shard resolves "now" in date math, so that
+ * the responses of now-relative queries stay the same for a whole interval
+ * and can be cached with a known bound on their age.
+ */
+final class NowRounding {
+
+    private static final byte[] NOW = { 'n', 'o', 'w' };
+
+    private NowRounding() {
+    }
+
+    static long round(final long nowInMillis, final long intervalMillis) {
+        return nowInMillis - Math.floorMod(nowInMillis, intervalMillis);
+    }
+
+    /**
+     * Returns whether the serialized source contains "now". Any date math
+     * relative to the current time does, and a false match only makes the
+     * key change with every interval.
+     */
+    static boolean mentionsNow(final BytesReference bytes) throws IOException {
+        final BytesRefIterator iterator = bytes.iterator();
+        int matched = 0;
+        for (BytesRef page = iterator.next(); page != null; page = iterator.next()) {
+            for (int i = page.offset; i < page.offset + page.length; i++) {
+                final byte b = page.bytes[i];
+                if (b == NOW[matched]) {
+                    matched++;
+                    if (matched == NOW.length) {
+                        return true;
+                    }
+                } else {
+                    matched = b == NOW[0] ? 1 : 0;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the request that resolves "now" to the given time.
+     * The time can only be given to the constructor, so the copy is built
+     * from a search request holding the values of the original one.
+     */
+    static ShardSearchTransportRequest withNow(final ShardSearchTransportRequest request, final long nowInMillis) {
+        // requests of nodes before 6.3 may not say whether partial results are allowed, which was the default
+        final Boolean allowPartialSearchResults = request.allowPartialSearchResults();
+        final SearchRequest searchRequest = new SearchRequest().searchType(request.searchType()).scroll(request.scroll())
+                .types(request.types()).source(request.source()).requestCache(request.requestCache())
+                .allowPartialSearchResults(allowPartialSearchResults == null || allowPartialSearchResults)
+                .preference(request.preference());
+        final ShardSearchTransportRequest copy = new ShardSearchTransportRequest(
+                new OriginalIndices(request.indices(), request.indicesOptions()), searchRequest, request.shardId(),
+                request.numberOfShards(), request.getAliasFilter(), request.indexBoost(), nowInMillis, request.getClusterAlias(),
+                request.indexRoutings());
+        copy.setProfile(request.isProfile());
+        copy.setParentTask(request.getParentTask());
+        return copy;
+    }
+}
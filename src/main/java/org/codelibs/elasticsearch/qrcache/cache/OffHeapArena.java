@@ -0,0 +1,172 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
+
+/**
+ * Fixed-size pages carved out of direct buffer slabs. Slabs are allocated on
+ * demand up to the capacity and are never returned to the JVM; freed pages go
+ * back to a free list and are reused by later responses.
+ */
+public class OffHeapArena {
+
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int PAGES_PER_SLAB = 256;
+
+    private static final int SLAB_SIZE = PAGE_SIZE * PAGES_PER_SLAB;
+
+    private static final long HANDLE_SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(Handle.class);
+
+    private final ByteBuffer[] slabs;
+
+    private final int[] freePages;
+
+    private int freeCount;
+
+    private int allocatedSlabs;
+
+    private volatile long usedPages;
+
+    public OffHeapArena(final long capacity) {
+        final int numSlabs = (int) Math.max(1, capacity / SLAB_SIZE);
+        slabs = new ByteBuffer[numSlabs];
+        freePages = new int[numSlabs * PAGES_PER_SLAB];
+    }
+
+    public long capacity() {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    public long used() {
+        return usedPages * PAGE_SIZE;
+    }
+
+    public static int pages(final int length) {
+        return (length + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    /**
+     * Copies the bytes into newly allocated pages, or returns null if there
+     * are not enough free pages.
+     */
+    public Handle store(final BytesReference bytes) throws IOException {
+        final int length = bytes.length();
+        final int[] pages = allocate(pages(length));
+        if (pages == null) {
+            return null;
+        }
+        final BytesRefIterator iterator = bytes.iterator();
+        int pos = 0;
+        BytesRef ref;
+        while ((ref = iterator.next()) != null) {
+            int offset = ref.offset;
+            int remaining = ref.length;
+            while (remaining > 0) {
+                final int pageOffset = pos % PAGE_SIZE;
+                final int len = Math.min(remaining, PAGE_SIZE - pageOffset);
+                final ByteBuffer buffer = page(pages[pos / PAGE_SIZE], pageOffset);
+                buffer.put(ref.bytes, offset, len);
+                offset += len;
+                remaining -= len;
+                pos += len;
+            }
+        }
+        return new Handle(pages, length);
+    }
+
+    private ByteBuffer page(final int page, final int pageOffset) {
+        final ByteBuffer buffer = slabs[page / PAGES_PER_SLAB].duplicate();
+        buffer.position((page % PAGES_PER_SLAB) * PAGE_SIZE + pageOffset);
+        return buffer;
+    }
+
+    private synchronized int[] allocate(final int count) {
+        while (freeCount < count && allocatedSlabs < slabs.length) {
+            slabs[allocatedSlabs] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            for (int i = PAGES_PER_SLAB - 1; i >= 0; i--) {
+                freePages[freeCount++] = allocatedSlabs * PAGES_PER_SLAB + i;
+            }
+            allocatedSlabs++;
+        }
+        if (freeCount < count) {
+            return null;
+        }
+        final int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = freePages[--freeCount];
+        }
+        usedPages += count;
+        return pages;
+    }
+
+    private synchronized void release(final int[] pages) {
+        for (final int page : pages) {
+            freePages[freeCount++] = page;
+        }
+        usedPages -= pages.length;
+    }
+
+    /**
+     * A response stored in the arena. The pages go back to the free list when
+     * the cache has released the handle and no reader is copying from it.
+     */
+    public class Handle extends AbstractRefCounted {
+
+        private final int[] pages;
+
+        private final int length;
+
+        Handle(final int[] pages, final int length) {
+            super("off_heap_response");
+            this.pages = pages;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public long allocated() {
+            return (long) pages.length * PAGE_SIZE;
+        }
+
+        public long ramBytesUsed() {
+            return HANDLE_SHALLOW_SIZE + RamUsageEstimator.sizeOf(pages);
+        }
+
+        /**
+         * Returns a heap copy of the stored bytes, or null if the handle has
+         * already been released.
+         */
+        public BytesReference read() {
+            if (!tryIncRef()) {
+                return null;
+            }
+            try {
+                final byte[] bytes = new byte[length];
+                int pos = 0;
+                for (final int page : pages) {
+                    final int len = Math.min(PAGE_SIZE, length - pos);
+                    page(page, 0).get(bytes, pos, len);
+                    pos += len;
+                }
+                return new BytesArray(bytes);
+            } finally {
+                decRef();
+            }
+        }
+
+        @Override
+        protected void closeInternal() {
+            release(pages);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import com.google.common.cache.AbstractCache;
+
+/**
+ * A cache split into one {@link BoundedCache} per partition, so that a
+ * partition only evicts its own entries. The maxima of the partitions are
+ * rebalanced on every clean up and when a partition is created: each one gets
+ * its reserved share if it needs it, the rest of the budget is divided
+ * max-min fairly by demand, and capacity nobody asks for is spread evenly up
+ * to each partition's maximum share. A partition that fills most of its
+ * maximum asks for as much as its maximum share allows; otherwise it asks for
+ * a quarter more than it uses. A new partition starts with its reserved share
+ * and keeps it until the next clean up, so that its first entries are not
+ * evicted before it had a chance to fill.
+ */
+public class PartitionedCache<K, V> extends AbstractCache<K, V> {
+
+    private static final double PRESSURE_RATIO = 0.9;
+
+    private volatile long budget;
+
+    private final Function<K, String> partitioner;
+
+    private final Factory<K, V> factory;
+
+    private volatile long expireAfterAccessNanos = -1;
+
+    private final ToDoubleFunction<String> minShare;
+
+    private final ToDoubleFunction<String> maxShare;
+
+    private final Predicate<String> active;
+
+    private final ConcurrentMap<String, BoundedCache<K, V>> partitions = ConcurrentCollections.newConcurrentMap();
+
+    private final Set<String> created = new HashSet<>();
+
+    private ConcurrentMap<K, V> asMap;
+
+    /**
+     * @param factory creates an empty partition
+     * @param minShare the reserved share of the budget of a partition
+     * @param maxShare the largest share of the budget a partition may use
+     * @param active whether an empty partition is kept on clean up
+     */
+    public PartitionedCache(final long budget, final Function<K, String> partitioner, final Factory<K, V> factory,
+            final ToDoubleFunction<String> minShare, final ToDoubleFunction<String> maxShare, final Predicate<String> active) {
+        this.budget = budget;
+        this.partitioner = partitioner;
+        this.factory = factory;
+        this.minShare = minShare;
+        this.maxShare = maxShare;
+        this.active = active;
+    }
+
+    @Override
+    public V getIfPresent(final Object key) {
+        @SuppressWarnings("unchecked")
+        final BoundedCache<K, V> partition = partitions.get(partitioner.apply((K) key));
+        return partition == null ? null : partition.getIfPresent(key);
+    }
+
+    @Override
+    public void put(final K key, final V value) {
+        put(key, partition -> {
+            partition.put(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Applies a put to the partition of the key, which is created if needed.
+     */
+    private <T> T put(final K key, final Function<BoundedCache<K, V>, T> put) {
+        final String name = partitioner.apply(key);
+        BoundedCache<K, V> partition = partitions.get(name);
+        if (partition == null) {
+            partition = createPartition(name);
+        }
+        final T result = put.apply(partition);
+        if (partitions.get(name) != partition) {
+            // the partition was dropped by a concurrent clean up
+            partition.invalidate(key);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentMap<K, V> partitionMap(final Object key) {
+        final BoundedCache<K, V> partition = partitions.get(partitioner.apply((K) key));
+        return partition == null ? null : partition.asMap();
+    }
+
+    @Override
+    public void invalidate(final Object key) {
+        @SuppressWarnings("unchecked")
+        final BoundedCache<K, V> partition = partitions.get(partitioner.apply((K) key));
+        if (partition != null) {
+            partition.invalidate(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (final BoundedCache<K, V> partition : partitions.values()) {
+            partition.invalidateAll();
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (final BoundedCache<K, V> partition : partitions.values()) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void cleanUp() {
+        for (final BoundedCache<K, V> partition : partitions.values()) {
+            partition.cleanUp();
+        }
+        partitions.entrySet().removeIf(e -> e.getValue().size() == 0 && !active.test(e.getKey()));
+        synchronized (this) {
+            created.clear();
+            rebalance();
+        }
+    }
+
+    @Override
+    public ConcurrentMap<K, V> asMap() {
+        if (asMap == null) {
+            asMap = new MapView();
+        }
+        return asMap;
+    }
+
+    public void setBudget(final long budget) {
+        this.budget = budget;
+        rebalance();
+    }
+
+    /**
+     * Changes the expiry of all partitions, including the ones created later.
+     */
+    public synchronized void setExpireAfterAccess(final long expireAfterAccessNanos) {
+        this.expireAfterAccessNanos = expireAfterAccessNanos;
+        for (final BoundedCache<K, V> partition : partitions.values()) {
+            partition.setExpireAfterAccess(expireAfterAccessNanos);
+        }
+    }
+
+    /**
+     * Returns the maximum weight of each partition.
+     */
+    public Map<String, Long> maximumWeights() {
+        final Map<String, Long> maximumWeights = new HashMap<>();
+        for (final Map.Entry<String, BoundedCache<K, V>> entry : partitions.entrySet()) {
+            maximumWeights.put(entry.getKey(), entry.getValue().maximumWeight());
+        }
+        return maximumWeights;
+    }
+
+    private synchronized BoundedCache<K, V> createPartition(final String name) {
+        BoundedCache<K, V> partition = partitions.get(name);
+        if (partition == null) {
+            final long budget = this.budget;
+            final long cap = (long) (budget * clamp(maxShare.applyAsDouble(name)));
+            partition = factory.create(Math.min(cap, (long) (budget * clamp(minShare.applyAsDouble(name)))), cap);
+            if (expireAfterAccessNanos >= 0) {
+                partition.setExpireAfterAccess(expireAfterAccessNanos);
+            }
+            partitions.put(name, partition);
+            created.add(name);
+            rebalance();
+        }
+        return partition;
+    }
+
+    synchronized void rebalance() {
+        final long budget = this.budget;
+        final List<String> names = new ArrayList<>(partitions.keySet());
+        final int n = names.size();
+        if (n == 0) {
+            return;
+        }
+        final List<BoundedCache<K, V>> caches = new ArrayList<>(n);
+        final long[] caps = new long[n];
+        final long[] reserved = new long[n];
+        final long[] demands = new long[n];
+        long totalReserved = 0;
+        for (int i = 0; i < n; i++) {
+            final String name = names.get(i);
+            final BoundedCache<K, V> partition = partitions.get(name);
+            caches.add(partition);
+            caps[i] = (long) (budget * clamp(maxShare.applyAsDouble(name)));
+            reserved[i] = Math.min(caps[i], (long) (budget * clamp(minShare.applyAsDouble(name))));
+            totalReserved += reserved[i];
+            final long usage = partition.weightedSize();
+            if (usage >= partition.maximumWeight() * PRESSURE_RATIO) {
+                demands[i] = caps[i];
+            } else {
+                demands[i] = Math.min(caps[i], usage + usage / 4);
+            }
+            if (created.contains(name)) {
+                demands[i] = Math.max(demands[i], reserved[i]);
+            }
+        }
+        if (totalReserved > budget) {
+            // over-committed reservations are scaled down to the budget
+            for (int i = 0; i < n; i++) {
+                reserved[i] = (long) ((double) reserved[i] * budget / totalReserved);
+            }
+        }
+
+        final long[] allocations = new long[n];
+        long remaining = budget;
+        for (int i = 0; i < n; i++) {
+            allocations[i] = Math.min(reserved[i], demands[i]);
+            remaining -= allocations[i];
+        }
+        remaining = fill(allocations, demands, remaining);
+        fill(allocations, caps, remaining);
+
+        // shrink first so that the partitions never hold more than the budget together
+        for (int i = 0; i < n; i++) {
+            if (allocations[i] < caches.get(i).maximumWeight()) {
+                caches.get(i).setMaximumWeight(allocations[i]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (allocations[i] > caches.get(i).maximumWeight()) {
+                caches.get(i).setMaximumWeight(allocations[i]);
+            }
+        }
+    }
+
+    /**
+     * Raises the allocations towards the limits with equal steps, and returns
+     * what is left of the remaining weight.
+     */
+    private static long fill(final long[] allocations, final long[] limits, final long remaining) {
+        long left = remaining;
+        while (left > 0) {
+            int unsatisfied = 0;
+            for (int i = 0; i < allocations.length; i++) {
+                if (allocations[i] < limits[i]) {
+                    unsatisfied++;
+                }
+            }
+            if (unsatisfied == 0) {
+                break;
+            }
+            final long step = Math.max(1, left / unsatisfied);
+            for (int i = 0; i < allocations.length && left > 0; i++) {
+                if (allocations[i] < limits[i]) {
+                    final long add = Math.min(Math.min(step, limits[i] - allocations[i]), left);
+                    allocations[i] += add;
+                    left -= add;
+                }
+            }
+        }
+        return left;
+    }
+
+    private static double clamp(final double share) {
+        return Math.max(0, Math.min(1, share));
+    }
+
+    /**
+     * Creates the cache of a new partition.
+     */
+    @FunctionalInterface
+    public interface Factory<K, V> {
+
+        /**
+         * @param maximumWeight the initial maximum weight of the partition
+         * @param maximumShare the weight of the partition's maximum share of
+         *        the budget when it is created, to size per partition
+         *        structures by
+         */
+        BoundedCache<K, V> create(long maximumWeight, long maximumShare);
+    }
+
+    private final class MapView extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+        @Override
+        public V get(final Object key) {
+            return getIfPresent(key);
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return getIfPresent(key) != null;
+        }
+
+        @Override
+        public V remove(final Object key) {
+            final ConcurrentMap<K, V> map = partitionMap(key);
+            return map == null ? null : map.remove(key);
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, PartitionedCache.this.size());
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    final Iterator<BoundedCache<K, V>> partitionIt = partitions.values().iterator();
+                    return new Iterator<Map.Entry<K, V>>() {
+                        private Iterator<Map.Entry<K, V>> it = Collections.emptyIterator();
+
+                        @Override
+                        public boolean hasNext() {
+                            while (!it.hasNext() && partitionIt.hasNext()) {
+                                it = partitionIt.next().asMap().entrySet().iterator();
+                            }
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<K, V> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            return it.next();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return MapView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public V put(final K key, final V value) {
+            return PartitionedCache.this.put(key, partition -> partition.asMap().put(key, value));
+        }
+
+        @Override
+        public V putIfAbsent(final K key, final V value) {
+            return PartitionedCache.this.put(key, partition -> partition.asMap().putIfAbsent(key, value));
+        }
+
+        @Override
+        public boolean remove(final Object key, final Object value) {
+            final ConcurrentMap<K, V> map = partitionMap(key);
+            return map != null && map.remove(key, value);
+        }
+
+        @Override
+        public boolean replace(final K key, final V oldValue, final V newValue) {
+            final ConcurrentMap<K, V> map = partitionMap(key);
+            return map != null && map.replace(key, oldValue, newValue);
+        }
+
+        @Override
+        public V replace(final K key, final V value) {
+            final ConcurrentMap<K, V> map = partitionMap(key);
+            return map == null ? null : map.replace(key, value);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.transport.TransportResponseHandler;
+
+/**
+ * A shard request in flight and the identical requests waiting for its
+ * response. Waiters can only attach or detach until the response arrives.
+ */
+public class PendingResponse {
+
+    private final long generation;
+
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private boolean completed;
+
+    public PendingResponse(final long generation) {
+        this.generation = generation;
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    public synchronized boolean attach(final Waiter waiter) {
+        if (completed) {
+            return false;
+        }
+        waiters.add(waiter);
+        return true;
+    }
+
+    public synchronized boolean detach(final Waiter waiter) {
+        return !completed && waiters.remove(waiter);
+    }
+
+    public synchronized List<Waiter> complete() {
+        completed = true;
+        return waiters.isEmpty() ? Collections.emptyList() : new ArrayList<>(waiters);
+    }
+
+    public static class Waiter {
+
+        private final TransportResponseHandler<?> handler;
+
+        private final Supplier<ThreadContext.StoredContext> context;
+
+        private final ShardSearchTransportRequest request;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        public Waiter(final TransportResponseHandler<?> handler, final Supplier<ThreadContext.StoredContext> context,
+                final ShardSearchTransportRequest request) {
+            this.handler = handler;
+            this.context = context;
+            this.request = request;
+        }
+
+        public TransportResponseHandler<?> handler() {
+            return handler;
+        }
+
+        public Supplier<ThreadContext.StoredContext> context() {
+            return context;
+        }
+
+        /**
+         * Returns the request of the waiter, which its fetch runs again if the
+         * documents of the response are not cached.
+         */
+        public ShardSearchTransportRequest request() {
+            return request;
+        }
+
+        public void timeout(final ScheduledFuture<?> timeout) {
+            this.timeout = timeout;
+        }
+
+        public void cancelTimeout() {
+            final ScheduledFuture<?> timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+}
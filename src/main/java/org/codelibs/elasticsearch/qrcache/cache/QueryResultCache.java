@@ -1,61 +1,140 @@
 package org.codelibs.elasticsearch.qrcache.cache;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.util.Accountable;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.admin.indices.stats.ShardStats;
+import org.elasticsearch.action.search.SearchTransportService;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.index.shard.ShardId;
-import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.SearchContextMissingException;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchPhaseResult;
+import org.elasticsearch.search.fetch.FetchSearchResult;
+import org.elasticsearch.search.fetch.QueryFetchSearchResult;
+import org.elasticsearch.search.fetch.ShardFetchSearchRequest;
 import org.elasticsearch.search.internal.ShardSearchTransportRequest;
 import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.tasks.TaskId;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.Transport.Connection;
 import org.elasticsearch.transport.TransportException;
 import org.elasticsearch.transport.TransportInterceptor.AsyncSender;
+import org.elasticsearch.transport.TransportRequest;
 import org.elasticsearch.transport.TransportRequestOptions;
 import org.elasticsearch.transport.TransportResponse;
 import org.elasticsearch.transport.TransportResponseHandler;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 
-public class QueryResultCache implements RemovalListener<QueryResultCache.Key, BytesReference> {
+public class QueryResultCache implements RemovalListener<QueryResultCache.Key, CacheValue> {
     private static final Logger logger = LogManager.getLogger(QueryResultCache.class);
 
+    static final int CONCURRENCY_LEVEL = 16;
+
+    private static final int EXPECTED_ENTRY_SIZE = 2048;
+
     private final ThreadPool threadPool;
 
     private final ClusterService clusterService;
 
-    private final TimeValue cleanInterval;
+    private volatile TimeValue cleanInterval;
 
     private final Reaper reaper;
 
-    protected volatile Cache<Key, BytesReference> cache;
+    private final KeyBuilder keyBuilder;
+
+    private final NamedWriteableRegistry namedWriteableRegistry;
+
+    private final boolean decodedHits;
+
+    private final long decodedMaxSize;
+
+    private final AtomicLong decodedMemory = new AtomicLong();
+
+    private final OffHeapArena offHeapArena;
+
+    private final ResponseCompressor compressor;
+
+    private final Client client;
+
+    private final DiskCache diskCache;
+
+    private final Queue<Demotion> demotions = ConcurrentCollections.newQueue();
+
+    private final AtomicInteger pendingDemotions = new AtomicInteger();
+
+    private final AtomicBoolean demoting = new AtomicBoolean();
+
+    /**
+     * The max sequence numbers of primaries that had no write waiting for a
+     * refresh, as of the last poll for demotions.
+     */
+    private volatile Map<ShardId, Long> maxSeqNos = Collections.emptyMap();
 
-    private volatile Set<String> indicesToClean = ConcurrentCollections.newConcurrentSet();
+    protected volatile Cache<Key, CacheValue> cache;
+
+    private volatile Cache<Key, CacheValue> retiredCache;
+
+    private final Set<CacheValue> migrated = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private boolean offHeapMaxSizeLogged;
+
+    private final CacheGenerations generations = new CacheGenerations();
 
     private volatile CounterMetric hitsMetric = new CounterMetric();
 
@@ -63,75 +142,536 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
 
     private volatile CounterMetric evictionsMetric = new CounterMetric();
 
-    public static final Setting<TimeValue> CLEAN_INTERVAL_SETTING =
-            Setting.timeSetting("query_result_cache.clean_interval", TimeValue.timeValueSeconds(10), Property.NodeScope);
+    private volatile CounterMetric diskHitsMetric = new CounterMetric();
+
+    private volatile CounterMetric coalescedMetric = new CounterMetric();
+
+    private volatile CounterMetric missesMetric = new CounterMetric();
+
+    private volatile CounterMetric putsMetric = new CounterMetric();
+
+    private volatile CounterMetric loadTimeMetric = new CounterMetric();
+
+    private volatile CounterMetric sizeEvictionsMetric = new CounterMetric();
+
+    private volatile CounterMetric expiredEvictionsMetric = new CounterMetric();
+
+    private volatile CounterMetric explicitEvictionsMetric = new CounterMetric();
+
+    private final CounterMetric entriesMetric = new CounterMetric();
+
+    private final CounterMetric requestMemoryMetric = new CounterMetric();
+
+    private final CounterMetric responseMemoryMetric = new CounterMetric();
+
+    private final CounterMetric rawSizeMetric = new CounterMetric();
+
+    private final CounterMetric storedSizeMetric = new CounterMetric();
+
+    private final Map<ShardId, ShardCounters> shardCounters = ConcurrentCollections.newConcurrentMap();
+
+    private final Map<Key, PendingResponse> inFlight = ConcurrentCollections.newConcurrentMap();
+
+    private final CachedSearchContexts searchContexts = new CachedSearchContexts();
+
+    private final SearchResponseCache searchResponseCache;
+
+    private final CacheWarmer warmer;
+
+    private final CacheMetrics metrics;
+
+    private volatile CounterMetric fetchHitsMetric = new CounterMetric();
+
+    private volatile CounterMetric fetchMissesMetric = new CounterMetric();
+
+    private final boolean coalesce;
+
+    private final TimeValue coalesceTimeout;
+
+    private final int windowSize;
+
+    private final long minCost;
+
+    private final long softTtl;
+
+    private final long hardTtl;
+
+    private final Set<Key> revalidating = ConcurrentCollections.newConcurrentSet();
+
+    private volatile SearchContextReleaser contextReleaser;
+
+    private volatile CounterMetric staleHitsMetric = new CounterMetric();
+
+    private volatile CounterMetric revalidationsMetric = new CounterMetric();
+
+    private volatile CounterMetric admissionRejectionsMetric = new CounterMetric();
+
+    private volatile CounterMetric savedTimeMetric = new CounterMetric();
+
+    public static final Setting<TimeValue> CLEAN_INTERVAL_SETTING = Setting.timeSetting("query_result_cache.clean_interval",
+            TimeValue.timeValueSeconds(10), Property.NodeScope, Property.Dynamic);
 
     public static final Setting<ByteSizeValue> MAX_SIZE_SETTING =
-            Setting.memorySizeSetting("query_result_cache.max_size", "1%", Property.NodeScope);
+            Setting.memorySizeSetting("query_result_cache.max_size", "1%", Property.NodeScope, Property.Dynamic);
 
     public static final Setting<TimeValue> EXPIRE_SETTING =
-            Setting.timeSetting("query_result_cache.expire", TimeValue.ZERO, Property.NodeScope);
+            Setting.timeSetting("query_result_cache.expire", TimeValue.ZERO, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<String> KEY_MODE_SETTING =
+            new Setting<>("query_result_cache.key_mode", KeyBuilder.FULL, s -> {
+                if (!KeyBuilder.FULL.equals(s) && !KeyBuilder.COMPACT.equals(s)) {
+                    throw new IllegalArgumentException("Unknown key mode: " + s);
+                }
+                return s;
+            }, Property.NodeScope);
+
+    public static final Setting<Boolean> NORMALIZE_KEYS_SETTING =
+            Setting.boolSetting("query_result_cache.normalize_keys", false, Property.NodeScope);
+
+    public static final String HIT_MODE_BYTES = "bytes";
+
+    public static final String HIT_MODE_DECODED = "decoded";
+
+    public static final Setting<String> HIT_MODE_SETTING =
+            new Setting<>("query_result_cache.hit_mode", HIT_MODE_BYTES, s -> {
+                if (!HIT_MODE_BYTES.equals(s) && !HIT_MODE_DECODED.equals(s)) {
+                    throw new IllegalArgumentException("Unknown hit mode: " + s);
+                }
+                return s;
+            }, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> DECODED_MAX_SIZE_SETTING =
+            Setting.memorySizeSetting("query_result_cache.decoded.max_size", "0.5%", Property.NodeScope);
+
+    public static final String STORAGE_HEAP = "heap";
+
+    public static final String STORAGE_OFF_HEAP = "off_heap";
+
+    public static final Setting<String> STORAGE_SETTING =
+            new Setting<>("query_result_cache.storage", STORAGE_HEAP, s -> {
+                if (!STORAGE_HEAP.equals(s) && !STORAGE_OFF_HEAP.equals(s)) {
+                    throw new IllegalArgumentException("Unknown storage: " + s);
+                }
+                return s;
+            }, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> OFF_HEAP_SIZE_SETTING =
+            Setting.byteSizeSetting("query_result_cache.off_heap.size", new ByteSizeValue(512, ByteSizeUnit.MB), Property.NodeScope);
+
+    public static final String POLICY_LRU = "lru";
+
+    public static final String POLICY_TINYLFU = "tinylfu";
+
+    public static final String POLICY_GDS = "gds";
+
+    public static final Setting<String> POLICY_SETTING =
+            new Setting<>("query_result_cache.policy", POLICY_LRU, s -> {
+                if (!POLICY_LRU.equals(s) && !POLICY_TINYLFU.equals(s) && !POLICY_GDS.equals(s)) {
+                    throw new IllegalArgumentException("Unknown policy: " + s);
+                }
+                return s;
+            }, Property.NodeScope);
+
+    public static final Setting<TimeValue> ADMISSION_MIN_COST_SETTING =
+            Setting.timeSetting("query_result_cache.admission.min_cost", TimeValue.ZERO, TimeValue.ZERO, Property.NodeScope);
+
+    public static final Setting<Boolean> COMPRESS_ENABLED_SETTING =
+            Setting.boolSetting("query_result_cache.compress.enabled", false, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> COMPRESS_THRESHOLD_SETTING = Setting.byteSizeSetting(
+            "query_result_cache.compress.threshold", new ByteSizeValue(1, ByteSizeUnit.KB), new ByteSizeValue(0),
+            new ByteSizeValue(Integer.MAX_VALUE), Property.NodeScope);
+
+    public static final Setting<Boolean> COALESCE_ENABLED_SETTING =
+            Setting.boolSetting("query_result_cache.coalesce.enabled", true, Property.NodeScope);
+
+    public static final Setting<TimeValue> COALESCE_TIMEOUT_SETTING =
+            Setting.timeSetting("query_result_cache.coalesce.timeout", TimeValue.timeValueSeconds(30), Property.NodeScope);
+
+    public static final Setting<Integer> WINDOW_SIZE_SETTING =
+            Setting.intSetting("query_result_cache.window_size", 0, 0, Property.NodeScope);
+
+    public static final Setting<TimeValue> STALE_SOFT_TTL_SETTING =
+            Setting.timeSetting("query_result_cache.stale.soft_ttl", TimeValue.ZERO, TimeValue.ZERO, Property.NodeScope);
+
+    public static final Setting<TimeValue> STALE_HARD_TTL_SETTING =
+            Setting.timeSetting("query_result_cache.stale.hard_ttl", TimeValue.timeValueMinutes(1), TimeValue.ZERO, Property.NodeScope);
+
+    public static final Setting<Integer> WARMUP_SIZE_SETTING =
+            Setting.intSetting("query_result_cache.warmup.size", 0, 0, Property.NodeScope);
+
+    public static final Setting<Integer> WARMUP_RATE_SETTING =
+            Setting.intSetting("query_result_cache.warmup.rate", 10, 1, Property.NodeScope);
+
+    public static final Setting<Integer> WARMUP_CONCURRENCY_SETTING =
+            Setting.intSetting("query_result_cache.warmup.concurrency", 1, 1, Property.NodeScope);
+
+    public static final Setting<TimeValue> WARMUP_INDEX_INTERVAL_SETTING =
+            Setting.timeSetting("query_result_cache.warmup.index_interval", TimeValue.timeValueSeconds(30), TimeValue.ZERO,
+                    Property.NodeScope);
+
+    public static final Setting<Integer> METRICS_TOP_KEYS_SETTING =
+            Setting.intSetting("query_result_cache.metrics.top_keys", 10, 0, Property.NodeScope);
+
+    public static final Setting<Boolean> METRICS_SOURCE_LABELS_SETTING =
+            Setting.boolSetting("query_result_cache.metrics.source_labels", false, Property.NodeScope);
+
+    public static final Setting<Boolean> DISK_ENABLED_SETTING =
+            Setting.boolSetting("query_result_cache.disk.enabled", false, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> DISK_SIZE_SETTING =
+            Setting.byteSizeSetting("query_result_cache.disk.size", new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> DISK_SEGMENT_SIZE_SETTING = Setting.byteSizeSetting(
+            "query_result_cache.disk.segment_size", new ByteSizeValue(64, ByteSizeUnit.MB), new ByteSizeValue(1, ByteSizeUnit.MB),
+            new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+
+    private static final int MAX_PENDING_DEMOTIONS = 10000;
+
+    private static final TimeValue SHUTDOWN_POLL_TIMEOUT = TimeValue.timeValueSeconds(5);
+
+    private static final long SEARCH_CONTEXT_KEEP_ALIVE = TimeValue.timeValueMinutes(5).nanos();
+
+    public static final Setting<Boolean> SEARCH_RESPONSE_ENABLED_SETTING =
+            Setting.boolSetting("query_result_cache.search_response.enabled", false, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> SEARCH_RESPONSE_MAX_SIZE_SETTING =
+            Setting.memorySizeSetting("query_result_cache.search_response.max_size", "0.5%", Property.NodeScope);
+
+    public static final Setting<Boolean> PARTITION_ENABLED_SETTING =
+            Setting.boolSetting("query_result_cache.partition.enabled", false, Property.NodeScope);
 
     public static final Setting<Boolean> INDEX_ENABLED_SETTING =
             Setting.boolSetting("index.query_result_cache.enabled", false, Property.IndexScope);
 
-    public QueryResultCache(final Settings settings, final ClusterService clusterService, final ThreadPool threadPool) {
+    public static final Setting<TimeValue> INDEX_NOW_ROUNDING_SETTING = Setting.timeSetting("index.query_result_cache.now_rounding",
+            TimeValue.ZERO, TimeValue.ZERO, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Double> INDEX_PARTITION_MIN_SHARE_SETTING = Setting.doubleSetting(
+            "index.query_result_cache.partition.min_share", 0.0, 0.0, Property.IndexScope, Property.Dynamic);
+
+    public static final Setting<Double> INDEX_PARTITION_MAX_SHARE_SETTING = Setting.doubleSetting(
+            "index.query_result_cache.partition.max_share", 1.0, 0.0, Property.IndexScope, Property.Dynamic);
+
+    public QueryResultCache(final Settings settings, final Client client, final ClusterService clusterService,
+            final ThreadPool threadPool, final NodeEnvironment nodeEnvironment, final NamedWriteableRegistry namedWriteableRegistry) {
+        this.client = client;
         this.clusterService = clusterService;
         this.threadPool = threadPool;
+        this.namedWriteableRegistry = namedWriteableRegistry;
 
         cleanInterval = CLEAN_INTERVAL_SETTING.get(settings);
+        keyBuilder = new KeyBuilder(KEY_MODE_SETTING.get(settings), NORMALIZE_KEYS_SETTING.get(settings));
+        decodedHits = HIT_MODE_DECODED.equals(HIT_MODE_SETTING.get(settings));
+        decodedMaxSize = DECODED_MAX_SIZE_SETTING.get(settings).getBytes();
+        coalesce = COALESCE_ENABLED_SETTING.get(settings);
+        coalesceTimeout = COALESCE_TIMEOUT_SETTING.get(settings);
+        windowSize = WINDOW_SIZE_SETTING.get(settings);
+        minCost = ADMISSION_MIN_COST_SETTING.get(settings).nanos();
+        metrics = new CacheMetrics(METRICS_TOP_KEYS_SETTING.get(settings), METRICS_SOURCE_LABELS_SETTING.get(settings));
+        softTtl = STALE_SOFT_TTL_SETTING.get(settings).nanos();
+        hardTtl = STALE_HARD_TTL_SETTING.get(settings).nanos();
+        if (softTtl > 0 && hardTtl <= softTtl) {
+            throw new IllegalArgumentException(
+                    STALE_HARD_TTL_SETTING.getKey() + " must be greater than " + STALE_SOFT_TTL_SETTING.getKey());
+        }
+        if (STORAGE_OFF_HEAP.equals(STORAGE_SETTING.get(settings))) {
+            offHeapArena = new OffHeapArena(OFF_HEAP_SIZE_SETTING.get(settings).getBytes());
+        } else {
+            offHeapArena = null;
+        }
+        if (COMPRESS_ENABLED_SETTING.get(settings)) {
+            compressor = new ResponseCompressor((int) COMPRESS_THRESHOLD_SETTING.get(settings).getBytes());
+        } else {
+            compressor = null;
+        }
+        diskCache = DISK_ENABLED_SETTING.get(settings) ? openDiskCache(settings, nodeEnvironment) : null;
+        if (SEARCH_RESPONSE_ENABLED_SETTING.get(settings)) {
+            searchResponseCache = new SearchResponseCache(settings, clusterService, namedWriteableRegistry, generations,
+                    keyBuilder);
+        } else {
+            searchResponseCache = null;
+        }
+        if (WARMUP_SIZE_SETTING.get(settings) > 0) {
+            warmer = new CacheWarmer(settings, client, clusterService, threadPool, namedWriteableRegistry,
+                    nodeEnvironment != null ? nodeEnvironment.nodeDataPaths()[0].resolve("qrcache").resolve("hot_keys") : null);
+        } else {
+            warmer = null;
+        }
         buildCache(settings);
 
+        final ClusterSettings clusterSettings = clusterService.getClusterSettings();
+        clusterSettings.addSettingsUpdateConsumer(CLEAN_INTERVAL_SETTING, value -> cleanInterval = value);
+        clusterSettings.addSettingsUpdateConsumer(MAX_SIZE_SETTING, EXPIRE_SETTING, this::resize);
+
         reaper = new Reaper();
         threadPool.schedule(cleanInterval, ThreadPool.Names.SAME, reaper);
 
     }
 
+    private static DiskCache openDiskCache(final Settings settings, final NodeEnvironment nodeEnvironment) {
+        final Path path = nodeEnvironment.nodeDataPaths()[0].resolve("qrcache");
+        try {
+            return new DiskCache(path, DISK_SIZE_SETTING.get(settings).getBytes(),
+                    (int) DISK_SEGMENT_SIZE_SETTING.get(settings).getBytes());
+        } catch (final IOException e) {
+            logger.warn("Failed to open the disk cache in " + path, e);
+            return null;
+        }
+    }
+
     private void buildCache(Settings settings) {
 
-        final long maxWeight = MAX_SIZE_SETTING.get(settings).getBytes();
-        final CacheBuilder<Key, BytesReference> cacheBuilder =
+        final long maxWeight = offHeapArena != null ? offHeapMaxWeight() : MAX_SIZE_SETTING.get(settings).getBytes();
+        final TimeValue expire = EXPIRE_SETTING.get(settings);
+        if (PARTITION_ENABLED_SETTING.get(settings)) {
+            final boolean tinyLfu = POLICY_TINYLFU.equals(POLICY_SETTING.get(settings));
+            final boolean gds = POLICY_GDS.equals(POLICY_SETTING.get(settings));
+            final long expireNanos = TimeUnit.MILLISECONDS.toNanos(expire.millis());
+            cache = new PartitionedCache<>(maxWeight, key -> key.shardId().getIndexName(),
+                    (max, share) -> gds ? new GreedyDualCache<>(max, new QueryCacheWeigher(), CacheValue::costNanos, this, expireNanos)
+                            : new TinyLfuCache<>(max, tinyLfu ? 0.01 : 1.0, new QueryCacheWeigher(), this, expireNanos,
+                                    tinyLfu ? share / EXPECTED_ENTRY_SIZE : 0),
+                    index -> indexSetting(index, INDEX_PARTITION_MIN_SHARE_SETTING),
+                    index -> indexSetting(index, INDEX_PARTITION_MAX_SHARE_SETTING),
+                    index -> clusterService.state().getMetaData().hasIndex(index));
+            return;
+        }
+        if (POLICY_TINYLFU.equals(POLICY_SETTING.get(settings))) {
+            cache = new TinyLfuCache<>(maxWeight, new QueryCacheWeigher(), this, TimeUnit.MILLISECONDS.toNanos(expire.millis()),
+                    maxWeight / EXPECTED_ENTRY_SIZE);
+            return;
+        }
+        if (POLICY_GDS.equals(POLICY_SETTING.get(settings))) {
+            cache = new GreedyDualCache<>(maxWeight, new QueryCacheWeigher(), CacheValue::costNanos, this,
+                    TimeUnit.MILLISECONDS.toNanos(expire.millis()));
+            return;
+        }
+
+        cache = buildLruCache(maxWeight, expire);
+    }
+
+    private Cache<Key, CacheValue> buildLruCache(final long maxWeight, final TimeValue expire) {
+        final CacheBuilder<Key, CacheValue> cacheBuilder =
                 CacheBuilder.newBuilder().maximumWeight(maxWeight).weigher(new QueryCacheWeigher()).removalListener(this);
 
-        cacheBuilder.concurrencyLevel(16);
+        cacheBuilder.concurrencyLevel(CONCURRENCY_LEVEL);
 
-        final TimeValue expire = EXPIRE_SETTING.get(settings);
         if (!expire.equals(TimeValue.ZERO)) {
             cacheBuilder.expireAfterAccess(expire.millis(), TimeUnit.MILLISECONDS);
         }
 
-        cache = cacheBuilder.build();
+        return cacheBuilder.build();
+    }
+
+    /**
+     * Guava evicts only after a new entry is in, so one segment's share of
+     * the arena is kept free for the pages of the entry being added.
+     */
+    private long offHeapMaxWeight() {
+        return offHeapArena.capacity() - offHeapArena.capacity() / CONCURRENCY_LEVEL;
+    }
+
+    /**
+     * Applies new max_size and expire values to the live cache. Our own
+     * caches are resized in place. Guava's cache can not be changed, so it is
+     * replaced and its entries are moved to the new one from the least to the
+     * most recently used; a smaller cache evicts the ones used longest ago.
+     */
+    synchronized void resize(final ByteSizeValue maxSize, final TimeValue expire) {
+        final long maxWeight;
+        if (offHeapArena != null) {
+            if (!offHeapMaxSizeLogged) {
+                offHeapMaxSizeLogged = true;
+                logger.info("query_result_cache.max_size does not apply to off-heap storage, using query_result_cache.off_heap.size");
+            }
+            maxWeight = offHeapMaxWeight();
+        } else {
+            maxWeight = maxSize.getBytes();
+        }
+        final long expireNanos = TimeUnit.MILLISECONDS.toNanos(expire.millis());
+        final Cache<Key, CacheValue> current = cache;
+        if (current instanceof PartitionedCache) {
+            ((PartitionedCache<Key, CacheValue>) current).setExpireAfterAccess(expireNanos);
+            ((PartitionedCache<Key, CacheValue>) current).setBudget(maxWeight);
+        } else if (current instanceof BoundedCache) {
+            ((BoundedCache<Key, CacheValue>) current).setExpireAfterAccess(expireNanos);
+            ((BoundedCache<Key, CacheValue>) current).setMaximumWeight(maxWeight);
+        } else {
+            final Cache<Key, CacheValue> rebuilt = buildLruCache(maxWeight, expire);
+            cache = rebuilt;
+            final List<Map.Entry<Key, CacheValue>> entries = new ArrayList<>(current.asMap().entrySet());
+            entries.sort((e1, e2) -> Long.compare(e1.getValue().accessedNanos() - e2.getValue().accessedNanos(), 0));
+            // values that move to the new cache are not released when the old one drops them
+            for (final Map.Entry<Key, CacheValue> entry : entries) {
+                migrated.add(entry.getValue());
+            }
+            current.invalidateAll();
+            migrated.clear();
+            for (final Map.Entry<Key, CacheValue> entry : entries) {
+                if (rebuilt.asMap().putIfAbsent(entry.getKey(), entry.getValue()) != null) {
+                    onRemoval(RemovalNotification.create(entry.getKey(), entry.getValue(), RemovalCause.REPLACED));
+                }
+            }
+            // entries put by requests that still saw the old cache are removed by the reaper
+            retiredCache = current;
+        }
+        logger.info("Resized the query result cache to {} bytes, expire {}", maxWeight, expire);
+    }
+
+    private double indexSetting(final String index, final Setting<Double> setting) {
+        final IndexMetaData indexMetaData = clusterService.state().getMetaData().index(index);
+        return setting.get(indexMetaData == null ? Settings.EMPTY : indexMetaData.getSettings());
     }
 
     public QueryResultCacheStats stats() {
-        long reqMemSize = 0;
-        long resMemSize = 0;
-        for (final Map.Entry<Key, BytesReference> entry : cache.asMap().entrySet()) {
-            reqMemSize += entry.getKey().ramBytesUsed();
-            resMemSize += entry.getValue().length();
+        final QueryResultCacheStats stats = new QueryResultCacheStats(entriesMetric.count(), requestMemoryMetric.count(),
+                responseMemoryMetric.count(), totalMetric.count(), hitsMetric.count(), evictionsMetric.count());
+        stats.misses = missesMetric.count();
+        stats.puts = putsMetric.count();
+        stats.loadTime = TimeUnit.NANOSECONDS.toMillis(loadTimeMetric.count());
+        stats.sizeEvictions = sizeEvictionsMetric.count();
+        stats.expiredEvictions = expiredEvictionsMetric.count();
+        stats.explicitEvictions = explicitEvictionsMetric.count();
+        stats.decodedMemory = decodedMemory.get();
+        if (offHeapArena != null) {
+            stats.offHeapSize = offHeapArena.capacity();
+            stats.offHeapUsed = offHeapArena.used();
         }
-        return new QueryResultCacheStats(cache.size(), reqMemSize, resMemSize, totalMetric.count(), hitsMetric.count(),
-                evictionsMetric.count());
+        if (diskCache != null) {
+            stats.diskCount = diskCache.count();
+            stats.diskSize = diskCache.sizeInBytes();
+            stats.diskHits = diskHitsMetric.count();
+        }
+        stats.coalesced = coalescedMetric.count();
+        stats.staleHits = staleHitsMetric.count();
+        stats.revalidations = revalidationsMetric.count();
+        stats.admissionRejections = admissionRejectionsMetric.count();
+        stats.savedTime = TimeUnit.NANOSECONDS.toMillis(savedTimeMetric.count());
+        stats.fetchHits = fetchHitsMetric.count();
+        stats.fetchMisses = fetchMissesMetric.count();
+        if (warmer != null) {
+            stats.hotKeys = warmer.hotKeys();
+            stats.warmups = warmer.warmups();
+        }
+        if (searchResponseCache != null) {
+            stats.searchResponseCount = searchResponseCache.count();
+            stats.searchResponseMemorySize = searchResponseCache.memorySizeInBytes();
+            stats.searchResponseHits = searchResponseCache.hits();
+            stats.searchResponseMisses = searchResponseCache.misses();
+        }
+        stats.rawSize = rawSizeMetric.count();
+        stats.storedSize = storedSizeMetric.count();
+        if (compressor != null) {
+            stats.compressTime = TimeUnit.NANOSECONDS.toMillis(compressor.compressTimeInNanos());
+            stats.decompressTime = TimeUnit.NANOSECONDS.toMillis(compressor.decompressTimeInNanos());
+        }
+        return stats;
+    }
+
+    public Map<ShardId, QueryResultCacheStats> shardStats() {
+        final Map<ShardId, QueryResultCacheStats> stats = new HashMap<>();
+        for (final Map.Entry<ShardId, ShardCounters> entry : shardCounters.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().stats());
+        }
+        return stats;
     }
 
-    private static class QueryCacheWeigher implements Weigher<Key, BytesReference> {
+    /**
+     * Returns the cache of final search responses, or null if it is disabled.
+     */
+    public SearchResponseCache searchResponseCache() {
+        return searchResponseCache;
+    }
+
+    public CacheWarmer warmer() {
+        return warmer;
+    }
+
+    public CacheMetrics metrics() {
+        return metrics;
+    }
+
+    void setContextReleaser(final SearchContextReleaser contextReleaser) {
+        this.contextReleaser = contextReleaser;
+    }
+
+    private ShardCounters counters(final ShardId shardId) {
+        return shardCounters.computeIfAbsent(shardId, k -> new ShardCounters());
+    }
+
+    private static class QueryCacheWeigher implements Weigher<Key, CacheValue> {
         @Override
-        public int weigh(final Key key, final BytesReference value) {
-            return (int) (key.ramBytesUsed() + value.length());
+        public int weigh(final Key key, final CacheValue value) {
+            return (int) (key.ramBytesUsed() + value.weight());
         }
     }
 
     public void close() {
         reaper.close();
+        if (warmer != null) {
+            warmer.save();
+        }
+        if (diskCache != null) {
+            for (final Map.Entry<Key, CacheValue> entry : cache.asMap().entrySet()) {
+                demote(entry.getKey(), entry.getValue());
+            }
+            final PlainActionFuture<Map<ShardId, Long>> future = PlainActionFuture.newFuture();
+            pollMaxSeqNos(demotedIndices(), future);
+            try {
+                maxSeqNos = future.actionGet(SHUTDOWN_POLL_TIMEOUT);
+            } catch (final Exception e) {
+                logger.debug("Failed to get sequence numbers for the disk cache.", e);
+            }
+            drainDemotions();
+            diskCache.close();
+        }
         cache.invalidateAll();
     }
 
     @Override
-    public void onRemoval(final RemovalNotification<Key, BytesReference> notification) {
-        if (notification.getKey() == null) {
+    public void onRemoval(final RemovalNotification<Key, CacheValue> notification) {
+        final Key key = notification.getKey();
+        final CacheValue value = notification.getValue();
+        if (key == null || value == null) {
+            return;
+        }
+        if (!migrated.isEmpty() && migrated.remove(value)) {
             return;
         }
+        if (diskCache != null && notification.getCause() == RemovalCause.SIZE) {
+            demote(key, value);
+            flushDemotions();
+        }
+        decodedMemory.addAndGet(-value.release());
+
+        final ShardCounters counters = counters(key.shardId());
+        entriesMetric.dec();
+        counters.entries.dec();
+        requestMemoryMetric.dec(key.ramBytesUsed());
+        counters.requestMemory.dec(key.ramBytesUsed());
+        responseMemoryMetric.dec(value.heapBytesUsed());
+        counters.responseMemory.dec(value.heapBytesUsed());
+        rawSizeMetric.dec(value.rawLength());
+        counters.rawSize.dec(value.rawLength());
+        storedSizeMetric.dec(value.length());
+        counters.storedSize.dec(value.length());
         evictionsMetric.inc();
+        counters.evictions.inc();
+        switch (notification.getCause()) {
+        case SIZE:
+            sizeEvictionsMetric.inc();
+            metrics.evictions.inc();
+            break;
+        case EXPIRED:
+            expiredEvictionsMetric.inc();
+            metrics.evictions.inc();
+            break;
+        default:
+            // explicit invalidation, replacement or collection
+            explicitEvictionsMetric.inc();
+            break;
+        }
     }
 
     public boolean canCache(final ShardSearchTransportRequest request) {
@@ -144,38 +684,407 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
         if (!INDEX_ENABLED_SETTING.get(index.getSettings())) {
             return false;
         }
+        if (request.scroll() != null) {
+            // scroll contexts are kept open on the data node and can not be served from the cache
+            return false;
+        }
         return true;
     }
 
     public <T extends TransportResponse> void sendCacheRequest(final Connection connection, final String action,
             final ShardSearchTransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
             final AsyncSender sender) {
+        final IndexMetaData index = clusterService.state().getMetaData().index(request.shardId().getIndex());
+        final Settings indexSettings = index != null ? index.getSettings() : Settings.EMPTY;
+        final long nowRounding = INDEX_NOW_ROUNDING_SETTING.get(indexSettings).millis();
+        ShardSearchTransportRequest shardRequest = request;
+        if (nowRounding > 0) {
+            shardRequest = NowRounding.withNow(request, NowRounding.round(request.nowInMillis(), nowRounding));
+        }
+        final ResultWindow window = windowSize > 0
+                ? ResultWindow.widen(shardRequest, windowSize, IndexSettings.MAX_RESULT_WINDOW_SETTING.get(indexSettings))
+                : null;
+        if (window != null) {
+            sendQueryRequest(connection, action, window.request(), options, window.wrap(handler), sender, nowRounding > 0);
+        } else {
+            sendQueryRequest(connection, action, shardRequest, options, handler, sender, nowRounding > 0);
+        }
+    }
+
+    private <T extends TransportResponse> void sendQueryRequest(final Connection connection, final String action,
+            final ShardSearchTransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender, final boolean keyNow) {
+        final long startTime = System.nanoTime();
         try {
-            final Key key = new Key(request);
+            final Key key = keyBuilder.build(request, keyNow);
+            final boolean queryFetch = request.numberOfShards() == 1;
+            final long generation = generations.get(request.shardId());
+            final ShardCounters counters = counters(request.shardId());
             totalMetric.inc();
-            final BytesReference value = cache.getIfPresent(key);
+            counters.total.inc();
+            metrics.request(key, request.source());
+            CacheValue value = lookup(key);
+            boolean stale = false;
             if (value != null) {
+                final long age = System.nanoTime() - value.createdNanos();
+                if (softTtl > 0 && age < hardTtl && (value.generation() != generation
+                        ? !generations.cleared(request.shardId(), value.generation()) : age >= softTtl)) {
+                    stale = true;
+                } else if (value.generation() != generation || softTtl > 0 && age >= hardTtl) {
+                    cache.invalidate(key);
+                    value = null;
+                }
+            }
+            // a single shard is fetched from together with the query, other hits refer to a context of this node
+            final long contextId = queryFetch ? 0 : searchContexts.nextId();
+            SearchPhaseResult response = value != null ? read(value, queryFetch, contextId) : null;
+            if (response != null && stale && value.generation() != generation && !queryFetch
+                    && response.queryResult().hasSearchContext()) {
+                // the documents of an invalidated response may have changed, so its hits can not be fetched
+                cache.invalidate(key);
+                response = null;
+                stale = false;
+            }
+            if (response == null && diskCache != null) {
+                final BytesReference bytes = readFromDisk(key, generation);
+                response = bytes != null ? readFromCache(bytes, queryFetch, contextId) : null;
+            }
+            if (response != null) {
                 hitsMetric.inc();
-                final QuerySearchResult response = readFromCache(value);
+                counters.hits.inc();
+                if (value != null) {
+                    savedTimeMetric.inc(value.costNanos());
+                }
+                if (!queryFetch && response.queryResult().hasSearchContext()) {
+                    searchContexts.register(contextId,
+                            new CachedSearchContexts.Context(key, generation, response.queryResult().topDocs().scoreDocs, request));
+                }
+                if (stale) {
+                    staleHitsMetric.inc();
+                    metrics.staleHits.inc();
+                    generations.staleRead();
+                    revalidate(connection, action, request, options, handler, sender, key);
+                }
                 if (logger.isDebugEnabled()) {
-                    logger.debug("Read cached response for {}/{}/{}: {}", response.getShardIndex(), response.getRequestId(),
-                            response.getTotalHits());
+                    logger.debug("Read cached response for {}/{}: {}", request.shardId(), response.getRequestId(),
+                            response.queryResult().getTotalHits());
                 }
+                metrics.hit(key, request.source(), value != null ? value.length() : 0, System.nanoTime() - startTime);
                 @SuppressWarnings("unchecked")
                 T res = (T) response;
                 handler.handleResponse(res);
+            } else if (coalesce) {
+                missesMetric.inc();
+                counters.misses.inc();
+                metrics.misses.inc();
+                // waiters get synthetic contexts like cache hits, the live search context is the sender's only
+                final PendingResponse created = new PendingResponse(generation);
+                final PendingResponse existing = inFlight.putIfAbsent(key, created);
+                if (existing == null) {
+                    sendRequest(connection, action, request, options, handler, sender, key, generation, created);
+                } else if (existing.generation() != generation
+                        || !attach(existing, connection, action, request, options, handler, sender, key, generation)) {
+                    sendRequest(connection, action, request, options, handler, sender, key, generation, null);
+                }
             } else {
-                sender.sendRequest(connection, action, request, options, new TransportResponseHandler<T>() {
+                missesMetric.inc();
+                counters.misses.inc();
+                metrics.misses.inc();
+                sendRequest(connection, action, request, options, handler, sender, key, generation, null);
+            }
+        } catch (final IOException e) {
+            handler.handleException(new TransportException(e));
+        }
+    }
+
+    private <T extends TransportResponse> void sendRequest(final Connection connection, final String action,
+            final ShardSearchTransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender, final Key key, final long generation, final PendingResponse pending) {
+        final long startTime = System.nanoTime();
+        sender.sendRequest(connection, action, request, options, new TransportResponseHandler<T>() {
+
+            @Override
+            public T read(final StreamInput in) throws IOException {
+                return handler.read(in);
+            }
+
+            @Override
+            public void handleResponse(final T response) {
+                final long took = System.nanoTime() - startTime;
+                loadTimeMetric.inc(took);
+                metrics.missLatency.record(took / 1000);
+                final List<PendingResponse.Waiter> waiters = complete(key, pending);
+                final SearchPhaseResult result = (SearchPhaseResult) response;
+                final boolean queryFetch = request.numberOfShards() == 1;
+                final BytesReference bytes;
+                try {
+                    bytes = onCache(key, generation, result, !waiters.isEmpty(), took);
+                } catch (final IOException e) {
+                    logger.warn("Failed to write a responses to the cache.", e);
+                    handler.handleResponse(response);
+                    fanOut(waiters, null, queryFetch, key, generation, new TransportException(e));
+                    return;
+                }
+                if (bytes != null && !queryFetch && result.queryResult().hasSearchContext()) {
+                    searchContexts.registerLive(connection.getNode().getId(), result.getRequestId(),
+                            new CachedSearchContexts.Context(key, generation, result.queryResult().topDocs().scoreDocs, null));
+                }
+                handler.handleResponse(response);
+                fanOut(waiters, bytes, queryFetch, key, generation, null);
+            }
+
+            @Override
+            public void handleException(final TransportException exp) {
+                final List<PendingResponse.Waiter> waiters = complete(key, pending);
+                handler.handleException(exp);
+                fanOut(waiters, null, false, key, generation, exp);
+            }
+
+            @Override
+            public String executor() {
+                return handler.executor();
+            }
+        });
+    }
+
+    /**
+     * Sends the request of a stale entry again in the background and replaces
+     * the entry with the response. A key is revalidated by one request at a
+     * time, and the search context the query leaves on the data node is freed.
+     */
+    private <T extends TransportResponse> void revalidate(final Connection connection, final String action,
+            final ShardSearchTransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender, final Key key) {
+        if (!revalidating.add(key)) {
+            return;
+        }
+        final long generation = generations.get(key.shardId());
+        final ShardSearchTransportRequest copy = NowRounding.withNow(request, request.nowInMillis());
+        // the search that read the stale entry may complete before the revalidation
+        copy.setParentTask(TaskId.EMPTY_TASK_ID);
+        revalidationsMetric.inc();
+        final long startTime = System.nanoTime();
+        sender.sendRequest(connection, action, copy, options, new TransportResponseHandler<T>() {
+
+            @Override
+            public T read(final StreamInput in) throws IOException {
+                return handler.read(in);
+            }
+
+            @Override
+            public void handleResponse(final T response) {
+                revalidating.remove(key);
+                final SearchPhaseResult result = (SearchPhaseResult) response;
+                try {
+                    if (onCache(key, generation, result, false, System.nanoTime() - startTime) == null) {
+                        // not cacheable any more, do not serve the stale entry until the hard TTL
+                        cache.invalidate(key);
+                    }
+                } catch (final IOException e) {
+                    logger.debug("Failed to write a revalidated response to the cache.", e);
+                }
+                final SearchContextReleaser releaser = contextReleaser;
+                if (request.numberOfShards() != 1 && result.queryResult().hasSearchContext() && releaser != null) {
+                    releaser.release(connection, result.getRequestId(),
+                            new OriginalIndices(request.indices(), request.indicesOptions()));
+                }
+            }
+
+            @Override
+            public void handleException(final TransportException exp) {
+                revalidating.remove(key);
+                logger.debug("Failed to revalidate a cached response of " + key.shardId(), exp);
+            }
+
+            @Override
+            public String executor() {
+                return ThreadPool.Names.GENERIC;
+            }
+        });
+    }
+
+    private <T extends TransportResponse> boolean attach(final PendingResponse pending, final Connection connection,
+            final String action, final ShardSearchTransportRequest request, final TransportRequestOptions options,
+            final TransportResponseHandler<T> handler, final AsyncSender sender, final Key key, final long generation) {
+        final Supplier<ThreadContext.StoredContext> context = threadPool.getThreadContext().newRestorableContext(false);
+        final PendingResponse.Waiter waiter = new PendingResponse.Waiter(handler, context, request);
+        if (!pending.attach(waiter)) {
+            return false;
+        }
+        coalescedMetric.inc();
+        metrics.coalesced.inc();
+        try {
+            waiter.timeout(threadPool.schedule(coalesceTimeout, ThreadPool.Names.GENERIC, () -> {
+                if (pending.detach(waiter)) {
+                    logger.debug("Timed out waiting for an identical in-flight request, sending {}", key.shardId());
+                    try (ThreadContext.StoredContext ignore = context.get()) {
+                        sendRequest(connection, action, request, options, handler, sender, key, generation, null);
+                    }
+                }
+            }));
+        } catch (final EsRejectedExecutionException e) {
+            logger.debug("Can not schedule a coalescing timeout - execution rejected", e);
+        }
+        return true;
+    }
+
+    private List<PendingResponse.Waiter> complete(final Key key, final PendingResponse pending) {
+        if (pending == null) {
+            return Collections.emptyList();
+        }
+        inFlight.remove(key, pending);
+        return pending.complete();
+    }
+
+    /**
+     * Passes the response of a coalesced request on to its waiters. Each of
+     * them gets a synthetic search context, so that its fetch is answered
+     * from the cached documents like the fetch of a cache hit.
+     */
+    @SuppressWarnings("unchecked")
+    private void fanOut(final List<PendingResponse.Waiter> waiters, final BytesReference bytes, final boolean queryFetch,
+            final Key key, final long generation, final TransportException failure) {
+        for (final PendingResponse.Waiter waiter : waiters) {
+            waiter.cancelTimeout();
+            @SuppressWarnings("rawtypes")
+            final TransportResponseHandler handler = waiter.handler();
+            try {
+                threadPool.executor(handler.executor()).execute(() -> {
+                    try (ThreadContext.StoredContext ignore = waiter.context().get()) {
+                        if (failure != null) {
+                            handler.handleException(failure);
+                            return;
+                        }
+                        final long contextId = queryFetch ? 0 : searchContexts.nextId();
+                        final SearchPhaseResult result;
+                        try {
+                            result = readFromCache(bytes, queryFetch, contextId);
+                        } catch (final IOException e) {
+                            handler.handleException(new TransportException(e));
+                            return;
+                        }
+                        if (!queryFetch && result.queryResult().hasSearchContext()) {
+                            searchContexts.register(contextId, new CachedSearchContexts.Context(key, generation,
+                                    result.queryResult().topDocs().scoreDocs, waiter.request()));
+                        }
+                        handler.handleResponse(result);
+                    }
+                });
+            } catch (final EsRejectedExecutionException e) {
+                handler.handleException(new TransportException(e));
+            }
+        }
+    }
+
+    /**
+     * Sends a fetch request, answering it from the cache if it refers to a
+     * cached query response. The first fetch from a response fetches and
+     * caches all of its top documents, and every fetch picks its hits from
+     * them. A fetch for a context of this node that is not cached runs the
+     * query again on the data node.
+     */
+    public <T extends TransportResponse> void sendFetchRequest(final Connection connection, final String action,
+            final ShardFetchSearchRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender) {
+        final CachedSearchContexts.Context context = searchContexts.remove(connection.getNode().getId(), request.id());
+        if (context == null) {
+            if (CachedSearchContexts.isSynthetic(request.id())) {
+                // dropped after the keep alive, like an expired context
+                handler.handleException(new TransportException(new SearchContextMissingException(request.id())));
+            } else {
+                sender.sendRequest(connection, action, request, options, handler);
+            }
+            return;
+        }
+        final int[] docIds = context.docIds();
+        if (!ResultWindow.covers(docIds, request)) {
+            // not a fetch the coordinating node derived from the cached top docs
+            if (CachedSearchContexts.isSynthetic(request.id())) {
+                handler.handleException(new TransportException(new SearchContextMissingException(request.id())));
+            } else {
+                sender.sendRequest(connection, action, request, options, handler);
+            }
+            return;
+        }
+        try {
+            final ShardFetchSearchRequest fetchAll = ResultWindow.fetchAll(request, docIds);
+            final Key key = keyBuilder.build(context.key, fetchAll);
+            CacheValue value = lookup(key);
+            if (value != null && value.generation() != context.generation) {
+                if (value.generation() != generations.get(key.shardId())) {
+                    cache.invalidate(key);
+                }
+                value = null;
+            }
+            BytesReference bytes = value != null ? bytes(value) : null;
+            if (bytes == null && diskCache != null) {
+                bytes = readFromDisk(key, context.generation);
+            }
+            if (bytes != null) {
+                fetchHitsMetric.inc();
+                metrics.fetchHits.inc();
+                if (value != null) {
+                    savedTimeMetric.inc(value.costNanos());
+                }
+                @SuppressWarnings("unchecked")
+                final T response = (T) ResultWindow.pick(readFetchResult(bytes, request.id()), docIds, request);
+                handler.handleResponse(response);
+                return;
+            }
+            fetchMissesMetric.inc();
+            metrics.fetchMisses.inc();
+            if (CachedSearchContexts.isSynthetic(request.id())) {
+                requery(connection, action, request, options, handler, sender, key, context);
+            } else {
+                sendFetch(connection, action, fetchAll, options, ResultWindow.picking(handler, docIds, request), sender, key,
+                        context.generation, System.nanoTime());
+            }
+        } catch (final IOException e) {
+            handler.handleException(new TransportException(e));
+        }
+    }
+
+    /**
+     * Runs the query of a cached response again to fetch its documents. Doc
+     * ids hold for the reader the response was computed on only, so the top
+     * documents of the new context are fetched in their place if they rank the
+     * same hits; otherwise the cached response is dropped and the fetch fails
+     * like one for an expired context.
+     */
+    private <T extends TransportResponse> void requery(final Connection connection, final String action,
+            final ShardFetchSearchRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender, final Key key, final CachedSearchContexts.Context context) {
+        final long startTime = System.nanoTime();
+        final ShardSearchTransportRequest query = NowRounding.withNow(context.request, context.request.nowInMillis());
+        query.setParentTask(request.getParentTask());
+        sender.sendRequest(connection, SearchTransportService.QUERY_ACTION_NAME, query, options,
+                new TransportResponseHandler<QuerySearchResult>() {
 
                     @Override
-                    public T read(final StreamInput in) throws IOException {
-                        return handler.read(in);
+                    public QuerySearchResult read(final StreamInput in) throws IOException {
+                        return new QuerySearchResult(in);
                     }
 
                     @Override
-                    public void handleResponse(final T response) {
-                        onCache(key, (QuerySearchResult) response);
-                        handler.handleResponse(response);
+                    public void handleResponse(final QuerySearchResult response) {
+                        final ScoreDoc[] scoreDocs = response.hasSearchContext() ? response.topDocs().scoreDocs : null;
+                        if (scoreDocs == null || !context.sameRanking(scoreDocs)) {
+                            final SearchContextReleaser releaser = contextReleaser;
+                            if (scoreDocs != null && releaser != null) {
+                                releaser.release(connection, response.getRequestId(),
+                                        new OriginalIndices(request.indices(), request.indicesOptions()));
+                            }
+                            drop(context.key);
+                            handler.handleException(new TransportException(new SearchContextMissingException(request.id())));
+                            return;
+                        }
+                        final int[] docIds = new int[scoreDocs.length];
+                        for (int i = 0; i < docIds.length; i++) {
+                            docIds[i] = scoreDocs[i].doc;
+                        }
+                        // hits come back in the order of the documents, the same as the cached ones
+                        sendFetch(connection, action, ResultWindow.fetchAll(request, response.getRequestId(), docIds), options,
+                                ResultWindow.picking(handler, context.docIds(), request), sender, key, context.generation, startTime);
                     }
 
                     @Override
@@ -185,97 +1094,490 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
 
                     @Override
                     public String executor() {
-                        return handler.executor();
+                        return ThreadPool.Names.SAME;
                     }
                 });
+    }
+
+    /**
+     * Removes a query response from memory and disk.
+     */
+    private void drop(final Key key) {
+        cache.invalidate(key);
+        if (diskCache != null) {
+            final DiskCache.Entry entry = diskCache.get(key);
+            if (entry != null) {
+                diskCache.remove(key, entry);
             }
+        }
+    }
+
+    private <T extends TransportResponse> void sendFetch(final Connection connection, final String action,
+            final ShardFetchSearchRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender, final Key key, final long generation, final long startTime) {
+        sender.sendRequest(connection, action, request, options, new TransportResponseHandler<T>() {
+
+            @Override
+            public T read(final StreamInput in) throws IOException {
+                return handler.read(in);
+            }
+
+            @Override
+            public void handleResponse(final T response) {
+                if (generations.get(key.shardId()) == generation) {
+                    try (final BytesStreamOutput out = new BytesStreamOutput()) {
+                        response.writeTo(out);
+                        store(key, generation, out.bytes(), System.nanoTime() - startTime);
+                    } catch (final IOException e) {
+                        logger.warn("Failed to write a fetch response to the cache.", e);
+                    }
+                }
+                handler.handleResponse(response);
+            }
+
+            @Override
+            public void handleException(final TransportException exp) {
+                handler.handleException(exp);
+            }
+
+            @Override
+            public String executor() {
+                return handler.executor();
+            }
+        });
+    }
+
+    /**
+     * Frees a search context. The context of a cached response exists on this
+     * node only and is dropped here; the request still goes to the data node,
+     * which answers that it did not know the context.
+     */
+    public <T extends TransportResponse> void sendFreeContext(final Connection connection, final String action,
+            final TransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler,
+            final AsyncSender sender) {
+        try {
+            searchContexts.remove(connection.getNode().getId(), FreeContextRequests.contextId(request));
         } catch (final IOException e) {
-            handler.handleException(new TransportException(e));
+            // the reaper drops it after the keep alive
+            logger.debug("Failed to read the context id of a free context request.", e);
         }
+        sender.sendRequest(connection, action, request, options, handler);
     }
 
-    private void onCache(final Key key, final QuerySearchResult result) {
-        if (result.searchTimedOut()) {
-            return;
+    BytesReference onCache(final Key key, final long generation, final SearchPhaseResult result, final boolean shared,
+            final long costNanos) throws IOException {
+        boolean cacheable = !result.queryResult().searchTimedOut() && generations.get(key.shardId()) == generation;
+        if (cacheable && costNanos < minCost) {
+            // computed again faster than the admission threshold, not worth the memory
+            admissionRejectionsMetric.inc();
+            cacheable = false;
+        }
+        if (!cacheable && !shared) {
+            // timed out, or invalidated while the request was in flight
+            return null;
         }
 
+        final BytesReference bytes;
         try (final BytesStreamOutput out = new BytesStreamOutput()) {
             result.writeTo(out);
-            cache.put(key, out.bytes());
-        } catch (final IOException e) {
-            logger.warn("Failed to write a responses to the cache.", e);
+            bytes = out.bytes();
         }
-        if (logger.isDebugEnabled()) {
-            logger.debug("Wrote cached response for {}/{}: {}", result.getShardIndex(), result.getRequestId(), result.getTotalHits());
+        if (cacheable) {
+            store(key, generation, bytes, costNanos);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Wrote cached response for {}/{}: {}", key.shardId(), result.getRequestId(),
+                        result.queryResult().getTotalHits());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param costNanos the time the data node took to produce the response,
+     *        including the round trip
+     */
+    private void store(final Key key, final long generation, final BytesReference response, final long costNanos)
+            throws IOException {
+        BytesReference bytes = response;
+        int rawLength = -1;
+        if (compressor != null) {
+            final BytesReference compressed = compressor.compress(response);
+            if (compressed != null) {
+                bytes = compressed;
+                rawLength = response.length();
+            }
+        }
+        final CacheValue value;
+        if (offHeapArena != null) {
+            OffHeapArena.Handle handle = offHeapArena.store(bytes);
+            if (handle == null) {
+                // pages of evicted entries may not be released yet
+                cache.cleanUp();
+                handle = offHeapArena.store(bytes);
+            }
+            if (handle == null) {
+                logger.debug("No off-heap space for a response of {} bytes.", bytes.length());
+                return;
+            }
+            value = new CacheValue(handle, rawLength, generation);
+        } else {
+            value = new CacheValue(bytes, rawLength, generation);
+        }
+        value.costNanos(costNanos);
+        final ShardCounters counters = counters(key.shardId());
+        putsMetric.inc();
+        counters.puts.inc();
+        metrics.puts.inc();
+        metrics.entrySize.record(value.length());
+        entriesMetric.inc();
+        counters.entries.inc();
+        requestMemoryMetric.inc(key.ramBytesUsed());
+        counters.requestMemory.inc(key.ramBytesUsed());
+        responseMemoryMetric.inc(value.heapBytesUsed());
+        counters.responseMemory.inc(value.heapBytesUsed());
+        rawSizeMetric.inc(value.rawLength());
+        counters.rawSize.inc(value.rawLength());
+        storedSizeMetric.inc(value.length());
+        counters.storedSize.inc(value.length());
+        cache.put(key, value);
+    }
+
+    private CacheValue lookup(final Key key) {
+        final CacheValue value = cache.getIfPresent(key);
+        if (value != null) {
+            value.accessed();
+        }
+        return value;
+    }
+
+    private BytesReference readFromDisk(final Key key, final long generation) throws IOException {
+        final DiskCache.Entry entry = diskCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.generation() != generation) {
+            if (entry.generation() != DiskCache.NOT_VALIDATED) {
+                diskCache.remove(key, entry);
+            }
+            return null;
+        }
+        final BytesReference bytes = diskCache.read(entry);
+        diskHitsMetric.inc();
+        store(key, generation, bytes, entry.costNanos());
+        return bytes;
+    }
+
+    private void demote(final Key key, final CacheValue value) {
+        if (value.generation() != generations.get(key.shardId())) {
+            return;
+        }
+        if (pendingDemotions.incrementAndGet() > MAX_PENDING_DEMOTIONS) {
+            pendingDemotions.decrementAndGet();
+            return;
+        }
+        // compressed values are decompressed by the writer, off the removal path
+        final BytesReference bytes = value.bytes();
+        if (bytes == null) {
+            pendingDemotions.decrementAndGet();
+            return;
+        }
+        demotions.add(
+                new Demotion(key, bytes, value.isCompressed() ? value.rawLength() : -1, value.generation(), value.costNanos()));
+    }
+
+    /**
+     * Polls the sequence numbers of the shards of the queued demotions and
+     * then writes them to the disk cache.
+     */
+    private void flushDemotions() {
+        if (demotions.isEmpty() || !demoting.compareAndSet(false, true)) {
+            return;
+        }
+        final Runnable drain = () -> {
+            try {
+                threadPool.executor(ThreadPool.Names.GENERIC).execute(() -> {
+                    try {
+                        drainDemotions();
+                    } finally {
+                        demoting.set(false);
+                        flushDemotions();
+                    }
+                });
+            } catch (final EsRejectedExecutionException e) {
+                demoting.set(false);
+                logger.debug("Can not write to the disk cache - execution rejected", e);
+            }
+        };
+        pollMaxSeqNos(demotedIndices(), ActionListener.wrap(seqNos -> {
+            maxSeqNos = seqNos;
+            drain.run();
+        }, e -> {
+            // written without a sequence number, they are not loaded again after a restart
+            logger.debug("Failed to get sequence numbers for the disk cache.", e);
+            drain.run();
+        }));
+    }
+
+    private Set<String> demotedIndices() {
+        final Set<String> indices = new HashSet<>();
+        for (final Demotion demotion : demotions) {
+            indices.add(demotion.key.shardId().getIndexName());
         }
+        return indices;
     }
 
-    private QuerySearchResult readFromCache(final BytesReference value) throws IOException {
-        try (final StreamInput in = value.streamInput()) {
+    private void drainDemotions() {
+        Demotion demotion;
+        while ((demotion = demotions.poll()) != null) {
+            pendingDemotions.decrementAndGet();
+            final ShardId shardId = demotion.key.shardId();
+            if (demotion.generation != generations.get(shardId)) {
+                continue;
+            }
+            try {
+                final BytesReference bytes =
+                        demotion.rawLength >= 0 ? compressor.decompress(demotion.bytes, demotion.rawLength) : demotion.bytes;
+                final Long maxSeqNo = maxSeqNos.get(shardId);
+                diskCache.put(demotion.key, bytes, demotion.generation,
+                        maxSeqNo == null ? SequenceNumbers.UNASSIGNED_SEQ_NO : maxSeqNo.longValue(), demotion.costNanos);
+                if (demotion.generation != generations.get(shardId)) {
+                    // invalidated while it was written, possibly after the invalidation was recorded
+                    diskCache.invalidate(Collections.singleton(shardId));
+                }
+            } catch (final IOException e) {
+                logger.warn("Failed to write a response to the disk cache.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the uncompressed response of the value, or null if its
+     * off-heap pages have already been released.
+     */
+    private BytesReference bytes(final CacheValue value) throws IOException {
+        final BytesReference bytes = value.bytes();
+        if (bytes == null || !value.isCompressed()) {
+            return bytes;
+        }
+        return compressor.decompress(bytes, value.rawLength());
+    }
+
+    /**
+     * Reads a stored query response. A query result gets the given context
+     * id; a combined query and fetch result keeps its own, which is not used.
+     */
+    SearchPhaseResult readFromCache(final BytesReference value, final boolean queryFetch, final long requestId)
+            throws IOException {
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(value.streamInput(), namedWriteableRegistry)) {
+            if (queryFetch) {
+                return new QueryFetchSearchResult(in);
+            }
+            in.readLong();
             final QuerySearchResult result = new QuerySearchResult();
-            result.readFrom(in);
+            result.readFromWithId(requestId, in);
             return result;
         }
     }
 
-    public void clear(final String index) {
+    private FetchSearchResult readFetchResult(final BytesReference value, final long requestId) throws IOException {
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(value.streamInput(), namedWriteableRegistry)) {
+            in.readLong();
+            final FetchSearchResult result = new FetchSearchResult(requestId, null);
+            result.hits(SearchHits.readSearchHits(in));
+            return result;
+        }
+    }
+
+    SearchPhaseResult read(final CacheValue value, final boolean queryFetch, final long requestId) throws IOException {
+        if (!queryFetch && decodedHits && value.decodable()) {
+            DecodedQueryResult decoded = value.decoded();
+            if (decoded == null) {
+                final BytesReference bytes = bytes(value);
+                if (bytes == null) {
+                    return null;
+                }
+                decoded = DecodedQueryResult.decode(bytes, namedWriteableRegistry);
+                if (decoded == null) {
+                    value.notDecodable();
+                    return readFromCache(bytes, false, requestId);
+                }
+                final long decodedBytes = decoded.ramBytesUsed();
+                if (decodedMemory.addAndGet(decodedBytes) > decodedMaxSize || !value.decoded(decoded, decodedBytes)) {
+                    // used for this hit only
+                    decodedMemory.addAndGet(-decodedBytes);
+                }
+            }
+            return decoded.newResult(requestId);
+        }
+        final BytesReference bytes = bytes(value);
+        return bytes == null ? null : readFromCache(bytes, queryFetch, requestId);
+    }
+
+    /**
+     * Invalidates the cached responses of the index and returns the number of
+     * shard responses dropped from memory and disk. Entries in memory are
+     * removed only when they are read or evicted, so their number is the sum
+     * of the entry counters of the index's shards, which includes entries a
+     * refresh had already made stale.
+     */
+    public long clear(final String index) {
         if (logger.isDebugEnabled()) {
             logger.debug("Cache for {} will be invalidated.", index);
         }
-        indicesToClean.add(index);
+        generations.bumpIndex(index);
+        metrics.clears.inc();
+        long removed = 0;
+        for (final Map.Entry<ShardId, ShardCounters> entry : shardCounters.entrySet()) {
+            if (entry.getKey().getIndexName().equals(index)) {
+                removed += entry.getValue().entries.count();
+            }
+        }
+        if (diskCache != null) {
+            try {
+                removed += diskCache.clear(index);
+            } catch (final IOException e) {
+                logger.warn("Failed to record a clear of " + index + " in the disk cache.", e);
+            }
+        }
+        if (warmer != null) {
+            warmer.warm(index::equals);
+        }
+        return removed;
     }
 
-    public void clear(final String... indices) {
+    /**
+     * Clears the given indices, or the whole cache and its stats without
+     * indices. Returns the sum of what {@link #clear(String)} returns for each
+     * index, or the number of entries in memory, on disk and in the search
+     * response tier for the whole cache.
+     */
+    public long clear(final String... indices) {
+        long removed = 0;
         if (indices == null || indices.length == 0) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Invalidating all cache.");
-            }
-            indicesToClean.clear();
+            logger.info("Invalidating all cache and resetting its stats.");
+            metrics.clears.inc();
+            generations.bumpAll();
+            removed += cache.size();
             cache.invalidateAll();
+            if (diskCache != null) {
+                try {
+                    removed += diskCache.clear();
+                } catch (final IOException e) {
+                    logger.warn("Failed to record a clear in the disk cache.", e);
+                }
+            }
+            if (searchResponseCache != null) {
+                removed += searchResponseCache.clear();
+            }
             totalMetric = new CounterMetric();
             hitsMetric = new CounterMetric();
             evictionsMetric = new CounterMetric();
+            diskHitsMetric = new CounterMetric();
+            coalescedMetric = new CounterMetric();
+            staleHitsMetric = new CounterMetric();
+            revalidationsMetric = new CounterMetric();
+            admissionRejectionsMetric = new CounterMetric();
+            savedTimeMetric = new CounterMetric();
+            fetchHitsMetric = new CounterMetric();
+            fetchMissesMetric = new CounterMetric();
+            missesMetric = new CounterMetric();
+            putsMetric = new CounterMetric();
+            loadTimeMetric = new CounterMetric();
+            sizeEvictionsMetric = new CounterMetric();
+            expiredEvictionsMetric = new CounterMetric();
+            explicitEvictionsMetric = new CounterMetric();
+            for (final ShardCounters counters : shardCounters.values()) {
+                counters.reset();
+            }
+            if (warmer != null) {
+                warmer.warm(index -> true);
+            }
         } else {
             for (final String index : indices) {
-                clear(index);
+                removed += clear(index);
             }
+        }
+        return removed;
+    }
+
+    public void invalidate(final Collection<ShardId> shardIds) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Cache for {} will be invalidated.", shardIds);
+        }
+        final Set<String> indices = new HashSet<>();
+        for (final ShardId shardId : shardIds) {
+            generations.bumpShard(shardId);
+            indices.add(shardId.getIndexName());
+        }
+        if (diskCache != null) {
             try {
-                threadPool.executor(ThreadPool.Names.GENERIC).execute(() -> reaper.reap());
-            } catch (final EsRejectedExecutionException ex) {
-                logger.debug("Can not run ReaderCleaner - execution rejected", ex);
+                diskCache.invalidate(shardIds);
+            } catch (final IOException e) {
+                logger.warn("Failed to record an invalidation in the disk cache.", e);
             }
         }
+        if (warmer != null) {
+            warmer.warm(indices::contains);
+        }
     }
 
     public static class Key implements Accountable {
-        public final BytesReference value;
+        private static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(Key.class);
 
-        public Key(final ShardSearchTransportRequest request) throws IOException {
-            final ShardId shardId = request.shardId();
-            final SearchSourceBuilder source = request.source();
-            try (final BytesStreamOutput out = new BytesStreamOutput()) {
-                shardId.writeTo(out);
-                source.writeTo(out);
-                this.value = out.bytes();
-            }
+        private final ShardId shardId;
+
+        private final long hash1;
+
+        private final long hash2;
+
+        private final int length;
+
+        private final BytesReference value;
+
+        Key(final ShardId shardId, final long hash1, final long hash2, final int length, final BytesReference value) {
+            this.shardId = shardId;
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+            this.length = length;
+            this.value = value;
         }
 
+        /**
+         * Returns the shard of the response, or null for the key of a final
+         * search response.
+         */
         public ShardId shardId() {
-            try (StreamInput in = value.streamInput()) {
-                return ShardId.readShardId(in);
-            } catch (final IOException e) {
-                return null;
-            }
+            return shardId;
+        }
+
+        /**
+         * Returns the hash of the request in hex, to tell keys apart without
+         * showing the request.
+         */
+        String hash() {
+            return String.format(Locale.ROOT, "%016x%016x", hash1, hash2);
+        }
+
+        void writeTo(final StreamOutput out) throws IOException {
+            shardId.writeTo(out);
+            out.writeLong(hash1);
+            out.writeLong(hash2);
+            out.writeVInt(length);
+            out.writeOptionalBytesReference(value);
+        }
+
+        static Key readFrom(final StreamInput in) throws IOException {
+            return new Key(ShardId.readShardId(in), in.readLong(), in.readLong(), in.readVInt(), in.readOptionalBytesReference());
         }
 
         @Override
         public long ramBytesUsed() {
-            return RamUsageEstimator.NUM_BYTES_OBJECT_REF + Long.BYTES + value.length();
+            return SHALLOW_SIZE + (value == null ? 0 : value.length());
         }
 
         @Override
         public int hashCode() {
-            return value.hashCode();
+            return 31 * Objects.hashCode(shardId) + Long.hashCode(hash1);
         }
 
         @Override
@@ -290,11 +1592,72 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
                 return false;
             }
             final Key other = (Key) obj;
+            if (hash1 != other.hash1 || hash2 != other.hash2 || length != other.length || !Objects.equals(shardId, other.shardId)) {
+                return false;
+            }
+            if (value == null || other.value == null) {
+                return true;
+            }
             return value.equals(other.value);
         }
 
     }
 
+    private static class Demotion {
+
+        final Key key;
+
+        final BytesReference bytes;
+
+        final int rawLength;
+
+        final long generation;
+
+        final long costNanos;
+
+        Demotion(final Key key, final BytesReference bytes, final int rawLength, final long generation, final long costNanos) {
+            this.key = key;
+            this.bytes = bytes;
+            this.rawLength = rawLength;
+            this.generation = generation;
+            this.costNanos = costNanos;
+        }
+    }
+
+    /**
+     * Gets the max sequence number of the primaries of the indices. A shard
+     * with a write waiting for a refresh is left out: its searcher does not
+     * hold all operations up to that number yet, so a response could not be
+     * told apart from one computed after the refresh.
+     */
+    private void pollMaxSeqNos(final Collection<String> indices, final ActionListener<Map<ShardId, Long>> listener) {
+        if (indices.isEmpty()) {
+            listener.onResponse(Collections.emptyMap());
+            return;
+        }
+        try (ThreadContext.StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            client.admin().indices().prepareStats(indices.toArray(new String[indices.size()])).clear().setRefresh(true)
+                    .setIndicesOptions(IndicesOptions.lenientExpandOpen()).execute(ActionListener.wrap(response -> {
+                        final Map<ShardId, Long> seqNos = new HashMap<>();
+                        for (final ShardStats shardStats : response.getShards()) {
+                            if (shardStats.getShardRouting().primary() && shardStats.getSeqNoStats() != null
+                                    && shardStats.getStats().getRefresh() != null
+                                    && shardStats.getStats().getRefresh().getListeners() == 0) {
+                                seqNos.put(shardStats.getShardRouting().shardId(), shardStats.getSeqNoStats().getMaxSeqNo());
+                            }
+                        }
+                        listener.onResponse(seqNos);
+                    }, listener::onFailure));
+        }
+    }
+
+    /**
+     * Runs one clean up pass on the calling thread.
+     */
+    void reap() {
+        reaper.reap();
+    }
+
     private class Reaper implements Runnable {
 
         private volatile boolean closed;
@@ -308,10 +1671,6 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
             if (closed) {
                 return;
             }
-            if (indicesToClean.isEmpty()) {
-                schedule();
-                return;
-            }
             try {
                 threadPool.executor(ThreadPool.Names.GENERIC).execute(() -> {
                     try {
@@ -348,37 +1707,48 @@ public class QueryResultCache implements RemovalListener<QueryResultCache.Key, B
 
         private void reap() {
             if (logger.isDebugEnabled()) {
-                logger.debug("Clearing cached responses...");
-            }
-
-            final Set<String> currentIndicesToClean = indicesToClean;
-            indicesToClean = ConcurrentCollections.newConcurrentSet();
-            final List<Key> keyToClean = new ArrayList<>();
-
-            for (final Key key : cache.asMap().keySet()) {
-                final ShardId shardId = key.shardId();
-                if (shardId == null) {
-                    keyToClean.add(key); // invalid key?
-                } else {
-                    if (currentIndicesToClean.contains(shardId.getIndexName())) {
-                        keyToClean.add(key);
-                        if (logger.isDebugEnabled()) {
-                            try (final StreamInput in = key.value.streamInput()) {
-                                ShardId.readShardId(in);
-                                SearchSourceBuilder source = new SearchSourceBuilder(in);
-                                logger.debug("Invalidating cache: {}", source);
-                            } catch (final IOException e) {
-                                logger.warn("Failed to read a search request.", e);
-                            }
-                        }
-                    }
-                }
+                logger.debug("Cleaning up cached responses...");
+            }
+
+            cache.cleanUp();
+            if (searchResponseCache != null) {
+                searchResponseCache.cleanUp();
+            }
+            final Cache<Key, CacheValue> retired = retiredCache;
+            if (retired != null) {
+                retiredCache = null;
+                retired.invalidateAll();
             }
 
-            if (!keyToClean.isEmpty()) {
-                cache.invalidateAll(keyToClean);
+            final MetaData metaData = clusterService.state().getMetaData();
+            generations.prune(shardId -> {
+                final IndexMetaData index = metaData.index(shardId.getIndex());
+                return index != null;
+            }, metaData::hasIndex);
+            shardCounters.entrySet().removeIf(e -> metaData.index(e.getKey().getIndex()) == null && e.getValue().entries.count() == 0);
+            searchContexts.prune(SEARCH_CONTEXT_KEEP_ALIVE);
+            if (warmer != null) {
+                warmer.warmRestored(clusterService.state());
+            }
+
+            if (diskCache != null) {
+                validateDiskCache(metaData);
+            }
+        }
+
+        /**
+         * Polls the sequence numbers of the indices that have entries loaded
+         * from a previous run, until all of them are validated.
+         */
+        private void validateDiskCache(final MetaData metaData) {
+            final Set<String> indices = diskCache.unvalidatedIndices();
+            if (indices.isEmpty()) {
+                return;
             }
+            pollMaxSeqNos(indices, ActionListener.wrap(
+                    seqNos -> diskCache.validate(shardId -> metaData.index(shardId.getIndex()) != null, seqNos::get, generations::get),
+                    e -> logger.debug("Failed to get sequence numbers for the disk cache.", e)));
         }
     }
 
-}
\ No newline at end of file
+}
@@ -7,6 +7,7 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Streamable;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
@@ -24,6 +25,64 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
 
     long total;
 
+    long misses;
+
+    long puts;
+
+    long loadTime;
+
+    long sizeEvictions;
+
+    long expiredEvictions;
+
+    long explicitEvictions;
+
+    long decodedMemory;
+
+    long offHeapSize;
+
+    long offHeapUsed;
+
+    long diskCount;
+
+    long diskSize;
+
+    long diskHits;
+
+    long coalesced;
+
+    long staleHits;
+
+    long revalidations;
+
+    long admissionRejections;
+
+    long savedTime;
+
+    long fetchHits;
+
+    long fetchMisses;
+
+    long hotKeys;
+
+    long warmups;
+
+    long searchResponseCount;
+
+    long searchResponseMemorySize;
+
+    long searchResponseHits;
+
+    long searchResponseMisses;
+
+    long rawSize;
+
+    long storedSize;
+
+    long compressTime;
+
+    long decompressTime;
+
     public QueryResultCacheStats() {
     }
 
@@ -44,6 +103,35 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         total += stats.total;
         hits += stats.hits;
         evictions += stats.evictions;
+        misses += stats.misses;
+        puts += stats.puts;
+        loadTime += stats.loadTime;
+        sizeEvictions += stats.sizeEvictions;
+        expiredEvictions += stats.expiredEvictions;
+        explicitEvictions += stats.explicitEvictions;
+        decodedMemory += stats.decodedMemory;
+        offHeapSize += stats.offHeapSize;
+        offHeapUsed += stats.offHeapUsed;
+        diskCount += stats.diskCount;
+        diskSize += stats.diskSize;
+        diskHits += stats.diskHits;
+        coalesced += stats.coalesced;
+        staleHits += stats.staleHits;
+        revalidations += stats.revalidations;
+        admissionRejections += stats.admissionRejections;
+        savedTime += stats.savedTime;
+        fetchHits += stats.fetchHits;
+        fetchMisses += stats.fetchMisses;
+        hotKeys += stats.hotKeys;
+        warmups += stats.warmups;
+        searchResponseCount += stats.searchResponseCount;
+        searchResponseMemorySize += stats.searchResponseMemorySize;
+        searchResponseHits += stats.searchResponseHits;
+        searchResponseMisses += stats.searchResponseMisses;
+        rawSize += stats.rawSize;
+        storedSize += stats.storedSize;
+        compressTime += stats.compressTime;
+        decompressTime += stats.decompressTime;
     }
 
     public long getSize() {
@@ -55,7 +143,7 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
     }
 
     public long getResponseMemorySizeInBytes() {
-        return requestMemorySize;
+        return responseMemorySize;
     }
 
     public ByteSizeValue getRequestMemorySize() {
@@ -66,10 +154,118 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         return new ByteSizeValue(responseMemorySize);
     }
 
+    public ByteSizeValue getDecodedMemory() {
+        return new ByteSizeValue(decodedMemory);
+    }
+
+    public ByteSizeValue getOffHeapSize() {
+        return new ByteSizeValue(offHeapSize);
+    }
+
+    public ByteSizeValue getOffHeapUsed() {
+        return new ByteSizeValue(offHeapUsed);
+    }
+
+    public long getDiskCount() {
+        return diskCount;
+    }
+
+    public ByteSizeValue getDiskSize() {
+        return new ByteSizeValue(diskSize);
+    }
+
+    public long getDiskHits() {
+        return diskHits;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    public long getRevalidations() {
+        return revalidations;
+    }
+
+    public long getAdmissionRejections() {
+        return admissionRejections;
+    }
+
+    public TimeValue getSavedTime() {
+        return new TimeValue(savedTime);
+    }
+
+    public long getFetchHits() {
+        return fetchHits;
+    }
+
+    public long getFetchMisses() {
+        return fetchMisses;
+    }
+
+    public long getHotKeys() {
+        return hotKeys;
+    }
+
+    public long getWarmups() {
+        return warmups;
+    }
+
+    public long getSearchResponseCount() {
+        return searchResponseCount;
+    }
+
+    public ByteSizeValue getSearchResponseMemorySize() {
+        return new ByteSizeValue(searchResponseMemorySize);
+    }
+
+    public long getSearchResponseHits() {
+        return searchResponseHits;
+    }
+
+    public long getSearchResponseMisses() {
+        return searchResponseMisses;
+    }
+
     public long getEvictions() {
         return evictions;
     }
 
+    public double getCompressionRatio() {
+        return storedSize == 0 ? 1 : (double) rawSize / storedSize;
+    }
+
+    public double getHitRatio() {
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getPuts() {
+        return puts;
+    }
+
+    public TimeValue getLoadTime() {
+        return new TimeValue(loadTime);
+    }
+
+    public long getSizeEvictions() {
+        return sizeEvictions;
+    }
+
+    public long getExpiredEvictions() {
+        return expiredEvictions;
+    }
+
+    public long getExplicitEvictions() {
+        return explicitEvictions;
+    }
+
     public long getHits() {
         return hits;
     }
@@ -86,6 +282,35 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         total = in.readVLong();
         hits = in.readVLong();
         evictions = in.readVLong();
+        misses = in.readVLong();
+        puts = in.readVLong();
+        loadTime = in.readVLong();
+        sizeEvictions = in.readVLong();
+        expiredEvictions = in.readVLong();
+        explicitEvictions = in.readVLong();
+        decodedMemory = in.readVLong();
+        offHeapSize = in.readVLong();
+        offHeapUsed = in.readVLong();
+        diskCount = in.readVLong();
+        diskSize = in.readVLong();
+        diskHits = in.readVLong();
+        coalesced = in.readVLong();
+        staleHits = in.readVLong();
+        revalidations = in.readVLong();
+        admissionRejections = in.readVLong();
+        savedTime = in.readVLong();
+        fetchHits = in.readVLong();
+        fetchMisses = in.readVLong();
+        hotKeys = in.readVLong();
+        warmups = in.readVLong();
+        searchResponseCount = in.readVLong();
+        searchResponseMemorySize = in.readVLong();
+        searchResponseHits = in.readVLong();
+        searchResponseMisses = in.readVLong();
+        rawSize = in.readVLong();
+        storedSize = in.readVLong();
+        compressTime = in.readVLong();
+        decompressTime = in.readVLong();
     }
 
     @Override
@@ -96,6 +321,35 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         out.writeVLong(total);
         out.writeVLong(hits);
         out.writeVLong(evictions);
+        out.writeVLong(misses);
+        out.writeVLong(puts);
+        out.writeVLong(loadTime);
+        out.writeVLong(sizeEvictions);
+        out.writeVLong(expiredEvictions);
+        out.writeVLong(explicitEvictions);
+        out.writeVLong(decodedMemory);
+        out.writeVLong(offHeapSize);
+        out.writeVLong(offHeapUsed);
+        out.writeVLong(diskCount);
+        out.writeVLong(diskSize);
+        out.writeVLong(diskHits);
+        out.writeVLong(coalesced);
+        out.writeVLong(staleHits);
+        out.writeVLong(revalidations);
+        out.writeVLong(admissionRejections);
+        out.writeVLong(savedTime);
+        out.writeVLong(fetchHits);
+        out.writeVLong(fetchMisses);
+        out.writeVLong(hotKeys);
+        out.writeVLong(warmups);
+        out.writeVLong(searchResponseCount);
+        out.writeVLong(searchResponseMemorySize);
+        out.writeVLong(searchResponseHits);
+        out.writeVLong(searchResponseMisses);
+        out.writeVLong(rawSize);
+        out.writeVLong(storedSize);
+        out.writeVLong(compressTime);
+        out.writeVLong(decompressTime);
     }
 
     @Override
@@ -106,7 +360,38 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         builder.field(Fields.RESPONSE_MEMORY_SIZE_IN_BYTES.getPreferredName(), responseMemorySize);
         builder.field(Fields.TOTAL.getPreferredName(), getTotal());
         builder.field(Fields.HITS.getPreferredName(), getHits());
+        builder.field(Fields.HIT_RATIO.getPreferredName(), getHitRatio());
         builder.field(Fields.EVICTIONS.getPreferredName(), getEvictions());
+        builder.field(Fields.MISSES.getPreferredName(), misses);
+        builder.field(Fields.PUTS.getPreferredName(), puts);
+        builder.field(Fields.LOAD_TIME_IN_MILLIS.getPreferredName(), loadTime);
+        builder.field(Fields.SIZE_EVICTIONS.getPreferredName(), sizeEvictions);
+        builder.field(Fields.EXPIRED_EVICTIONS.getPreferredName(), expiredEvictions);
+        builder.field(Fields.EXPLICIT_EVICTIONS.getPreferredName(), explicitEvictions);
+        builder.field(Fields.DECODED_MEMORY_SIZE_IN_BYTES.getPreferredName(), decodedMemory);
+        builder.field(Fields.OFF_HEAP_SIZE_IN_BYTES.getPreferredName(), offHeapSize);
+        builder.field(Fields.OFF_HEAP_USED_IN_BYTES.getPreferredName(), offHeapUsed);
+        builder.field(Fields.DISK_COUNT.getPreferredName(), diskCount);
+        builder.field(Fields.DISK_SIZE_IN_BYTES.getPreferredName(), diskSize);
+        builder.field(Fields.DISK_HITS.getPreferredName(), diskHits);
+        builder.field(Fields.COALESCED.getPreferredName(), coalesced);
+        builder.field(Fields.STALE_HITS.getPreferredName(), staleHits);
+        builder.field(Fields.REVALIDATIONS.getPreferredName(), revalidations);
+        builder.field(Fields.ADMISSION_REJECTIONS.getPreferredName(), admissionRejections);
+        builder.field(Fields.SAVED_TIME_IN_MILLIS.getPreferredName(), savedTime);
+        builder.field(Fields.FETCH_HITS.getPreferredName(), fetchHits);
+        builder.field(Fields.FETCH_MISSES.getPreferredName(), fetchMisses);
+        builder.field(Fields.HOT_KEYS.getPreferredName(), hotKeys);
+        builder.field(Fields.WARMUPS.getPreferredName(), warmups);
+        builder.field(Fields.SEARCH_RESPONSE_COUNT.getPreferredName(), searchResponseCount);
+        builder.field(Fields.SEARCH_RESPONSE_MEMORY_SIZE_IN_BYTES.getPreferredName(), searchResponseMemorySize);
+        builder.field(Fields.SEARCH_RESPONSE_HITS.getPreferredName(), searchResponseHits);
+        builder.field(Fields.SEARCH_RESPONSE_MISSES.getPreferredName(), searchResponseMisses);
+        builder.field(Fields.RAW_SIZE_IN_BYTES.getPreferredName(), rawSize);
+        builder.field(Fields.STORED_SIZE_IN_BYTES.getPreferredName(), storedSize);
+        builder.field(Fields.COMPRESSION_RATIO.getPreferredName(), getCompressionRatio());
+        builder.field(Fields.COMPRESS_TIME_IN_MILLIS.getPreferredName(), compressTime);
+        builder.field(Fields.DECOMPRESS_TIME_IN_MILLIS.getPreferredName(), decompressTime);
         builder.endObject();
         return builder;
     }
@@ -129,5 +414,67 @@ public class QueryResultCacheStats implements Streamable, ToXContent {
         static final ParseField HITS = new ParseField("hits");
 
         static final ParseField EVICTIONS = new ParseField("evictions");
+
+        static final ParseField HIT_RATIO = new ParseField("hit_ratio");
+
+        static final ParseField MISSES = new ParseField("misses");
+
+        static final ParseField PUTS = new ParseField("puts");
+
+        static final ParseField LOAD_TIME_IN_MILLIS = new ParseField("load_time_in_millis");
+
+        static final ParseField SIZE_EVICTIONS = new ParseField("size_evictions");
+
+        static final ParseField EXPIRED_EVICTIONS = new ParseField("expired_evictions");
+
+        static final ParseField EXPLICIT_EVICTIONS = new ParseField("explicit_evictions");
+
+        static final ParseField DECODED_MEMORY_SIZE_IN_BYTES = new ParseField("decoded_memory_size_in_bytes");
+
+        static final ParseField OFF_HEAP_SIZE_IN_BYTES = new ParseField("off_heap_size_in_bytes");
+
+        static final ParseField OFF_HEAP_USED_IN_BYTES = new ParseField("off_heap_used_in_bytes");
+
+        static final ParseField DISK_COUNT = new ParseField("disk_count");
+
+        static final ParseField DISK_SIZE_IN_BYTES = new ParseField("disk_size_in_bytes");
+
+        static final ParseField DISK_HITS = new ParseField("disk_hits");
+
+        static final ParseField COALESCED = new ParseField("coalesced");
+
+        static final ParseField STALE_HITS = new ParseField("stale_hits");
+
+        static final ParseField REVALIDATIONS = new ParseField("revalidations");
+
+        static final ParseField ADMISSION_REJECTIONS = new ParseField("admission_rejections");
+
+        static final ParseField SAVED_TIME_IN_MILLIS = new ParseField("saved_time_in_millis");
+
+        static final ParseField FETCH_HITS = new ParseField("fetch_hits");
+
+        static final ParseField FETCH_MISSES = new ParseField("fetch_misses");
+
+        static final ParseField HOT_KEYS = new ParseField("hot_keys");
+
+        static final ParseField WARMUPS = new ParseField("warmups");
+
+        static final ParseField SEARCH_RESPONSE_COUNT = new ParseField("search_response_count");
+
+        static final ParseField SEARCH_RESPONSE_MEMORY_SIZE_IN_BYTES = new ParseField("search_response_memory_size_in_bytes");
+
+        static final ParseField SEARCH_RESPONSE_HITS = new ParseField("search_response_hits");
+
+        static final ParseField SEARCH_RESPONSE_MISSES = new ParseField("search_response_misses");
+
+        static final ParseField RAW_SIZE_IN_BYTES = new ParseField("raw_size_in_bytes");
+
+        static final ParseField STORED_SIZE_IN_BYTES = new ParseField("stored_size_in_bytes");
+
+        static final ParseField COMPRESSION_RATIO = new ParseField("compression_ratio");
+
+        static final ParseField COMPRESS_TIME_IN_MILLIS = new ParseField("compress_time_in_millis");
+
+        static final ParseField DECOMPRESS_TIME_IN_MILLIS = new ParseField("decompress_time_in_millis");
     }
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.metrics.CounterMetric;
+
+/**
+ * LZ4 compression of stored responses with Lucene's fast compression mode.
+ * Responses below the threshold, or that do not get smaller, are kept as
+ * they are.
+ */
+public class ResponseCompressor {
+
+    private final ThreadLocal<Compressor> compressors = ThreadLocal.withInitial(CompressionMode.FAST::newCompressor);
+
+    private final int threshold;
+
+    private final CounterMetric compressTime = new CounterMetric();
+
+    private final CounterMetric decompressTime = new CounterMetric();
+
+    public ResponseCompressor(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compressed bytes, or null if the response is stored
+     * uncompressed.
+     */
+    public BytesReference compress(final BytesReference bytes) throws IOException {
+        final int length = bytes.length();
+        if (length < threshold) {
+            return null;
+        }
+        final long startTime = System.nanoTime();
+        try {
+            final BytesRef ref = bytes.toBytesRef();
+            final GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(length / 2);
+            compressors.get().compress(ref.bytes, ref.offset, ref.length, out);
+            if (out.getPosition() >= length) {
+                return null;
+            }
+            // the output buffer grows ahead of its content, so keep only what was written
+            return new BytesArray(Arrays.copyOf(out.getBytes(), out.getPosition()));
+        } finally {
+            compressTime.inc(System.nanoTime() - startTime);
+        }
+    }
+
+    public BytesReference decompress(final BytesReference bytes, final int originalLength) throws IOException {
+        final long startTime = System.nanoTime();
+        try {
+            final BytesRef ref = bytes.toBytesRef();
+            final BytesRef result = new BytesRef();
+            CompressionMode.FAST.newDecompressor().decompress(new ByteArrayDataInput(ref.bytes, ref.offset, ref.length),
+                    originalLength, 0, originalLength, result);
+            return new BytesArray(result.bytes, result.offset, result.length);
+        } finally {
+            decompressTime.inc(System.nanoTime() - startTime);
+        }
+    }
+
+    public long compressTimeInNanos() {
+        return compressTime.count();
+    }
+
+    public long decompressTimeInNanos() {
+        return decompressTime.count();
+    }
+}
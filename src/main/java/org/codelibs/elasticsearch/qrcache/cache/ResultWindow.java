@@ -0,0 +1,226 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchPhaseResult;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.FetchSearchResult;
+import org.elasticsearch.search.fetch.ShardFetchSearchRequest;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportResponseHandler;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.IntIntHashMap;
+
+/**
+ * A page of from/size paging served from a larger top-N window. A copy of
+ * the shard request is widened to from 0 and a size rounded up to a multiple
+ * of the window size, so that all pages within a window share one cache entry, and
+ * every response is cut back to the hits the page needs. The documents of
+ * the whole window are fetched and cached together, so that the fetch of a
+ * later page is answered from the cache too.
+ */
+class ResultWindow {
+
+    private static final int DEFAULT_SIZE = 10;
+
+    private final int from;
+
+    private final int size;
+
+    private final ShardSearchTransportRequest request;
+
+    private ResultWindow(final int from, final int size, final ShardSearchTransportRequest request) {
+        this.from = from;
+        this.size = size;
+        this.request = request;
+    }
+
+    /**
+     * Returns the page the request asked for together with a widened copy of
+     * the request, or returns null if the request is not paged this way. The
+     * given request is left as it is.
+     */
+    static ResultWindow widen(final ShardSearchTransportRequest request, final int windowSize, final int maxResultWindow) {
+        final SearchSourceBuilder source = request.source();
+        if (source == null || request.numberOfShards() == 1 || source.size() == 0 || source.searchAfter() != null
+                || source.collapse() != null || source.rescores() != null && !source.rescores().isEmpty()) {
+            // a single shard fetches the page itself; the others change with the number of hits
+            return null;
+        }
+        final int from = source.from() == -1 ? 0 : source.from();
+        final int size = source.size() == -1 ? DEFAULT_SIZE : source.size();
+        final long end = (long) from + size;
+        final long window = Math.min((end + windowSize - 1) / windowSize * windowSize, maxResultWindow);
+        if (window <= end) {
+            return null;
+        }
+        final ShardSearchTransportRequest widened = NowRounding.withNow(request, request.nowInMillis());
+        widened.source(source.copyWithNewSlice(source.slice()).from(0).size((int) window));
+        return new ResultWindow(from, size, widened);
+    }
+
+    /**
+     * Returns the widened copy of the shard request to send in place of the
+     * original one.
+     */
+    ShardSearchTransportRequest request() {
+        return request;
+    }
+
+    /**
+     * Returns a handler that passes the page of the window on to the given
+     * one.
+     */
+    <T extends TransportResponse> TransportResponseHandler<T> wrap(final TransportResponseHandler<T> handler) {
+        return new TransportResponseHandler<T>() {
+
+            @Override
+            public T read(final StreamInput in) throws IOException {
+                return handler.read(in);
+            }
+
+            @Override
+            public void handleResponse(final T response) {
+                slice(((SearchPhaseResult) response).queryResult());
+                handler.handleResponse(response);
+            }
+
+            @Override
+            public void handleException(final TransportException exp) {
+                handler.handleException(exp);
+            }
+
+            @Override
+            public String executor() {
+                return handler.executor();
+            }
+        };
+    }
+
+    void slice(final QuerySearchResult result) {
+        result.from(from);
+        result.size(size);
+        final TopDocs topDocs = result.topDocs();
+        final int end = from + size;
+        if (topDocs.scoreDocs.length <= end) {
+            return;
+        }
+        // the coordinating node merges the first from + size hits of each shard
+        final ScoreDoc[] scoreDocs = Arrays.copyOf(topDocs.scoreDocs, end);
+        final TopDocs page;
+        if (topDocs instanceof TopFieldDocs) {
+            page = new TopFieldDocs(topDocs.totalHits, scoreDocs, ((TopFieldDocs) topDocs).fields, topDocs.getMaxScore());
+        } else {
+            page = new TopDocs(topDocs.totalHits, scoreDocs, topDocs.getMaxScore());
+        }
+        result.topDocs(page, result.sortValueFormats());
+    }
+
+    /**
+     * Returns a request that fetches all documents of a window from the
+     * context the given request refers to.
+     */
+    static ShardFetchSearchRequest fetchAll(final ShardFetchSearchRequest request, final int[] windowDocIds) {
+        return fetchAll(request, request.id(), windowDocIds);
+    }
+
+    /**
+     * Returns a request that fetches the given documents from another
+     * context.
+     */
+    static ShardFetchSearchRequest fetchAll(final ShardFetchSearchRequest request, final long contextId, final int[] windowDocIds) {
+        final IntArrayList docIds = new IntArrayList(windowDocIds.length);
+        docIds.add(windowDocIds, 0, windowDocIds.length);
+        final ShardFetchSearchRequest fetchAll = new ShardFetchSearchRequest(
+                new OriginalIndices(request.indices(), request.indicesOptions()), contextId, docIds, request.lastEmittedDoc());
+        fetchAll.setParentTask(request.getParentTask());
+        return fetchAll;
+    }
+
+    /**
+     * Returns whether all documents the given request asks for are in the
+     * window.
+     */
+    static boolean covers(final int[] windowDocIds, final ShardFetchSearchRequest request) {
+        final IntIntHashMap positions = positions(windowDocIds);
+        for (int i = 0; i < request.docIdsSize(); i++) {
+            if (!positions.containsKey(request.docIds()[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hits of the fetch response of a whole window that the given
+     * request asked for, in its order. Hits do not keep their document id, so
+     * they are matched by their position in the window.
+     */
+    static FetchSearchResult pick(final FetchSearchResult result, final int[] windowDocIds, final ShardFetchSearchRequest request) {
+        final IntIntHashMap positions = positions(windowDocIds);
+        final SearchHit[] windowHits = result.hits().getHits();
+        final SearchHit[] hits = new SearchHit[request.docIdsSize()];
+        for (int i = 0; i < hits.length; i++) {
+            final int docId = request.docIds()[i];
+            final int index = positions.indexOf(docId);
+            if (!positions.indexExists(index)) {
+                throw new IllegalArgumentException("document [" + docId + "] is not in the window of context [" + request.id() + "]");
+            }
+            hits[i] = windowHits[positions.indexGet(index)];
+        }
+        final FetchSearchResult page = new FetchSearchResult(request.id(), result.getSearchShardTarget());
+        page.hits(new SearchHits(hits, result.hits().getTotalHits(), result.hits().getMaxScore()));
+        return page;
+    }
+
+    private static IntIntHashMap positions(final int[] windowDocIds) {
+        final IntIntHashMap positions = new IntIntHashMap(windowDocIds.length);
+        for (int i = 0; i < windowDocIds.length; i++) {
+            positions.put(windowDocIds[i], i);
+        }
+        return positions;
+    }
+
+    /**
+     * Returns a handler that passes the hits the given request asked for on
+     * to the given one.
+     */
+    static <T extends TransportResponse> TransportResponseHandler<T> picking(final TransportResponseHandler<T> handler,
+            final int[] windowDocIds, final ShardFetchSearchRequest request) {
+        return new TransportResponseHandler<T>() {
+
+            @Override
+            public T read(final StreamInput in) throws IOException {
+                return handler.read(in);
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public void handleResponse(final T response) {
+                handler.handleResponse((T) pick((FetchSearchResult) response, windowDocIds, request));
+            }
+
+            @Override
+            public void handleException(final TransportException exp) {
+                handler.handleException(exp);
+            }
+
+            @Override
+            public String executor() {
+                return handler.executor();
+            }
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchTransportService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.transport.Transport.Connection;
+
+/**
+ * Frees search contexts that queries sent by the cache itself leave on a data
+ * node. The search transport service is only bound in the injector, so this
+ * component hands itself to the cache when it is created.
+ */
+public class SearchContextReleaser extends AbstractLifecycleComponent {
+
+    private final SearchTransportService searchTransportService;
+
+    @Inject
+    public SearchContextReleaser(final Settings settings, final SearchTransportService searchTransportService,
+            final QueryResultCache queryResultCache) {
+        super(settings);
+        this.searchTransportService = searchTransportService;
+        queryResultCache.setContextReleaser(this);
+    }
+
+    public void release(final Connection connection, final long contextId, final OriginalIndices originalIndices) {
+        searchTransportService.sendFreeContext(connection, contextId, originalIndices);
+    }
+
+    @Override
+    protected void doStart() {
+    }
+
+    @Override
+    protected void doStop() {
+    }
+
+    @Override
+    protected void doClose() {
+    }
+}
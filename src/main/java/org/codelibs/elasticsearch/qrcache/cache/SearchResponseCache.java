@@ -0,0 +1,257 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchResponseSections;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.SearchProfileShardResults;
+import org.elasticsearch.transport.RemoteClusterAware;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Final search responses of the coordinating node. An entry records the sum
+ * of the generations of all shards of its indices; since generations only
+ * grow, the sum changes whenever a cached shard response of those indices
+ * would be invalidated, and the entry is then dropped.
+ */
+public class SearchResponseCache implements RemovalListener<Key, SearchResponseCache.Entry> {
+    private static final Logger logger = LogManager.getLogger(SearchResponseCache.class);
+
+    private final ClusterService clusterService;
+
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    private final NamedWriteableRegistry namedWriteableRegistry;
+
+    private final CacheGenerations generations;
+
+    private final KeyBuilder keyBuilder;
+
+    private final Cache<Key, Entry> cache;
+
+    private volatile CounterMetric hitsMetric = new CounterMetric();
+
+    private volatile CounterMetric missesMetric = new CounterMetric();
+
+    private final CounterMetric memoryMetric = new CounterMetric();
+
+    SearchResponseCache(final Settings settings, final ClusterService clusterService, final NamedWriteableRegistry namedWriteableRegistry,
+            final CacheGenerations generations, final KeyBuilder keyBuilder) {
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = new IndexNameExpressionResolver(settings);
+        this.namedWriteableRegistry = namedWriteableRegistry;
+        this.generations = generations;
+        this.keyBuilder = keyBuilder;
+        cache = CacheBuilder.newBuilder().maximumWeight(QueryResultCache.SEARCH_RESPONSE_MAX_SIZE_SETTING.get(settings).getBytes())
+                .weigher((Key key, Entry entry) -> (int) (key.ramBytesUsed() + entry.bytes.length())).removalListener(this)
+                .concurrencyLevel(QueryResultCache.CONCURRENCY_LEVEL).build();
+    }
+
+    /**
+     * Answers the request from the cache, or passes it on and caches the
+     * response if every shard of its indices responded.
+     */
+    public void search(final SearchRequest request, final ActionListener<SearchResponse> listener,
+            final Consumer<ActionListener<SearchResponse>> proceed) {
+        final long startTime = System.nanoTime();
+        final ClusterState state = clusterService.state();
+        final Index[] indices = cacheableIndices(state, request);
+        if (indices == null) {
+            proceed.accept(listener);
+            return;
+        }
+        final Key key;
+        try {
+            key = key(request, state, indices);
+        } catch (final IOException e) {
+            logger.debug("Failed to build a search response key.", e);
+            proceed.accept(listener);
+            return;
+        }
+        final long stamp = stamp(state, indices);
+        final Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            if (entry.stamp == stamp) {
+                final SearchResponse response;
+                try {
+                    response = read(entry.bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                } catch (final IOException e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                hitsMetric.inc();
+                listener.onResponse(response);
+                return;
+            }
+            cache.invalidate(key);
+        }
+        missesMetric.inc();
+        final long staleReads = generations.staleReads();
+        proceed.accept(new ActionListener<SearchResponse>() {
+
+            @Override
+            public void onResponse(final SearchResponse response) {
+                if (response.getFailedShards() == 0 && !response.isTimedOut() && response.getScrollId() == null
+                        && stamp(clusterService.state(), indices) == stamp && generations.staleReads() == staleReads) {
+                    try (final BytesStreamOutput out = new BytesStreamOutput()) {
+                        response.writeTo(out);
+                        final Entry value = new Entry(out.bytes(), stamp);
+                        memoryMetric.inc(value.bytes.length() + key.ramBytesUsed());
+                        cache.put(key, value);
+                    } catch (final IOException e) {
+                        logger.warn("Failed to write a search response to the cache.", e);
+                    }
+                }
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private Index[] cacheableIndices(final ClusterState state, final SearchRequest request) {
+        if (request.scroll() != null) {
+            return null;
+        }
+        for (final String index : request.indices()) {
+            if (index.indexOf(RemoteClusterAware.REMOTE_CLUSTER_INDEX_SEPARATOR) >= 0) {
+                return null;
+            }
+        }
+        final Index[] indices;
+        try {
+            indices = indexNameExpressionResolver.concreteIndices(state, request);
+        } catch (final RuntimeException e) {
+            // the search reports it
+            return null;
+        }
+        if (indices.length == 0) {
+            return null;
+        }
+        for (final Index index : indices) {
+            final IndexMetaData indexMetaData = state.getMetaData().index(index);
+            if (indexMetaData == null || !QueryResultCache.INDEX_ENABLED_SETTING.get(indexMetaData.getSettings())) {
+                return null;
+            }
+        }
+        Arrays.sort(indices, (i1, i2) -> i1.getUUID().compareTo(i2.getUUID()));
+        return indices;
+    }
+
+    private long stamp(final ClusterState state, final Index[] indices) {
+        long stamp = 0;
+        for (final Index index : indices) {
+            final IndexMetaData indexMetaData = state.getMetaData().index(index);
+            if (indexMetaData == null) {
+                return -1;
+            }
+            for (int i = 0; i < indexMetaData.getNumberOfShards(); i++) {
+                stamp += generations.get(new ShardId(index, i));
+            }
+        }
+        return stamp;
+    }
+
+    private Key key(final SearchRequest request, final ClusterState state, final Index[] indices) throws IOException {
+        final long[] nowIntervals = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            nowIntervals[i] = QueryResultCache.INDEX_NOW_ROUNDING_SETTING.get(state.getMetaData().index(indices[i]).getSettings()).millis();
+        }
+        return keyBuilder.build(request, indices, nowIntervals, System.currentTimeMillis());
+    }
+
+    private SearchResponse read(final BytesReference bytes, final long tookInMillis) throws IOException {
+        final SearchResponse cached = new SearchResponse();
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(bytes.streamInput(), namedWriteableRegistry)) {
+            cached.readFrom(in);
+        }
+        final Map<String, ProfileShardResult> profileResults = cached.getProfileResults();
+        // local searches are rendered without a clusters section
+        final SearchResponse.Clusters clusters = cached.getClusters();
+        final SearchResponseSections sections = new SearchResponseSections(cached.getHits(), cached.getAggregations(), cached.getSuggest(),
+                cached.isTimedOut(), cached.isTerminatedEarly(),
+                profileResults == null || profileResults.isEmpty() ? null : new SearchProfileShardResults(profileResults),
+                cached.getNumReducePhases());
+        return new SearchResponse(sections, null, cached.getTotalShards(), cached.getSuccessfulShards(), cached.getSkippedShards(),
+                tookInMillis, cached.getShardFailures(), clusters.getTotal() == 0 ? SearchResponse.Clusters.EMPTY : clusters);
+    }
+
+    public long clear() {
+        final long removed = cache.size();
+        cache.invalidateAll();
+        hitsMetric = new CounterMetric();
+        missesMetric = new CounterMetric();
+        return removed;
+    }
+
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    public long count() {
+        return cache.size();
+    }
+
+    public long memorySizeInBytes() {
+        return memoryMetric.count();
+    }
+
+    public long hits() {
+        return hitsMetric.count();
+    }
+
+    public long misses() {
+        return missesMetric.count();
+    }
+
+    @Override
+    public void onRemoval(final RemovalNotification<Key, Entry> notification) {
+        final Key key = notification.getKey();
+        final Entry entry = notification.getValue();
+        if (key != null && entry != null) {
+            memoryMetric.dec(entry.bytes.length() + key.ramBytesUsed());
+        }
+    }
+
+    static class Entry {
+
+        final BytesReference bytes;
+
+        final long stamp;
+
+        Entry(final BytesReference bytes, final long stamp) {
+            this.bytes = bytes;
+            this.stamp = stamp;
+        }
+    }
+}
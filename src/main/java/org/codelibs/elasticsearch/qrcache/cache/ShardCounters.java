@@ -0,0 +1,48 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+
+/**
+ * Running counters of the cached responses of one shard. Entry count and
+ * memory follow the entries in the cache and are not reset by a clear.
+ */
+class ShardCounters {
+
+    volatile CounterMetric hits = new CounterMetric();
+
+    volatile CounterMetric total = new CounterMetric();
+
+    volatile CounterMetric misses = new CounterMetric();
+
+    volatile CounterMetric puts = new CounterMetric();
+
+    volatile CounterMetric evictions = new CounterMetric();
+
+    final CounterMetric entries = new CounterMetric();
+
+    final CounterMetric requestMemory = new CounterMetric();
+
+    final CounterMetric responseMemory = new CounterMetric();
+
+    final CounterMetric rawSize = new CounterMetric();
+
+    final CounterMetric storedSize = new CounterMetric();
+
+    void reset() {
+        hits = new CounterMetric();
+        total = new CounterMetric();
+        misses = new CounterMetric();
+        puts = new CounterMetric();
+        evictions = new CounterMetric();
+    }
+
+    QueryResultCacheStats stats() {
+        final QueryResultCacheStats stats = new QueryResultCacheStats(entries.count(), requestMemory.count(), responseMemory.count(),
+                total.count(), hits.count(), evictions.count());
+        stats.misses = misses.count();
+        stats.puts = puts.count();
+        stats.rawSize = rawSize.count();
+        stats.storedSize = storedSize.count();
+        return stats;
+    }
+}
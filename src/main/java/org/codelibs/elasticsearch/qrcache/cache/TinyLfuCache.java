@@ -0,0 +1,177 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
+
+/**
+ * A weighted cache with the W-TinyLFU policy. New entries enter a small LRU
+ * window; entries leaving the window compete with the least recently used
+ * entry of the probation segment, and the one the frequency sketch has seen
+ * less often is evicted. Entries hit again in probation move to the protected
+ * segment. A scan of unique keys therefore only churns the window and the
+ * probation tail instead of flushing the hot set.
+ *
+ * With a window of the whole maximum the cache is a plain LRU, and the
+ * maximum can be changed while it is in use.
+ */
+public class TinyLfuCache<K, V> extends AbstractBoundedCache<K, V, TinyLfuCache.Node<K, V>> {
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    private final double windowRatio;
+
+    private long windowMaximum;
+
+    private long protectedMaximum;
+
+    private final FrequencySketch sketch;
+
+    private final List<AccessList<K, V>> queues;
+
+    private final long[] weights = new long[3];
+
+    public TinyLfuCache(final long maximumWeight, final Weigher<K, V> weigher, final RemovalListener<K, V> removalListener,
+            final long expireAfterAccessNanos, final long expectedEntries) {
+        this(maximumWeight, 0.01, weigher, removalListener, expireAfterAccessNanos, expectedEntries);
+    }
+
+    /**
+     * @param windowRatio the share of the maximum weight used by the LRU
+     *        window; 1.0 turns off frequency-based admission
+     */
+    public TinyLfuCache(final long maximumWeight, final double windowRatio, final Weigher<K, V> weigher,
+            final RemovalListener<K, V> removalListener, final long expireAfterAccessNanos, final long expectedEntries) {
+        super(maximumWeight, weigher, removalListener, expireAfterAccessNanos);
+        this.windowRatio = windowRatio;
+        onResize(maximumWeight);
+        sketch = new FrequencySketch(expectedEntries);
+        queues = Arrays.asList(new AccessList<K, V>(), new AccessList<K, V>(), new AccessList<K, V>());
+    }
+
+    @Override
+    protected Node<K, V> newNode(final K key, final V value, final int weight) {
+        return new Node<>(key, value, weight);
+    }
+
+    @Override
+    protected void onMiss(final Object key) {
+        recordRead(Integer.valueOf(key.hashCode()));
+    }
+
+    @Override
+    protected List<AccessList<K, V>> accessLists() {
+        return queues;
+    }
+
+    @Override
+    public long weightedSize() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    @Override
+    protected void onResize(final long maximumWeight) {
+        windowMaximum = Math.max(1, (long) (maximumWeight * windowRatio));
+        protectedMaximum = Math.max(0, maximumWeight - windowMaximum) * 8 / 10;
+    }
+
+    @Override
+    protected void onRead(final Object event) {
+        if (event instanceof Node) {
+            @SuppressWarnings("unchecked")
+            final Node<K, V> node = (Node<K, V>) event;
+            sketch.increment(node.key.hashCode());
+            onHit(node);
+        } else {
+            sketch.increment(((Integer) event).intValue());
+        }
+    }
+
+    private void onHit(final Node<K, V> node) {
+        if (!node.linked) {
+            return;
+        }
+        if (node.queue == PROBATION) {
+            unlink(node);
+            link(node, PROTECTED);
+            while (weights[PROTECTED] > protectedMaximum) {
+                @SuppressWarnings("unchecked")
+                final Node<K, V> demoted = (Node<K, V>) queues.get(PROTECTED).head;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            queues.get(node.queue).moveToTail(node);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void evict() {
+        final Deque<Node<K, V>> candidates = new ArrayDeque<>();
+        while (weights[WINDOW] > windowMaximum && queues.get(WINDOW).head != null) {
+            final Node<K, V> node = (Node<K, V>) queues.get(WINDOW).head;
+            unlink(node);
+            link(node, PROBATION);
+            candidates.add(node);
+        }
+        while (weightedSize() > maximumWeight()) {
+            Node<K, V> victim = (Node<K, V>) queues.get(PROBATION).head;
+            final Node<K, V> candidate = candidates.peekFirst();
+            if (candidate != null && !candidate.linked) {
+                candidates.pollFirst();
+                continue;
+            }
+            if (victim == null) {
+                victim = (Node<K, V>) (queues.get(PROTECTED).head != null ? queues.get(PROTECTED).head : queues.get(WINDOW).head);
+            } else if (candidate != null && victim != candidate) {
+                if (sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    victim = candidate;
+                    candidates.pollFirst();
+                }
+            } else if (candidate != null) {
+                candidates.pollFirst();
+            }
+            if (victim == null) {
+                break;
+            }
+            evict(victim);
+        }
+    }
+
+    @Override
+    protected void link(final Node<K, V> node) {
+        link(node, WINDOW);
+    }
+
+    private void link(final Node<K, V> node, final int queue) {
+        node.queue = queue;
+        queues.get(queue).addTail(node);
+        weights[queue] += node.weight;
+    }
+
+    @Override
+    protected void unlink(final Node<K, V> node) {
+        if (node.linked) {
+            queues.get(node.queue).remove(node);
+            weights[node.queue] -= node.weight;
+        }
+    }
+
+    static final class Node<K, V> extends AbstractBoundedCache.Node<K, V> {
+
+        int queue;
+
+        Node(final K key, final V value, final int weight) {
+            super(key, value, weight);
+        }
+    }
+}
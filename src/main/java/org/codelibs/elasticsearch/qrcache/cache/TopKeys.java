@@ -0,0 +1,155 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The keys with the largest total weight, counted with the weighted
+ * Space-Saving algorithm: a key that is not tracked when the tracker is full
+ * replaces the lightest one and starts from its weight, so the weight of a
+ * tracked key is overestimated by at most its error. All weights are halved
+ * once the tracker has seen ten times its capacity, so that keys which are no
+ * longer used fade out. Each key keeps a label from the first time it was
+ * recorded and the time it was last recorded.
+ *
+ * <p>Keys are spread over independently locked stripes by their hash, so
+ * that concurrent records rarely contend and replacing a key only scans its
+ * stripe.
+ */
+class TopKeys<K, L> {
+
+    private static final int MAX_STRIPES = 8;
+
+    private static final int MIN_STRIPE_CAPACITY = 8;
+
+    private final Stripe<K, L>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    TopKeys(final int capacity) {
+        final int count = Math.max(1, Math.min(MAX_STRIPES, capacity / MIN_STRIPE_CAPACITY));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<>((capacity + count - 1) / count);
+        }
+    }
+
+    void record(final K key, final long weight, final L label) {
+        stripe(key).record(key, weight, label);
+    }
+
+    /**
+     * Tracks the entry if its stripe is not full, as when restoring a
+     * previous top.
+     */
+    void add(final Entry<K, L> entry) {
+        stripe(entry.key).add(entry);
+    }
+
+    /**
+     * Returns copies of up to n of the heaviest keys, heaviest first.
+     */
+    List<Entry<K, L>> top(final int n) {
+        final List<Entry<K, L>> top = new ArrayList<>();
+        for (final Stripe<K, L> stripe : stripes) {
+            stripe.copyTo(top);
+        }
+        top.sort((e1, e2) -> Long.compare(e2.weight, e1.weight));
+        return new ArrayList<>(top.subList(0, Math.min(n, top.size())));
+    }
+
+    int size() {
+        int size = 0;
+        for (final Stripe<K, L> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe<K, L> stripe(final K key) {
+        final int h = key.hashCode();
+        return stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length];
+    }
+
+    private static class Stripe<K, L> {
+
+        private final int capacity;
+
+        private final Map<K, Entry<K, L>> entries = new HashMap<>();
+
+        private long samples;
+
+        Stripe(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void record(final K key, final long weight, final L label) {
+            if (capacity == 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            final Entry<K, L> entry = entries.get(key);
+            if (entry != null) {
+                entry.weight += weight;
+                entry.recordedNanos = now;
+            } else if (entries.size() < capacity) {
+                entries.put(key, new Entry<>(key, label, weight, 0, now));
+            } else {
+                Entry<K, L> min = null;
+                for (final Entry<K, L> e : entries.values()) {
+                    if (min == null || e.weight < min.weight) {
+                        min = e;
+                    }
+                }
+                entries.remove(min.key);
+                entries.put(key, new Entry<>(key, label, min.weight + weight, min.weight, now));
+            }
+            if (++samples >= 10L * capacity) {
+                samples = 0;
+                entries.values().removeIf(e -> {
+                    e.weight >>= 1;
+                    e.error >>= 1;
+                    return e.weight == 0;
+                });
+            }
+        }
+
+        synchronized void add(final Entry<K, L> entry) {
+            if (entries.size() < capacity) {
+                entries.putIfAbsent(entry.key, new Entry<>(entry.key, entry.label, entry.weight, entry.error, entry.recordedNanos));
+            }
+        }
+
+        synchronized void copyTo(final List<Entry<K, L>> list) {
+            for (final Entry<K, L> entry : entries.values()) {
+                list.add(new Entry<>(entry.key, entry.label, entry.weight, entry.error, entry.recordedNanos));
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    static class Entry<K, L> {
+
+        final K key;
+
+        final L label;
+
+        long weight;
+
+        long error;
+
+        long recordedNanos;
+
+        Entry(final K key, final L label, final long weight, final long error, final long recordedNanos) {
+            this.key = key;
+            this.label = label;
+            this.weight = weight;
+            this.error = error;
+            this.recordedNanos = recordedNanos;
+        }
+    }
+}
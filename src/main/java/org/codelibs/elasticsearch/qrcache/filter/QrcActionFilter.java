@@ -0,0 +1,59 @@
+package org.codelibs.elasticsearch.qrcache.filter;
+
+import org.codelibs.elasticsearch.qrcache.cache.CacheWarmer;
+import org.codelibs.elasticsearch.qrcache.cache.SearchResponseCache;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.tasks.Task;
+
+/**
+ * Records searches for the cache warmer and serves repeated searches from the
+ * cache of final search responses before they are sent to any shard. Either
+ * may be null.
+ */
+public class QrcActionFilter implements ActionFilter {
+
+    private final SearchResponseCache searchResponseCache;
+
+    private final CacheWarmer warmer;
+
+    public QrcActionFilter(final SearchResponseCache searchResponseCache, final CacheWarmer warmer) {
+        this.searchResponseCache = searchResponseCache;
+        this.warmer = warmer;
+    }
+
+    @Override
+    public int order() {
+        // after filters that may change or reject the request
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse> void apply(final Task task, final String action,
+            final Request request, final ActionListener<Response> listener, final ActionFilterChain<Request, Response> chain) {
+        if (!SearchAction.NAME.equals(action)) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+        if (warmer != null) {
+            warmer.record((SearchRequest) request);
+        }
+        if (searchResponseCache == null) {
+            chain.proceed(task, action, request, listener);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        final ActionListener<SearchResponse> searchListener = (ActionListener<SearchResponse>) listener;
+        searchResponseCache.search((SearchRequest) request, searchListener, l -> {
+            @SuppressWarnings("unchecked")
+            final ActionListener<Response> responseListener = (ActionListener<Response>) l;
+            chain.proceed(task, action, request, responseListener);
+        });
+    }
+}
@@ -0,0 +1,196 @@
+package org.codelibs.elasticsearch.qrcache.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsAction;
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsRequest;
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.translog.Translog;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Watches writes on local shards of cache-enabled indices and, once a refresh
+ * makes them searchable, asks every node to invalidate the cached responses of
+ * that shard.
+ */
+public class ShardRefreshWatcher implements IndexEventListener, IndexingOperationListener {
+    private static final Logger logger = LogManager.getLogger(ShardRefreshWatcher.class);
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final Map<ShardId, ShardState> shardStates = ConcurrentCollections.newConcurrentMap();
+
+    private final Set<ShardId> changedShards = ConcurrentCollections.newConcurrentSet();
+
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+    public ShardRefreshWatcher(final Client client, final ThreadPool threadPool) {
+        this.client = client;
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    public void afterIndexShardCreated(final IndexShard indexShard) {
+        shardStates.put(indexShard.shardId(), new ShardState(indexShard));
+    }
+
+    @Override
+    public void beforeIndexShardClosed(final ShardId shardId, @Nullable final IndexShard indexShard, final Settings indexSettings) {
+        shardStates.remove(shardId);
+    }
+
+    @Override
+    public void postIndex(final ShardId shardId, final Engine.Index index, final Engine.IndexResult result) {
+        if (result.getResultType() == Engine.Result.Type.SUCCESS) {
+            onWrite(shardId, result.getTranslogLocation());
+        }
+    }
+
+    @Override
+    public void postDelete(final ShardId shardId, final Engine.Delete delete, final Engine.DeleteResult result) {
+        if (result.getResultType() == Engine.Result.Type.SUCCESS) {
+            onWrite(shardId, result.getTranslogLocation());
+        }
+    }
+
+    private void onWrite(final ShardId shardId, final Translog.Location location) {
+        if (location == null) {
+            return;
+        }
+        final ShardState state = shardStates.get(shardId);
+        if (state != null) {
+            state.onWrite(location);
+        }
+    }
+
+    void onRefreshed(final ShardId shardId) {
+        changedShards.add(shardId);
+        if (flushing.compareAndSet(false, true)) {
+            try {
+                threadPool.executor(ThreadPool.Names.GENERIC).execute(this::flush);
+            } catch (final EsRejectedExecutionException e) {
+                logger.warn("Can not notify shard changes - execution rejected", e);
+                flushing.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        final List<ShardId> shardIds = new ArrayList<>();
+        for (final ShardId shardId : changedShards) {
+            if (changedShards.remove(shardId)) {
+                shardIds.add(shardId);
+            }
+        }
+        if (shardIds.isEmpty()) {
+            flushing.set(false);
+            if (!changedShards.isEmpty() && flushing.compareAndSet(false, true)) {
+                flush();
+            }
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Shards {} were refreshed. Invalidating cached responses.", shardIds);
+        }
+        try (ThreadContext.StoredContext ignore = threadPool.getThreadContext().stashContext()) {
+            client.execute(InvalidateShardsAction.INSTANCE, new InvalidateShardsRequest(shardIds),
+                    new ActionListener<InvalidateShardsResponse>() {
+                        @Override
+                        public void onResponse(final InvalidateShardsResponse response) {
+                            if (response.hasFailures()) {
+                                logger.warn("Failed to invalidate cached responses for {} on some nodes: {}", shardIds,
+                                        response.failures());
+                            }
+                            flush();
+                        }
+
+                        @Override
+                        public void onFailure(final Exception e) {
+                            logger.warn("Failed to invalidate cached responses for " + shardIds, e);
+                            flush();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Keeps at most one refresh listener per shard, registered for the latest
+     * write location seen, so that bulk loads do not hit the refresh listener
+     * limit and force refreshes.
+     */
+    private class ShardState {
+
+        private final IndexShard indexShard;
+
+        private Translog.Location pendingLocation;
+
+        private boolean listening;
+
+        ShardState(final IndexShard indexShard) {
+            this.indexShard = indexShard;
+        }
+
+        void onWrite(final Translog.Location location) {
+            synchronized (this) {
+                if (pendingLocation == null || location.compareTo(pendingLocation) > 0) {
+                    pendingLocation = location;
+                }
+                if (listening) {
+                    return;
+                }
+                listening = true;
+            }
+            listen(location);
+        }
+
+        private void listen(final Translog.Location location) {
+            try {
+                indexShard.addRefreshListener(location, forced -> onVisible(location));
+            } catch (final IllegalStateException e) {
+                // the shard is closing
+                synchronized (this) {
+                    pendingLocation = null;
+                    listening = false;
+                }
+            }
+        }
+
+        private void onVisible(final Translog.Location location) {
+            onRefreshed(indexShard.shardId());
+            final Translog.Location next;
+            synchronized (this) {
+                if (pendingLocation != null && pendingLocation.compareTo(location) > 0) {
+                    next = pendingLocation;
+                } else {
+                    next = null;
+                    pendingLocation = null;
+                    listening = false;
+                }
+            }
+            if (next != null) {
+                listen(next);
+            }
+        }
+    }
+}
@@ -2,8 +2,12 @@ package org.codelibs.elasticsearch.qrcache.rest;
 
 import java.io.IOException;
 
-import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheAction;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheRequest;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheResponse;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
@@ -14,15 +18,10 @@ import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestRequest.Method;
 import org.elasticsearch.rest.RestStatus;
 
-import com.google.common.base.Strings;
-
 public class RestClearQrcAction extends BaseRestHandler {
 
-    private QueryResultCache queryResultCache;
-
-    public RestClearQrcAction(final Settings settings, final RestController controller, final QueryResultCache queryResultCache) {
+    public RestClearQrcAction(final Settings settings, final RestController controller) {
         super(settings);
-        this.queryResultCache = queryResultCache;
 
         controller.registerHandler(Method.POST, "/_qrc/clear", this);
         controller.registerHandler(Method.POST, "/{index}/_qrc/clear", this);
@@ -35,27 +34,38 @@ public class RestClearQrcAction extends BaseRestHandler {
 
     @Override
     protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
-        final String index = request.param("index");
+        final String[] indices = Strings.splitStringByCommaToArray(request.param("index"));
         final String pretty = request.param("pretty");
 
-        return channel -> {
-            if (Strings.isNullOrEmpty(index)) {
-                queryResultCache.clear();
-            } else {
-                final String[] indices = index.split(",");
-                queryResultCache.clear(indices);
-            }
-
-            final XContentBuilder builder = JsonXContent.contentBuilder();
-            if (pretty != null && !"false".equalsIgnoreCase(pretty)) {
-                builder.prettyPrint().lfAtEnd();
-            }
-            builder.startObject();
-            builder.field("acknowledged", true);
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-        };
+        return channel -> client.execute(ClearCacheAction.INSTANCE, new ClearCacheRequest(indices),
+                new ActionListener<ClearCacheResponse>() {
+
+                    @Override
+                    public void onResponse(final ClearCacheResponse response) {
+                        try {
+                            final XContentBuilder builder = JsonXContent.contentBuilder();
+                            if (pretty != null && !"false".equalsIgnoreCase(pretty)) {
+                                builder.prettyPrint().lfAtEnd();
+                            }
+                            builder.startObject();
+                            response.toXContent(builder, request);
+                            builder.endObject();
+                            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                        } catch (final IOException e) {
+                            onFailure(e);
+                        }
+                    }
 
+                    @Override
+                    public void onFailure(final Exception e) {
+                        try {
+                            channel.sendResponse(new BytesRestResponse(channel, e));
+                        } catch (final IOException inner) {
+                            inner.addSuppressed(e);
+                            logger.warn("Failed to send a failure response.", inner);
+                        }
+                    }
+                });
     }
 
 }
@@ -0,0 +1,43 @@
+package org.codelibs.elasticsearch.qrcache.rest;
+
+import java.io.IOException;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Serves the metrics of the node that receives the request in the Prometheus
+ * text format, to be scraped from every node.
+ */
+public class RestMetricsQrcAction extends BaseRestHandler {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=UTF-8";
+
+    private final QueryResultCache queryResultCache;
+
+    public RestMetricsQrcAction(final Settings settings, final RestController controller, final QueryResultCache queryResultCache) {
+        super(settings);
+        this.queryResultCache = queryResultCache;
+
+        controller.registerHandler(Method.GET, "/_qrc/metrics", this);
+    }
+
+    @Override
+    public String getName() {
+        return "qrcache_metrics_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
+        return channel -> channel.sendResponse(new BytesRestResponse(RestStatus.OK, CONTENT_TYPE,
+                queryResultCache.metrics().exposition()));
+    }
+
+}
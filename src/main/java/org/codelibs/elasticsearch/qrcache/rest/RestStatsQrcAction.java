@@ -2,9 +2,12 @@ package org.codelibs.elasticsearch.qrcache.rest;
 
 import java.io.IOException;
 
-import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
-import org.codelibs.elasticsearch.qrcache.cache.QueryResultCacheStats;
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsAction;
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsRequest;
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsResponse;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
@@ -17,13 +20,11 @@ import org.elasticsearch.rest.RestStatus;
 
 public class RestStatsQrcAction extends BaseRestHandler {
 
-    private QueryResultCache queryResultCache;
-
-    public RestStatsQrcAction(final Settings settings, final RestController controller, final QueryResultCache queryResultCache) {
+    public RestStatsQrcAction(final Settings settings, final RestController controller) {
         super(settings);
-        this.queryResultCache = queryResultCache;
 
         controller.registerHandler(Method.GET, "/_qrc/stats", this);
+        controller.registerHandler(Method.GET, "/_qrc/stats/{nodeId}", this);
     }
 
     @Override
@@ -33,22 +34,38 @@ public class RestStatsQrcAction extends BaseRestHandler {
 
     @Override
     protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        final String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
         final String pretty = request.param("pretty");
 
-        return channel -> {
-            final QueryResultCacheStats stats = queryResultCache.stats();
-
-            final XContentBuilder builder = JsonXContent.contentBuilder();
-            if (pretty != null && !"false".equalsIgnoreCase(pretty)) {
-                builder.prettyPrint().lfAtEnd();
-            }
-            builder.startObject();
-            builder.startObject("_all");
-            stats.toXContent(builder, null);
-            builder.endObject();
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-        };
+        return channel -> client.execute(CacheStatsAction.INSTANCE, new CacheStatsRequest(nodesIds),
+                new ActionListener<CacheStatsResponse>() {
+
+                    @Override
+                    public void onResponse(final CacheStatsResponse response) {
+                        try {
+                            final XContentBuilder builder = JsonXContent.contentBuilder();
+                            if (pretty != null && !"false".equalsIgnoreCase(pretty)) {
+                                builder.prettyPrint().lfAtEnd();
+                            }
+                            builder.startObject();
+                            response.toXContent(builder, request);
+                            builder.endObject();
+                            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                        } catch (final IOException e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final Exception e) {
+                        try {
+                            channel.sendResponse(new BytesRestResponse(channel, e));
+                        } catch (final IOException inner) {
+                            inner.addSuppressed(e);
+                            logger.warn("Failed to send a failure response.", inner);
+                        }
+                    }
+                });
     }
 
 }
@@ -2,6 +2,7 @@ package org.codelibs.elasticsearch.qrcache.transport;
 
 import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
 import org.elasticsearch.action.search.SearchTransportService;
+import org.elasticsearch.search.fetch.ShardFetchSearchRequest;
 import org.elasticsearch.search.internal.ShardSearchTransportRequest;
 import org.elasticsearch.transport.Transport.Connection;
 import org.elasticsearch.transport.TransportInterceptor;
@@ -41,6 +42,14 @@ public class QrcTransportInterceptor implements TransportInterceptor {
                     return;
                 }
             }
+            if (SearchTransportService.FETCH_ID_ACTION_NAME.equals(action)) {
+                queryResultCache.sendFetchRequest(connection, action, (ShardFetchSearchRequest) request, options, handler, sender);
+                return;
+            }
+            if (SearchTransportService.FREE_CONTEXT_ACTION_NAME.equals(action)) {
+                queryResultCache.sendFreeContext(connection, action, request, options, handler, sender);
+                return;
+            }
             sender.sendRequest(connection, action, request, options, handler);
         }
 
@@ -0,0 +1,374 @@
+package org.codelibs.elasticsearch.qrcache;
+
+import static java.util.Collections.emptyList;
+import static org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner.newConfigs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsAction;
+import org.codelibs.elasticsearch.qrcache.action.CacheStatsRequest;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheAction;
+import org.codelibs.elasticsearch.qrcache.action.ClearCacheRequest;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCacheStats;
+import org.codelibs.elasticsearch.runner.ElasticsearchClusterRunner;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+/**
+ * Replays a query log against a cluster with the plugin, once on an index
+ * without the cache and once on a copy of it with the cache, while documents
+ * are written and refreshed, and prints the throughput, the median and 99th
+ * percentile latency and the hit ratio of each run.
+ *
+ * Usage: LoadTestHarness [name=value ...]. Arguments starting with
+ * query_result_cache. are node settings; the others are:
+ * <ul>
+ * <li>nodes: number of nodes (1)</li>
+ * <li>shards: number of shards of each index (2)</li>
+ * <li>corpus: a file with one JSON document per line; without it,
+ * synthetic log events are generated</li>
+ * <li>docs: number of synthetic log events (100000)</li>
+ * <li>mapping: a file with the mapping of the recorded corpus</li>
+ * <li>queries: a file with one search body per line, replayed in order;
+ * without it, searches are drawn from a Zipf distribution over dashboard,
+ * top-n, full-text and lookup searches</li>
+ * <li>requests: number of synthetic searches (20000)</li>
+ * <li>distinct: number of distinct synthetic searches (2000)</li>
+ * <li>warmup: searches replayed before measuring (10% of the log)</li>
+ * <li>threads: concurrent searches (8)</li>
+ * <li>writes: documents indexed per second during a run (20)</li>
+ * <li>refresh: the refresh interval of the indices (1s)</li>
+ * <li>seed: seed of the synthetic corpus, log and writes (0)</li>
+ * </ul>
+ * Searches are sent through the node clients, round robin over the nodes, and
+ * the shard request cache of Elasticsearch is disabled on both indices so that
+ * only this plugin caches.
+ */
+public class LoadTestHarness {
+
+    private static final String[] SERVICES = { "checkout", "cart", "search", "auth", "payment", "catalog", "shipping",
+            "inventory", "recommend", "gateway", "email", "billing", "profile", "review", "ads", "session", "media", "report",
+            "export", "admin" };
+
+    private static final String[] WORDS = { "connection", "timeout", "refused", "request", "completed", "failed", "retry",
+            "user", "login", "order", "payment", "declined", "cache", "miss", "slow", "query", "upstream", "error", "started",
+            "stopped" };
+
+    private static final String MAPPING = "{\"properties\":{\"@timestamp\":{\"type\":\"date\"},"
+            + "\"service\":{\"type\":\"keyword\"},\"level\":{\"type\":\"keyword\"},\"host\":{\"type\":\"keyword\"},"
+            + "\"user\":{\"properties\":{\"id\":{\"type\":\"keyword\"}}},\"message\":{\"type\":\"text\"},"
+            + "\"bytes\":{\"type\":\"long\"},\"response_time\":{\"type\":\"long\"}}}";
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        final Settings.Builder nodeSettings = Settings.builder();
+        for (final String arg : args) {
+            final int i = arg.indexOf('=');
+            if (i < 0) {
+                throw new IllegalArgumentException("Expected name=value, but got " + arg);
+            }
+            if (arg.startsWith("query_result_cache.")) {
+                nodeSettings.put(arg.substring(0, i), arg.substring(i + 1));
+            } else {
+                options.put(arg.substring(0, i), arg.substring(i + 1));
+            }
+        }
+        final int nodes = Integer.parseInt(options.getOrDefault("nodes", "1"));
+        final int shards = Integer.parseInt(options.getOrDefault("shards", "2"));
+        final int threads = Integer.parseInt(options.getOrDefault("threads", "8"));
+        final int writes = Integer.parseInt(options.getOrDefault("writes", "20"));
+        final String refresh = options.getOrDefault("refresh", "1s");
+        final long seed = Long.parseLong(options.getOrDefault("seed", "0"));
+
+        final List<String> corpus;
+        final String mapping;
+        if (options.containsKey("corpus")) {
+            corpus = readLines(options.get("corpus"));
+            mapping = options.containsKey("mapping")
+                    ? new String(Files.readAllBytes(Paths.get(options.get("mapping"))), StandardCharsets.UTF_8) : null;
+        } else {
+            corpus = syntheticCorpus(Integer.parseInt(options.getOrDefault("docs", "100000")), new Random(seed));
+            mapping = MAPPING;
+        }
+        final List<String> queries;
+        if (options.containsKey("queries")) {
+            queries = readLines(options.get("queries"));
+        } else {
+            queries = syntheticQueries(Integer.parseInt(options.getOrDefault("distinct", "2000")),
+                    Integer.parseInt(options.getOrDefault("requests", "20000")), new Random(seed));
+        }
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", String.valueOf(queries.size() / 10)));
+        System.out.println("documents=" + corpus.size() + ", searches=" + queries.size() + ", warmup=" + warmup + ", threads="
+                + threads + ", writes=" + writes + "/s, refresh=" + refresh + ", settings=" + nodeSettings.build());
+
+        final ElasticsearchClusterRunner runner = new ElasticsearchClusterRunner();
+        try {
+            runner.onBuild((number, settingsBuilder) -> {
+                settingsBuilder.putList("discovery.zen.ping.unicast.hosts", "localhost:9301-9310");
+                settingsBuilder.put(nodeSettings.build());
+            }).build(newConfigs().clusterName("es-cl-run-" + System.currentTimeMillis())
+                    .pluginTypes("org.codelibs.elasticsearch.qrcache.QueryResultCachePlugin").numOfNode(nodes));
+            runner.ensureYellow();
+
+            final Client[] clients = new Client[nodes];
+            for (int i = 0; i < nodes; i++) {
+                clients[i] = runner.getNode(i).client();
+            }
+            final String[] indices = { "load_disabled", "load_enabled" };
+            for (final String index : indices) {
+                final Settings.Builder indexSettings = Settings.builder().put("index.number_of_shards", shards)
+                        .put("index.number_of_replicas", 0).put("index.refresh_interval", refresh)
+                        .put("index.requests.cache.enable", false)
+                        .put(QueryResultCache.INDEX_ENABLED_SETTING.getKey(), index.endsWith("enabled"));
+                if (mapping != null) {
+                    runner.admin().indices().prepareCreate(index).setSettings(indexSettings).addMapping("_doc", mapping, XContentType.JSON)
+                            .get();
+                } else {
+                    runner.admin().indices().prepareCreate(index).setSettings(indexSettings).get();
+                }
+                load(runner.client(), index, corpus);
+            }
+            runner.ensureGreen(indices);
+            runner.refresh();
+
+            final NamedXContentRegistry registry =
+                    new NamedXContentRegistry(new SearchModule(Settings.EMPTY, false, emptyList()).getNamedXContents());
+            System.out.println(String.format("%-9s %9s %7s %13s %9s %9s %10s", "cache", "searches", "errors", "throughput/s",
+                    "p50 ms", "p99 ms", "hit ratio"));
+            for (final String index : indices) {
+                run(runner, clients, registry, index, queries, warmup, threads, corpus, writes, seed);
+            }
+        } finally {
+            runner.close();
+            runner.clean();
+        }
+    }
+
+    private static void run(final ElasticsearchClusterRunner runner, final Client[] clients, final NamedXContentRegistry registry,
+            final String index, final List<String> queries, final int warmup, final int threads, final List<String> corpus,
+            final int writes, final long seed) throws Exception {
+        runner.client().execute(ClearCacheAction.INSTANCE, new ClearCacheRequest()).get();
+        final AtomicBoolean done = new AtomicBoolean();
+        // the same writes on both indices
+        final Thread writer = new Thread(() -> write(runner.client(), index, corpus, writes, new Random(seed), done), "writer");
+        writer.start();
+        try {
+            replay(clients, registry, index, queries.subList(0, Math.min(warmup, queries.size())), threads, null, null);
+            final QueryResultCacheStats before = stats(runner);
+            final ConcurrentHistogram latency = new ConcurrentHistogram(3);
+            final AtomicLong errors = new AtomicLong();
+            final List<String> measured = queries.subList(Math.min(warmup, queries.size()), queries.size());
+            final long start = System.nanoTime();
+            replay(clients, registry, index, measured, threads, latency, errors);
+            final long elapsed = System.nanoTime() - start;
+            final QueryResultCacheStats after = stats(runner);
+
+            final long total = after.getTotal() - before.getTotal();
+            final long hits = after.getHits() - before.getHits();
+            System.out.println(String.format("%-9s %9d %7d %13.1f %9.2f %9.2f %10s", index.substring("load_".length()),
+                    measured.size(), errors.get(), measured.size() * 1e9 / elapsed, latency.getValueAtPercentile(50) / 1000.0,
+                    latency.getValueAtPercentile(99) / 1000.0,
+                    total > 0 ? String.format("%.2f%%", hits * 100.0 / total) : "-"));
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    private static QueryResultCacheStats stats(final ElasticsearchClusterRunner runner) throws Exception {
+        return runner.client().execute(CacheStatsAction.INSTANCE, new CacheStatsRequest()).get().getTotal();
+    }
+
+    private static void replay(final Client[] clients, final NamedXContentRegistry registry, final String index,
+            final List<String> queries, final int threads, final ConcurrentHistogram latency, final AtomicLong errors)
+            throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Client client = clients[t % clients.length];
+            workers[t] = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < queries.size()) {
+                    try {
+                        final SearchRequest request = new SearchRequest(index).source(parse(registry, queries.get(i)));
+                        final long start = System.nanoTime();
+                        final SearchResponse response = client.search(request).actionGet();
+                        if (latency != null) {
+                            latency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                        }
+                        if (response.getShardFailures().length > 0) {
+                            // partial results are not an exception, but are not correct either
+                            throw response.getShardFailures()[0].getCause();
+                        }
+                    } catch (final Throwable e) {
+                        if (errors == null) {
+                            continue;
+                        }
+                        if (errors.getAndIncrement() == 0) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }, "search-" + t);
+            workers[t].start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static SearchSourceBuilder parse(final NamedXContentRegistry registry, final String source) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(registry, LoggingDeprecationHandler.INSTANCE, source)) {
+            return SearchSourceBuilder.fromXContent(parser);
+        }
+    }
+
+    private static void load(final Client client, final String index, final List<String> corpus) {
+        for (int from = 0; from < corpus.size(); from += 1000) {
+            final BulkRequestBuilder bulk = client.prepareBulk();
+            for (final String doc : corpus.subList(from, Math.min(from + 1000, corpus.size()))) {
+                bulk.add(client.prepareIndex(index, "_doc").setSource(doc, XContentType.JSON));
+            }
+            final BulkResponse response = bulk.get();
+            if (response.hasFailures()) {
+                throw new IllegalStateException(response.buildFailureMessage());
+            }
+        }
+    }
+
+    /**
+     * Indexes copies of random documents of the corpus at the given rate until
+     * done; they become visible, and invalidate cached responses, at the next
+     * refresh.
+     */
+    private static void write(final Client client, final String index, final List<String> corpus, final int perSecond,
+            final Random random, final AtomicBoolean done) {
+        if (perSecond <= 0) {
+            return;
+        }
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        long next = System.nanoTime();
+        while (!done.get()) {
+            try {
+                client.prepareIndex(index, "_doc").setSource(corpus.get(random.nextInt(corpus.size())), XContentType.JSON).get();
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+            next += intervalNanos;
+            final long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static List<String> readLines(final String file) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Log events of the last week.
+     */
+    private static List<String> syntheticCorpus(final int size, final Random random) {
+        final long now = System.currentTimeMillis();
+        final List<String> corpus = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final int level = random.nextInt(100);
+            final StringBuilder message = new StringBuilder();
+            for (int w = 0; w < 6; w++) {
+                message.append(w > 0 ? " " : "").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            corpus.add("{\"@timestamp\":" + (now - (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(7))) + ",\"service\":\""
+                    + SERVICES[random.nextInt(SERVICES.length)] + "\",\"level\":\""
+                    + (level < 80 ? "INFO" : level < 95 ? "WARN" : "ERROR") + "\",\"host\":\"host-" + random.nextInt(100)
+                    + "\",\"user\":{\"id\":\"user-" + random.nextInt(1000) + "\"},\"message\":\"" + message + "\",\"bytes\":"
+                    + random.nextInt(100000) + ",\"response_time\":" + random.nextInt(2000) + "}");
+        }
+        return corpus;
+    }
+
+    /**
+     * A Zipf-distributed log over distinct searches: dashboard aggregations
+     * over the last day, top hosts by traffic, full-text searches of recent
+     * events and user lookups.
+     */
+    private static List<String> syntheticQueries(final int distinct, final int size, final Random random) {
+        final String[] searches = new String[distinct];
+        for (int i = 0; i < distinct; i++) {
+            final String service = SERVICES[i % SERVICES.length];
+            switch (i % 4) {
+            case 0:
+                searches[i] = "{\"size\":0,\"query\":{\"bool\":{\"filter\":[{\"term\":{\"service\":\"" + service + "\"}},"
+                        + "{\"range\":{\"@timestamp\":{\"gte\":\"now-" + (1 + i / 4 % 24) + "h/m\",\"lte\":\"now/m\"}}}]}},"
+                        + "\"aggs\":{\"per_minute\":{\"date_histogram\":{\"field\":\"@timestamp\",\"interval\":\"10m\"},"
+                        + "\"aggs\":{\"latency\":{\"percentiles\":{\"field\":\"response_time\"}}}}}}";
+                break;
+            case 1:
+                searches[i] = "{\"size\":0,\"query\":{\"bool\":{\"filter\":[{\"term\":{\"level\":\""
+                        + (i / 4 % 2 == 0 ? "ERROR" : "WARN") + "\"}},{\"term\":{\"service\":\"" + service + "\"}}]}},"
+                        + "\"aggs\":{\"hosts\":{\"terms\":{\"field\":\"host\",\"size\":10,\"order\":{\"bytes\":\"desc\"}},"
+                        + "\"aggs\":{\"bytes\":{\"sum\":{\"field\":\"bytes\"}}}}}}";
+                break;
+            case 2:
+                searches[i] = "{\"size\":20,\"query\":{\"bool\":{\"must\":{\"match\":{\"message\":\""
+                        + WORDS[i / 4 % WORDS.length] + " " + WORDS[(i / 80 + 3) % WORDS.length] + "\"}},"
+                        + "\"filter\":{\"range\":{\"@timestamp\":{\"gte\":\"now-1h/m\"}}}}},\"sort\":[{\"@timestamp\":\"desc\"}]}";
+                break;
+            default:
+                searches[i] = "{\"size\":10,\"query\":{\"term\":{\"user.id\":\"user-" + i / 4 % 1000 + "\"}}}";
+                break;
+            }
+        }
+        final double[] cdf = new double[distinct];
+        double sum = 0;
+        for (int i = 0; i < distinct; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        final List<String> queries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            queries.add(searches[k < 0 ? -k - 1 : k]);
+        }
+        return queries;
+    }
+}
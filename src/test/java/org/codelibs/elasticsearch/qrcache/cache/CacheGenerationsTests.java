@@ -0,0 +1,73 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+
+import junit.framework.TestCase;
+
+public class CacheGenerationsTests extends TestCase {
+
+    private final ShardId logs0 = new ShardId(new Index("logs", "_na_"), 0);
+
+    private final ShardId logs1 = new ShardId(new Index("logs", "_na_"), 1);
+
+    private final ShardId users0 = new ShardId(new Index("users", "_na_"), 0);
+
+    public void test_bumpShard() throws Exception {
+        final CacheGenerations generations = new CacheGenerations();
+        final long logs0Generation = generations.get(logs0);
+        final long logs1Generation = generations.get(logs1);
+        generations.bumpShard(logs0);
+        assertTrue(generations.get(logs0) != logs0Generation);
+        assertEquals(logs1Generation, generations.get(logs1));
+        // a refresh does not count as a clear
+        assertFalse(generations.cleared(logs0, logs0Generation));
+    }
+
+    public void test_bumpIndex() throws Exception {
+        final CacheGenerations generations = new CacheGenerations();
+        generations.bumpShard(logs0);
+        final long logs0Generation = generations.get(logs0);
+        final long logs1Generation = generations.get(logs1);
+        final long usersGeneration = generations.get(users0);
+        generations.bumpIndex("logs");
+        assertTrue(generations.cleared(logs0, logs0Generation));
+        assertTrue(generations.cleared(logs1, logs1Generation));
+        assertFalse(generations.cleared(users0, usersGeneration));
+        assertEquals(usersGeneration, generations.get(users0));
+    }
+
+    public void test_bumpAll() throws Exception {
+        final CacheGenerations generations = new CacheGenerations();
+        final long logsGeneration = generations.get(logs0);
+        final long usersGeneration = generations.get(users0);
+        generations.bumpAll();
+        assertTrue(generations.cleared(logs0, logsGeneration));
+        assertTrue(generations.cleared(users0, usersGeneration));
+    }
+
+    public void test_refreshesNeverLookLikeAClear() throws Exception {
+        final CacheGenerations generations = new CacheGenerations();
+        final long generation = generations.get(logs0);
+        for (int i = 0; i < 10000; i++) {
+            generations.bumpShard(logs0);
+        }
+        assertFalse(generations.cleared(logs0, generation));
+        generations.bumpIndex("logs");
+        final long cleared = generations.get(logs0);
+        generations.bumpShard(logs0);
+        assertFalse(generations.cleared(logs0, cleared));
+        assertTrue(generations.cleared(logs0, generation));
+    }
+
+    public void test_prune() throws Exception {
+        final CacheGenerations generations = new CacheGenerations();
+        generations.bumpShard(logs0);
+        generations.bumpShard(users0);
+        generations.bumpIndex("users");
+        final long logsGeneration = generations.get(logs0);
+        generations.prune(shardId -> shardId.getIndexName().equals("logs"), index -> index.equals("logs"));
+        assertEquals(logsGeneration, generations.get(logs0));
+        assertEquals(0, generations.get(users0));
+    }
+}
@@ -0,0 +1,122 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * Replays a key trace against the LRU cache the plugin builds by default,
+ * {@link TinyLfuCache} and {@link GreedyDualCache}, and prints the hit ratio
+ * of each and the share of the query time its hits saved.
+ *
+ * Usage: CachePolicyReplay [trace file] [max weight]. A trace has one request
+ * per line: the cache key, optionally followed by a tab and the response size
+ * in bytes (1024 if missing) and another tab and the query time in
+ * microseconds (1000 if missing). Without a trace, a synthetic workload is
+ * used: a Zipf-distributed dashboard load in which one query in ten is a slow
+ * aggregation, interrupted by sweeps of unique queries.
+ */
+public class CachePolicyReplay {
+
+    private static final Weigher<String, Request> WEIGHER = (key, request) -> request.weight;
+
+    public static void main(final String[] args) throws IOException {
+        final List<Request> trace = args.length > 0 ? read(args[0]) : synthetic();
+        final long maxWeight = args.length > 1 ? Long.parseLong(args[1]) : 2 * 1024 * 1024;
+        System.out.println("requests=" + trace.size() + ", max weight=" + maxWeight);
+
+        final Cache<String, Request> lru = CacheBuilder.newBuilder().maximumWeight(maxWeight).weigher(WEIGHER).concurrencyLevel(16)
+                .build();
+        replay("lru", lru, trace);
+
+        final Cache<String, Request> tinyLfu = new TinyLfuCache<>(maxWeight, WEIGHER, n -> {}, 0, maxWeight / 1024);
+        replay("tinylfu", tinyLfu, trace);
+
+        final Cache<String, Request> gds = new GreedyDualCache<>(maxWeight, WEIGHER, request -> request.cost, n -> {}, 0);
+        replay("gds", gds, trace);
+    }
+
+    private static void replay(final String name, final Cache<String, Request> cache, final List<Request> trace) {
+        long hits = 0;
+        long saved = 0;
+        long total = 0;
+        for (final Request request : trace) {
+            total += request.cost;
+            if (cache.getIfPresent(request.key) != null) {
+                hits++;
+                saved += request.cost;
+            } else {
+                cache.put(request.key, request);
+            }
+        }
+        System.out.println(String.format("%-8s hit ratio %6.2f%%, saved time %6.2f%%", name, hits * 100.0 / trace.size(),
+                saved * 100.0 / total));
+    }
+
+    private static List<Request> read(final String file) throws IOException {
+        final List<Request> trace = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                trace.add(new Request(fields[0], fields.length > 1 ? Integer.parseInt(fields[1].trim()) : 1024,
+                        fields.length > 2 ? Long.parseLong(fields[2].trim()) : 1000));
+            }
+        }
+        return trace;
+    }
+
+    private static List<Request> synthetic() {
+        final Random random = new Random(0);
+        final int numKeys = 20000;
+        final double[] cdf = new double[numKeys];
+        double sum = 0;
+        for (int i = 0; i < numKeys; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cdf[i] = sum;
+        }
+        final List<Request> trace = new ArrayList<>();
+        int unique = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50000; i++) {
+                int k = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                k = k < 0 ? -k - 1 : k;
+                trace.add(new Request("q" + k, 1024, k % 10 == 0 ? 3000000 : 2000));
+            }
+            if (round % 4 == 3) {
+                for (int i = 0; i < 10000; i++) {
+                    trace.add(new Request("scan" + unique++, 1024, 2000));
+                }
+            }
+        }
+        return trace;
+    }
+
+    private static class Request {
+
+        final String key;
+
+        final int weight;
+
+        final long cost;
+
+        Request(final String key, final int weight, final long cost) {
+            this.key = key;
+            this.weight = weight;
+            this.cost = cost;
+        }
+    }
+}
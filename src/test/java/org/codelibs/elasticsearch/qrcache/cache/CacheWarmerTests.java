@@ -0,0 +1,19 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import org.elasticsearch.common.settings.Settings;
+
+import junit.framework.TestCase;
+
+public class CacheWarmerTests extends TestCase {
+
+    public void test_securityEnabled() throws Exception {
+        final Settings settings = Settings.builder().put(QueryResultCache.WARMUP_SIZE_SETTING.getKey(), 10)
+                .put("xpack.security.enabled", true).build();
+        try {
+            new CacheWarmer(settings, null, null, null, null, null);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("xpack.security.enabled"));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import static java.util.Collections.emptyMap;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchTransportService;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchContextMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.SearchPhaseResult;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.fetch.FetchSearchResult;
+import org.elasticsearch.search.fetch.ShardFetchSearchRequest;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.transport.TransportRequestOptions;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+public class CachedFetchTests extends QueryResultCacheTestCase {
+
+    private static final String FETCH_ACTION = "indices:data/read/search[phase/fetch/id]";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = cache(Settings.EMPTY);
+    }
+
+    public void test_liveFetchCachesAllTopDocs() throws Exception {
+        assertEquals(5, query(5, new ScoreDoc(3, 2.0f), new ScoreDoc(7, 1.0f)));
+
+        // the second hit only, but all top documents are fetched
+        final Handler<FetchSearchResult> handler = fetch(5, 7);
+        assertEquals(2, sent.size());
+        final ShardFetchSearchRequest fetchAll = (ShardFetchSearchRequest) sent.get(1).request;
+        assertEquals(5, fetchAll.id());
+        assertEquals(2, fetchAll.docIdsSize());
+        assertEquals(3, fetchAll.docIds()[0]);
+        assertEquals(7, fetchAll.docIds()[1]);
+        sent.get(1).respond(hits(5, "a", "b"));
+        assertHits(handler.response(), 5, "b");
+
+        // another subset of the cached response is picked from the cached hits
+        final long contextId = query(-1);
+        assertTrue(contextId < 0);
+        assertHits(fetch(contextId, 3).response(), contextId, "a");
+        assertEquals(2, sent.size());
+        assertEquals(1, cache.stats().getFetchHits());
+    }
+
+    public void test_requery() throws Exception {
+        query(5, new ScoreDoc(3, 2.0f), new ScoreDoc(7, 1.0f));
+        final long contextId = query(-1);
+        final Handler<FetchSearchResult> handler = fetch(contextId, 7);
+
+        // the documents are not cached, so the query runs again
+        assertEquals(2, sent.size());
+        assertEquals(SearchTransportService.QUERY_ACTION_NAME, sent.get(1).action);
+        // merged segments give the same hits other doc ids
+        sent.get(1).respond(result(6, 2, new ScoreDoc(13, 2.0f), new ScoreDoc(17, 1.0f)));
+        assertEquals(3, sent.size());
+        final ShardFetchSearchRequest fetchAll = (ShardFetchSearchRequest) sent.get(2).request;
+        assertEquals(6, fetchAll.id());
+        assertEquals(13, fetchAll.docIds()[0]);
+        assertEquals(17, fetchAll.docIds()[1]);
+        sent.get(2).respond(hits(6, "a", "b"));
+        assertHits(handler.response(), contextId, "b");
+
+        final long nextId = query(-1);
+        assertHits(fetch(nextId, 3).response(), nextId, "a");
+        assertEquals(3, sent.size());
+    }
+
+    public void test_requeryWithChangedRanking() throws Exception {
+        query(5, new ScoreDoc(3, 2.0f), new ScoreDoc(7, 1.0f));
+        final long contextId = query(-1);
+        final Handler<FetchSearchResult> handler = fetch(contextId, 7);
+        sent.get(1).respond(result(6, 2, new ScoreDoc(13, 2.0f), new ScoreDoc(17, 1.5f)));
+
+        final Throwable cause = handler.failure().getCause();
+        assertTrue(String.valueOf(cause), cause instanceof SearchContextMissingException);
+        assertEquals(2, sent.size());
+        // the cached response is dropped
+        query(-1);
+        assertEquals(3, sent.size());
+    }
+
+    public void test_expiredSyntheticContext() throws Exception {
+        final Handler<FetchSearchResult> handler = fetch(-42, 1);
+        assertTrue(handler.failure().getCause() instanceof SearchContextMissingException);
+        assertTrue(sent.isEmpty());
+    }
+
+    public void test_coalescedFetch() throws Exception {
+        final Handler<SearchPhaseResult> first = new Handler<>();
+        final Handler<SearchPhaseResult> second = new Handler<>();
+        cache.sendCacheRequest(connection, SearchTransportService.QUERY_ACTION_NAME, request(2), TransportRequestOptions.EMPTY, first,
+                sender);
+        cache.sendCacheRequest(connection, SearchTransportService.QUERY_ACTION_NAME, request(2), TransportRequestOptions.EMPTY, second,
+                sender);
+        assertEquals(1, sent.size());
+        assertEquals(1, cache.stats().getCoalesced());
+        sent.get(0).respond(result(5, 2, new ScoreDoc(3, 2.0f), new ScoreDoc(7, 1.0f)));
+
+        // the waiter gets a context of its own, the live one stays with the sender
+        assertEquals(5, first.response().getRequestId());
+        final long contextId = second.response().getRequestId();
+        assertTrue(contextId < 0);
+        final Handler<FetchSearchResult> live = fetch(5, 3);
+        sent.get(1).respond(hits(5, "a", "b"));
+        assertHits(live.response(), 5, "a");
+        assertHits(fetch(contextId, 7).response(), contextId, "b");
+        assertEquals(2, sent.size());
+    }
+
+    public void test_fetchOutsideTopDocs() throws Exception {
+        query(5, new ScoreDoc(3, 2.0f), new ScoreDoc(7, 1.0f));
+        final Handler<FetchSearchResult> live = fetch(5, 9);
+        // a live context fetches the document itself
+        assertEquals(2, sent.size());
+        final ShardFetchSearchRequest request = (ShardFetchSearchRequest) sent.get(1).request;
+        assertEquals(5, request.id());
+        assertEquals(1, request.docIdsSize());
+        assertEquals(9, request.docIds()[0]);
+        sent.get(1).respond(hits(5, "c"));
+        assertHits(live.response(), 5, "c");
+
+        final long contextId = query(-1);
+        final Handler<FetchSearchResult> synthetic = fetch(contextId, 9);
+        assertTrue(synthetic.failure().getCause() instanceof SearchContextMissingException);
+        assertEquals(2, sent.size());
+    }
+
+    public void test_windowLeavesRequest() throws Exception {
+        cache = cache(Settings.builder().put(QueryResultCache.WINDOW_SIZE_SETTING.getKey(), 50).build());
+        final ShardSearchTransportRequest request = request(10);
+        request.source().from(20);
+        final Handler<SearchPhaseResult> handler = new Handler<>();
+        cache.sendCacheRequest(connection, SearchTransportService.QUERY_ACTION_NAME, request, TransportRequestOptions.EMPTY, handler,
+                sender);
+
+        final ShardSearchTransportRequest widened = (ShardSearchTransportRequest) sent.get(0).request;
+        assertEquals(0, widened.source().from());
+        assertEquals(50, widened.source().size());
+        assertEquals(20, request.source().from());
+        assertEquals(10, request.source().size());
+
+        final ScoreDoc[] scoreDocs = new ScoreDoc[50];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            scoreDocs[i] = new ScoreDoc(i, 50 - i);
+        }
+        sent.get(0).respond(result(5, 100, scoreDocs));
+        final SearchPhaseResult response = handler.response();
+        assertEquals(20, response.queryResult().from());
+        assertEquals(10, response.queryResult().size());
+        assertEquals(30, response.queryResult().topDocs().scoreDocs.length);
+    }
+
+    /**
+     * Sends the query and answers it with the given top documents if it is
+     * sent to the data node, returning the context id of the response.
+     */
+    private long query(final long id, final ScoreDoc... scoreDocs) throws InterruptedException {
+        final int count = sent.size();
+        final Handler<SearchPhaseResult> handler = new Handler<>();
+        final ShardSearchTransportRequest request = request(2);
+        cache.sendCacheRequest(connection, SearchTransportService.QUERY_ACTION_NAME, request, TransportRequestOptions.EMPTY, handler,
+                sender);
+        if (sent.size() > count) {
+            sent.get(count).respond(result(id, scoreDocs.length, scoreDocs));
+        }
+        return handler.response().getRequestId();
+    }
+
+    private Handler<FetchSearchResult> fetch(final long id, final int... docIds) {
+        final IntArrayList list = new IntArrayList();
+        list.add(docIds, 0, docIds.length);
+        final Handler<FetchSearchResult> handler = new Handler<>();
+        cache.sendFetchRequest(connection, FETCH_ACTION, new ShardFetchSearchRequest(OriginalIndices.NONE, id, list, null),
+                TransportRequestOptions.EMPTY, handler, sender);
+        return handler;
+    }
+
+    private static FetchSearchResult hits(final long id, final String... ids) {
+        final SearchHit[] hits = new SearchHit[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            hits[i] = new SearchHit(i, ids[i], new Text("_doc"), emptyMap());
+        }
+        final FetchSearchResult result = new FetchSearchResult(id, new SearchShardTarget("node", SHARD, null, OriginalIndices.NONE));
+        result.hits(new SearchHits(hits, ids.length, 1.0f));
+        return result;
+    }
+
+    private static void assertHits(final FetchSearchResult result, final long id, final String... ids) {
+        assertEquals(id, result.getRequestId());
+        final SearchHit[] hits = result.hits().getHits();
+        assertEquals(ids.length, hits.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], hits[i].getId());
+        }
+    }
+}
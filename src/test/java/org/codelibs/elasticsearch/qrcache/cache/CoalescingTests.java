@@ -0,0 +1,92 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchPhaseResult;
+import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestOptions;
+
+public class CoalescingTests extends QueryResultCacheTestCase {
+
+    public void test_fanOut() throws Exception {
+        cache = cache(Settings.EMPTY);
+        @SuppressWarnings("unchecked")
+        final Handler<SearchPhaseResult>[] handlers = new Handler[3];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new Handler<>();
+            send(handlers[i]);
+        }
+        assertEquals(1, sent.size());
+        assertEquals(2, cache.stats().getCoalesced());
+
+        sent.get(0).respond(result());
+        for (final Handler<SearchPhaseResult> handler : handlers) {
+            assertEquals(42, handler.response().queryResult().getTotalHits());
+        }
+        // the response was cached once for all of them
+        final Handler<SearchPhaseResult> handler = new Handler<>();
+        send(handler);
+        assertEquals(42, handler.response().queryResult().getTotalHits());
+        assertEquals(1, sent.size());
+        assertEquals(1, cache.stats().getHits());
+    }
+
+    public void test_failureFanOut() throws Exception {
+        cache = cache(Settings.EMPTY);
+        final Handler<SearchPhaseResult> first = new Handler<>();
+        final Handler<SearchPhaseResult> second = new Handler<>();
+        send(first);
+        send(second);
+        assertEquals(1, sent.size());
+
+        sent.get(0).fail(new TransportException("data node failed"));
+        assertEquals("data node failed", first.failure().getMessage());
+        assertEquals("data node failed", second.failure().getMessage());
+
+        // nothing was cached and the next request is sent again
+        send(new Handler<>());
+        assertEquals(2, sent.size());
+    }
+
+    public void test_timeout() throws Exception {
+        cache = cache(Settings.builder().put(QueryResultCache.COALESCE_TIMEOUT_SETTING.getKey(), "100ms").build());
+        final Handler<SearchPhaseResult> first = new Handler<>();
+        final Handler<SearchPhaseResult> second = new Handler<>();
+        send(first);
+        send(second);
+        assertEquals(1, sent.size());
+
+        // the waiter detaches and sends its own request
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (sent.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, sent.size());
+
+        sent.get(0).respond(result());
+        assertNotNull(first.response());
+        assertNull(second.responses.poll(100, TimeUnit.MILLISECONDS));
+        sent.get(1).respond(result());
+        assertNotNull(second.response());
+    }
+
+    public void test_notCoalescedAfterInvalidation() throws Exception {
+        cache = cache(Settings.EMPTY);
+        send(new Handler<>());
+        cache.clear(INDEX);
+        send(new Handler<>());
+        assertEquals(2, sent.size());
+        assertEquals(0, cache.stats().getCoalesced());
+    }
+
+    private void send(final Handler<SearchPhaseResult> handler) {
+        cache.sendCacheRequest(connection, "indices:data/read/search[phase/query]", request(0), TransportRequestOptions.EMPTY, handler,
+                sender);
+    }
+
+    private static QuerySearchResult result() {
+        return result(1, 42);
+    }
+}
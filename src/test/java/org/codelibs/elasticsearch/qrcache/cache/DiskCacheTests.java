@@ -0,0 +1,208 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+
+import org.apache.lucene.util.IOUtils;
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.index.shard.ShardId;
+
+import junit.framework.TestCase;
+
+public class DiskCacheTests extends TestCase {
+
+    private static final int SEGMENT_SIZE = 1 << 16;
+
+    private static final ShardId SHARD_A = new ShardId(new Index("a", "uuid-a"), 0);
+
+    private static final ShardId SHARD_B = new ShardId(new Index("b", "uuid-b"), 0);
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("disk-cache");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        IOUtils.rm(dir);
+    }
+
+    public void test_putAndRead() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        final DiskCache.Entry entry = diskCache.get(key(SHARD_A, 1));
+        assertEquals(3, entry.generation());
+        assertEquals(value(100, 1), diskCache.read(entry));
+        assertNull(diskCache.get(key(SHARD_A, 2)));
+        assertEquals(1, diskCache.count());
+    }
+
+    public void test_restart() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 5_000_000);
+        diskCache.put(key(SHARD_A, 2), value(100, 2), 3, SequenceNumbers.UNASSIGNED_SEQ_NO, 0);
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        final DiskCache.Entry entry = reopened.get(key(SHARD_A, 1));
+        assertEquals(DiskCache.NOT_VALIDATED, entry.generation());
+        assertEquals(5_000_000, entry.costNanos());
+        assertEquals(value(100, 1), reopened.read(entry));
+        // a response without a known sequence number can not be validated
+        assertNull(reopened.get(key(SHARD_A, 2)));
+    }
+
+    public void test_validate() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_A, 2), value(100, 2), 3, 9, 0);
+        diskCache.put(key(SHARD_B, 3), value(100, 3), 3, 10, 0);
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        // the sequence number of index b is not known yet
+        reopened.validate(shardId -> true, shardId -> shardId.equals(SHARD_A) ? 10L : null, shardId -> 7);
+        assertEquals(7, reopened.get(key(SHARD_A, 1)).generation());
+        assertNull(reopened.get(key(SHARD_A, 2)));
+        assertEquals(DiskCache.NOT_VALIDATED, reopened.get(key(SHARD_B, 3)).generation());
+
+        reopened.validate(shardId -> !shardId.equals(SHARD_B), shardId -> 10L, shardId -> 8);
+        assertEquals(7, reopened.get(key(SHARD_A, 1)).generation());
+        assertNull(reopened.get(key(SHARD_B, 3)));
+    }
+
+    public void test_clearIndexSurvivesRestart() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_B, 2), value(100, 2), 3, 10, 0);
+        assertEquals(1, diskCache.clear("a"));
+        diskCache.put(key(SHARD_A, 3), value(100, 3), 4, 10, 0);
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        reopened.validate(shardId -> true, shardId -> 10L, shardId -> 5);
+        assertNull(reopened.get(key(SHARD_A, 1)));
+        assertNotNull(reopened.get(key(SHARD_B, 2)));
+        assertNotNull(reopened.get(key(SHARD_A, 3)));
+    }
+
+    public void test_clearBeforeValidation() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_B, 2), value(100, 2), 3, 10, 0);
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        assertEquals(2, reopened.count());
+        assertEquals(1, reopened.clear("a"));
+        assertEquals(1, reopened.count());
+        reopened.validate(shardId -> true, shardId -> 10L, shardId -> 5);
+        assertNull(reopened.get(key(SHARD_A, 1)));
+        assertEquals(5, reopened.get(key(SHARD_B, 2)).generation());
+        assertEquals(0, reopened.clear("a"));
+    }
+
+    public void test_clearAllSurvivesRestart() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_B, 2), value(100, 2), 3, 10, 0);
+        assertEquals(2, diskCache.clear());
+        assertEquals(0, diskCache.count());
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        reopened.validate(shardId -> true, shardId -> 10L, shardId -> 5);
+        assertEquals(0, reopened.count());
+    }
+
+    public void test_invalidateSurvivesRestart() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_B, 2), value(100, 2), 3, 10, 0);
+        diskCache.invalidate(Collections.singleton(SHARD_A));
+        // written after the shard changed
+        diskCache.put(key(SHARD_A, 3), value(100, 3), 4, 10, 0);
+        assertEquals(3, diskCache.count());
+        diskCache.close();
+
+        final DiskCache reopened = open();
+        reopened.validate(shardId -> true, shardId -> 10L, shardId -> 5);
+        assertNull(reopened.get(key(SHARD_A, 1)));
+        assertNotNull(reopened.get(key(SHARD_B, 2)));
+        assertNotNull(reopened.get(key(SHARD_A, 3)));
+        assertEquals(Collections.emptySet(), reopened.unvalidatedIndices());
+    }
+
+    public void test_corruptedRecord() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.put(key(SHARD_A, 2), value(100, 2), 3, 10, 0);
+        final long end = diskCache.sizeInBytes();
+        diskCache.close();
+        try (FileChannel channel = FileChannel.open(segment(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { -1 }), end - 1);
+        }
+
+        final DiskCache reopened = open();
+        assertNotNull(reopened.get(key(SHARD_A, 1)));
+        assertNull(reopened.get(key(SHARD_A, 2)));
+    }
+
+    public void test_otherVersion() throws Exception {
+        final DiskCache diskCache = open();
+        diskCache.put(key(SHARD_A, 1), value(100, 1), 3, 10, 0);
+        diskCache.close();
+        try (FileChannel channel = FileChannel.open(segment(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 0 }), 8);
+        }
+
+        final DiskCache reopened = open();
+        assertEquals(0, reopened.count());
+        assertFalse(Files.exists(segment(0)));
+    }
+
+    public void test_oldestSegmentDropped() throws Exception {
+        final DiskCache diskCache = new DiskCache(dir, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int i = 0; i < 30; i++) {
+            diskCache.put(key(SHARD_A, i), value(10000, i), 3, 10, 0);
+        }
+        assertNull(diskCache.get(key(SHARD_A, 0)));
+        assertNotNull(diskCache.get(key(SHARD_A, 29)));
+        assertTrue(diskCache.sizeInBytes() <= 2 * SEGMENT_SIZE);
+        assertFalse(Files.exists(segment(0)));
+        // a response larger than a segment is not stored
+        diskCache.put(key(SHARD_A, 100), value(SEGMENT_SIZE, 100), 3, 10, 0);
+        assertNull(diskCache.get(key(SHARD_A, 100)));
+    }
+
+    private DiskCache open() throws IOException {
+        return new DiskCache(dir, 4 * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    private Path segment(final int id) {
+        return dir.resolve("segment-" + id + ".dat");
+    }
+
+    private static Key key(final ShardId shardId, final int i) {
+        return new Key(shardId, i, i, 10, null);
+    }
+
+    private static BytesReference value(final int length, final int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return new BytesArray(bytes);
+    }
+}
@@ -0,0 +1,114 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+import junit.framework.TestCase;
+
+public class GreedyDualCacheTests extends TestCase {
+
+    private final List<RemovalNotification<Integer, Integer>> removals = new ArrayList<>();
+
+    public void test_asMap() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(10, 0);
+        final ConcurrentMap<Integer, Integer> map = cache.asMap();
+
+        assertNull(map.put(1, 1));
+        assertEquals(Integer.valueOf(1), map.put(1, 2));
+        assertEquals(Integer.valueOf(2), map.putIfAbsent(1, 3));
+        assertNull(map.putIfAbsent(2, 2));
+        assertNull(map.replace(3, 3));
+        assertFalse(map.containsKey(3));
+        assertEquals(Integer.valueOf(2), map.replace(2, 4));
+        assertFalse(map.replace(2, 2, 5));
+        assertTrue(map.replace(2, 4, 5));
+        assertFalse(map.remove(2, 4));
+        assertTrue(map.remove(2, 5));
+        assertFalse(map.containsKey(2));
+        assertEquals(Integer.valueOf(2), cache.getIfPresent(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weightedSize());
+
+        assertEquals(4, removals.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RemovalCause.REPLACED, removals.get(i).getCause());
+        }
+        assertEquals(RemovalCause.EXPLICIT, removals.get(3).getCause());
+    }
+
+    public void test_cheapestEvicted() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(3, 0);
+        cache.put(1, 100);
+        cache.put(2, 1);
+        cache.put(3, 50);
+        cache.put(4, 10);
+        assertNull(cache.getIfPresent(2));
+        assertEquals(3, cache.size());
+        assertEquals(1, removals.size());
+        assertEquals(RemovalCause.SIZE, removals.get(0).getCause());
+        assertEquals(Integer.valueOf(2), removals.get(0).getKey());
+    }
+
+    public void test_expensiveEntriesAgeOut() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(2, 0);
+        cache.put(0, 100);
+        for (int i = 1; i <= 4; i++) {
+            cache.put(i, 60);
+        }
+        // each eviction raises the inflation value, until new entries outrank the expensive one
+        assertNull(cache.getIfPresent(0));
+        assertEquals(2, cache.size());
+    }
+
+    public void test_hitRestoresPriority() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(2, 0);
+        cache.put(1, 10);
+        cache.put(2, 10);
+        cache.getIfPresent(1);
+        cache.cleanUp();
+        cache.put(3, 10);
+        // equal priorities are evicted in least recently used order
+        assertNotNull(cache.getIfPresent(1));
+        assertNull(cache.getIfPresent(2));
+    }
+
+    public void test_setMaximumWeight() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(10, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+        }
+        cache.setMaximumWeight(5);
+        assertEquals(5, cache.weightedSize());
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.getIfPresent(i));
+        }
+    }
+
+    public void test_expireAfterAccess() throws Exception {
+        final GreedyDualCache<Integer, Integer> cache = cache(10, TimeUnit.MILLISECONDS.toNanos(50));
+        cache.put(1, 1000);
+        cache.put(2, 1);
+        Thread.sleep(100);
+        cache.put(3, 1);
+        cache.cleanUp();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weightedSize());
+        assertNotNull(cache.getIfPresent(3));
+        assertEquals(2, removals.size());
+        for (final RemovalNotification<Integer, Integer> removal : removals) {
+            assertEquals(RemovalCause.EXPIRED, removal.getCause());
+        }
+    }
+
+    /**
+     * Values are their own cost, and every entry weighs one.
+     */
+    private GreedyDualCache<Integer, Integer> cache(final long maximumWeight, final long expireAfterAccessNanos) {
+        return new GreedyDualCache<>(maximumWeight, (k, v) -> 1, v -> v, removals::add, expireAfterAccessNanos);
+    }
+}
@@ -0,0 +1,137 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import static java.util.Collections.emptyList;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codelibs.elasticsearch.qrcache.cache.QueryResultCache.Key;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.AliasFilter;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.tasks.TaskId;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks key-corpus.txt: pairs of sources marked "same" must share a key once
+ * normalized, and pairs marked "differ", whose results can differ, must never
+ * do so.
+ */
+public class KeyNormalizerTests extends TestCase {
+
+    private static final NamedXContentRegistry REGISTRY = new NamedXContentRegistry(
+            new SearchModule(Settings.EMPTY, false, emptyList()).getNamedXContents());
+
+    private static final ShardId SHARD_ID = new ShardId("test", "_na_", 0);
+
+    private final KeyBuilder normalizing = new KeyBuilder(KeyBuilder.FULL, true);
+
+    private final KeyBuilder plain = new KeyBuilder(KeyBuilder.FULL, false);
+
+    public void test_corpus() throws Exception {
+        final List<String[]> pairs = corpus();
+        assertFalse(pairs.isEmpty());
+        for (final String[] pair : pairs) {
+            final SearchSourceBuilder source1 = parse(pair[1]);
+            final SearchSourceBuilder source2 = parse(pair[2]);
+            final String message = pair[1] + " / " + pair[2];
+            if ("same".equals(pair[0])) {
+                assertEquals(message, key(normalizing, source1), key(normalizing, source2));
+                assertFalse(message, key(plain, source1).equals(key(plain, source2)));
+            } else if ("differ".equals(pair[0])) {
+                assertFalse(message, key(normalizing, source1).equals(key(normalizing, source2)));
+            } else {
+                fail("Unknown kind: " + pair[0]);
+            }
+        }
+    }
+
+    public void test_sourceNotModified() throws Exception {
+        for (final String[] pair : corpus()) {
+            for (int i = 1; i < pair.length; i++) {
+                final SearchSourceBuilder source = parse(pair[i]);
+                final BytesReference before = bytes(source);
+                key(normalizing, source);
+                assertEquals(pair[i], before, bytes(source));
+            }
+        }
+    }
+
+    public void test_searchResponseKey() throws Exception {
+        final Index[] indices = { new Index("test", "_na_") };
+        final long[] nowIntervals = { 0 };
+        final SearchSourceBuilder source = parse("{\"query\":{\"terms\":{\"a\":[2,1]}},\"timeout\":\"1s\"}");
+        final SearchRequest request = new SearchRequest("test").source(source);
+        request.setParentTask(new TaskId("node", 1));
+        final SearchRequest other = new SearchRequest("test").source(parse("{\"query\":{\"terms\":{\"a\":[1,2]}}}"));
+        other.setParentTask(new TaskId("node", 2));
+        final Key key = normalizing.build(request, indices, nowIntervals, 0);
+        // the parent task is not keyed and the source of the request is left as it is
+        assertEquals(key, normalizing.build(other, indices, nowIntervals, 0));
+        assertNull(key.shardId());
+        assertSame(source, request.source());
+        assertFalse(key.equals(normalizing.build(other.routing("r"), indices, nowIntervals, 0)));
+        assertFalse(key.equals(normalizing.build(request, new Index[] { new Index("test", "other") }, nowIntervals, 0)));
+    }
+
+    public void test_disabled() throws Exception {
+        final SearchSourceBuilder source = parse("{\"query\":{\"terms\":{\"a\":[2,1]}}}");
+        assertSame(source, plain.source(source));
+        assertNull(normalizing.source(null));
+    }
+
+    private static Key key(final KeyBuilder keyBuilder, final SearchSourceBuilder source) throws IOException {
+        final SearchRequest searchRequest = new SearchRequest("test").source(source).allowPartialSearchResults(true);
+        return keyBuilder.build(new ShardSearchTransportRequest(OriginalIndices.NONE, searchRequest, SHARD_ID, 2, AliasFilter.EMPTY, 1.0f,
+                0L, null, null));
+    }
+
+    private static BytesReference bytes(final SearchSourceBuilder source) throws IOException {
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            source.writeTo(out);
+            return out.bytes();
+        }
+    }
+
+    private static SearchSourceBuilder parse(final String json) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(REGISTRY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                json)) {
+            return SearchSourceBuilder.fromXContent(parser);
+        }
+    }
+
+    private static List<String[]> corpus() throws IOException {
+        final List<String[]> pairs = new ArrayList<>();
+        try (InputStream in = KeyNormalizerTests.class.getResourceAsStream("key-corpus.txt");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] pair = line.split("\t");
+                assertEquals(line, 3, pair.length);
+                pairs.add(pair);
+            }
+        }
+        return pairs;
+    }
+}
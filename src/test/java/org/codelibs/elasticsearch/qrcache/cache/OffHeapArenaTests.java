@@ -0,0 +1,73 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.bytes.CompositeBytesReference;
+
+import junit.framework.TestCase;
+
+public class OffHeapArenaTests extends TestCase {
+
+    private static final int SLAB_PAGES = 256;
+
+    public void test_storeAndRead() throws Exception {
+        final OffHeapArena arena = new OffHeapArena(0);
+        assertEquals(OffHeapArena.PAGE_SIZE * SLAB_PAGES, arena.capacity());
+
+        // spans pages and is read from more than one source buffer
+        final BytesReference bytes = new CompositeBytesReference(bytes(5000, 1), bytes(3000, 7));
+        final OffHeapArena.Handle handle = arena.store(bytes);
+        assertEquals(8000, handle.length());
+        assertEquals(2 * OffHeapArena.PAGE_SIZE, handle.allocated());
+        assertEquals(2 * OffHeapArena.PAGE_SIZE, arena.used());
+        assertEquals(bytes, handle.read());
+
+        final OffHeapArena.Handle empty = arena.store(BytesArray.EMPTY);
+        assertEquals(0, empty.length());
+        assertEquals(0, empty.read().length());
+    }
+
+    public void test_fullArena() throws Exception {
+        final OffHeapArena arena = new OffHeapArena(0);
+        final List<OffHeapArena.Handle> handles = new ArrayList<>();
+        for (int i = 0; i < SLAB_PAGES / 2; i++) {
+            handles.add(arena.store(bytes(OffHeapArena.PAGE_SIZE * 2, i)));
+        }
+        assertEquals(arena.capacity(), arena.used());
+        assertNull(arena.store(bytes(1, 0)));
+
+        handles.get(10).decRef();
+        assertEquals(arena.capacity() - 2 * OffHeapArena.PAGE_SIZE, arena.used());
+        assertNull(arena.store(bytes(OffHeapArena.PAGE_SIZE * 2 + 1, 0)));
+        // freed pages are reused
+        final OffHeapArena.Handle handle = arena.store(bytes(OffHeapArena.PAGE_SIZE * 2, 99));
+        assertNotNull(handle);
+        assertEquals(bytes(OffHeapArena.PAGE_SIZE * 2, 99), handle.read());
+        assertEquals(bytes(OffHeapArena.PAGE_SIZE * 2, 11), handles.get(11).read());
+    }
+
+    public void test_release() throws Exception {
+        final OffHeapArena arena = new OffHeapArena(0);
+        final OffHeapArena.Handle handle = arena.store(bytes(100, 3));
+
+        // a reader keeps the pages after the cache released them until it is done
+        assertTrue(handle.tryIncRef());
+        handle.decRef();
+        assertEquals(OffHeapArena.PAGE_SIZE, arena.used());
+        assertEquals(bytes(100, 3), handle.read());
+        handle.decRef();
+        assertEquals(0, arena.used());
+        assertNull(handle.read());
+    }
+
+    private static BytesReference bytes(final int length, final int seed) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return new BytesArray(bytes);
+    }
+}
@@ -0,0 +1,87 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import junit.framework.TestCase;
+
+public class PartitionedCacheTests extends TestCase {
+
+    private final Map<String, Double> minShares = new HashMap<>();
+
+    private final Map<String, Double> maxShares = new HashMap<>();
+
+    private final Map<Long, Long> createdShares = new HashMap<>();
+
+    public void test_asMap() throws Exception {
+        final PartitionedCache<String, Integer> cache = cache(100);
+        final ConcurrentMap<String, Integer> map = cache.asMap();
+
+        assertNull(map.put("a1", 1));
+        assertEquals(Integer.valueOf(1), map.put("a1", 2));
+        assertEquals(Integer.valueOf(2), map.putIfAbsent("a1", 3));
+        assertNull(map.putIfAbsent("b1", 1));
+        assertNull(map.replace("c1", 1));
+        assertFalse(map.containsKey("c1"));
+        assertEquals(Integer.valueOf(1), map.replace("b1", 4));
+        assertFalse(map.replace("b1", 1, 5));
+        assertTrue(map.replace("b1", 4, 5));
+        assertFalse(map.remove("b1", 4));
+        assertFalse(map.remove("c1", 4));
+        assertTrue(map.remove("b1", 5));
+        assertNull(cache.getIfPresent("b1"));
+        assertEquals(Integer.valueOf(2), cache.getIfPresent("a1"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.maximumWeights().size());
+    }
+
+    public void test_newPartitionStartsAtMinShare() throws Exception {
+        minShares.put("b", 0.2);
+        maxShares.put("b", 0.5);
+        final PartitionedCache<String, Integer> cache = cache(100);
+        for (int i = 0; i < 200; i++) {
+            cache.put("a" + i, i);
+        }
+        assertEquals(Long.valueOf(100), cache.maximumWeights().get("a"));
+
+        cache.put("b1", 1);
+        // created with its reserved share, and its sketch sized for its maximum share
+        assertEquals(Long.valueOf(50), createdShares.get(20L));
+        assertEquals(Long.valueOf(20), cache.maximumWeights().get("b"));
+        assertEquals(Long.valueOf(80), cache.maximumWeights().get("a"));
+        assertEquals(Integer.valueOf(1), cache.getIfPresent("b1"));
+
+        // after a clean up, the reservation only covers what the partition uses
+        cache.cleanUp();
+        assertEquals(Long.valueOf(1), cache.maximumWeights().get("b"));
+        assertEquals(Long.valueOf(99), cache.maximumWeights().get("a"));
+        assertEquals(Integer.valueOf(1), cache.getIfPresent("b1"));
+    }
+
+    public void test_rebalance() throws Exception {
+        maxShares.put("a", 0.3);
+        final PartitionedCache<String, Integer> cache = cache(100);
+        for (int i = 0; i < 200; i++) {
+            cache.put("a" + i, i);
+            cache.put("b" + i, i);
+            cache.cleanUp();
+        }
+        final Map<String, Long> maximumWeights = cache.maximumWeights();
+        assertEquals(Long.valueOf(30), maximumWeights.get("a"));
+        assertEquals(Long.valueOf(70), maximumWeights.get("b"));
+        assertTrue(cache.size() <= 100);
+
+        cache.setBudget(50);
+        assertEquals(Long.valueOf(15), cache.maximumWeights().get("a"));
+        assertEquals(Long.valueOf(35), cache.maximumWeights().get("b"));
+        assertTrue(cache.size() <= 50);
+    }
+
+    private PartitionedCache<String, Integer> cache(final long budget) {
+        return new PartitionedCache<>(budget, key -> key.substring(0, 1), (max, share) -> {
+            createdShares.put(max, share);
+            return new TinyLfuCache<>(max, 0.01, (k, v) -> 1, n -> {}, 0, share);
+        }, name -> minShares.getOrDefault(name, 0.0), name -> maxShares.getOrDefault(name, 1.0), name -> true);
+    }
+}
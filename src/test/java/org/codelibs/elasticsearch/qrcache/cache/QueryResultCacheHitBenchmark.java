@@ -0,0 +1,115 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.NamedWriteableAwareStreamInput;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.metrics.max.InternalMax;
+import org.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.elasticsearch.search.query.QuerySearchResult;
+
+/**
+ * Compares the cost of serving a cached aggregation-heavy shard response by
+ * reading the stored bytes with the cost of the decoded hit path, which still
+ * deserializes the aggregations on every hit and only saves the top docs.
+ *
+ * Run the main method from the test classpath; the optional argument is the
+ * number of terms buckets in the cached response (default 500).
+ */
+public class QueryResultCacheHitBenchmark {
+
+    private static final int WARMUP = 20000;
+
+    private static final int ITERATIONS = 50000;
+
+    public static void main(final String[] args) throws IOException {
+        final int buckets = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final NamedWriteableRegistry registry =
+                new NamedWriteableRegistry(new SearchModule(Settings.EMPTY, false, emptyList()).getNamedWriteables());
+        final BytesReference bytes = serialize(createResult(buckets));
+        System.out.println("buckets=" + buckets + ", bytes=" + bytes.length());
+
+        run("bytes", () -> readFromBytes(bytes, registry));
+
+        final DecodedQueryResult decoded = DecodedQueryResult.decode(bytes, registry);
+        run("decoded", () -> {
+            final long start = System.nanoTime();
+            final QuerySearchResult result = decoded.newResult();
+            return System.nanoTime() - start + (result.hasAggs() ? 0 : 1);
+        });
+        System.out.println("decoded heap=" + decoded.ramBytesUsed());
+    }
+
+    private static long readFromBytes(final BytesReference bytes, final NamedWriteableRegistry registry) throws IOException {
+        final long start = System.nanoTime();
+        try (final StreamInput in = new NamedWriteableAwareStreamInput(bytes.streamInput(), registry)) {
+            final QuerySearchResult result = new QuerySearchResult();
+            result.readFrom(in);
+            return System.nanoTime() - start + (result.hasAggs() ? 0 : 1);
+        }
+    }
+
+    private static void run(final String name, final Hit hit) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            hit.run();
+        }
+        long total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            total += hit.run();
+        }
+        System.out.println(String.format("%-24s %10.1f us/hit", name, total / 1000.0 / ITERATIONS));
+    }
+
+    private static QuerySearchResult createResult(final int numBuckets) {
+        final List<LongTerms.Bucket> buckets = new ArrayList<>(numBuckets);
+        for (int i = 0; i < numBuckets; i++) {
+            final List<InternalAggregation> subAggs = Arrays.asList(
+                    new InternalMax("max", i * 1.5, DocValueFormat.RAW, emptyList(), emptyMap()),
+                    new InternalSum("sum", i * 10.0, DocValueFormat.RAW, emptyList(), emptyMap()));
+            buckets.add(new LongTerms.Bucket(i, numBuckets - i, new InternalAggregations(subAggs), false, 0, DocValueFormat.RAW));
+        }
+        final LongTerms terms = new LongTerms("terms", BucketOrder.count(false), numBuckets, 1, emptyList(), emptyMap(),
+                DocValueFormat.RAW, numBuckets, false, 0, buckets, 0);
+
+        final ScoreDoc[] scoreDocs = new ScoreDoc[10];
+        for (int i = 0; i < scoreDocs.length; i++) {
+            scoreDocs[i] = new ScoreDoc(i, 10 - i);
+        }
+
+        final QuerySearchResult result = new QuerySearchResult(1, null);
+        result.from(0);
+        result.size(scoreDocs.length);
+        result.topDocs(new TopDocs(numBuckets, scoreDocs, 10), null);
+        result.aggregations(new InternalAggregations(Arrays.asList(terms)));
+        return result;
+    }
+
+    private static BytesReference serialize(final QuerySearchResult result) throws IOException {
+        try (final BytesStreamOutput out = new BytesStreamOutput()) {
+            result.writeTo(out);
+            return out.bytes();
+        }
+    }
+
+    private interface Hit {
+        long run() throws IOException;
+    }
+}
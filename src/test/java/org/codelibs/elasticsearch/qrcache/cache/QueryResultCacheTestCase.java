@@ -0,0 +1,229 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.codelibs.elasticsearch.qrcache.QueryResultCachePlugin;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.OriginalIndices;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchModule;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.AliasFilter;
+import org.elasticsearch.search.internal.ShardSearchTransportRequest;
+import org.elasticsearch.search.query.QuerySearchResult;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.Transport;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportInterceptor;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportResponseHandler;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a cache against a stub data node: requests the cache sends are
+ * recorded, and the test answers them.
+ */
+public abstract class QueryResultCacheTestCase extends TestCase {
+
+    protected static final String INDEX = "logs";
+
+    protected static final ShardId SHARD = new ShardId(new Index(INDEX, "_na_"), 0);
+
+    protected final List<Sent> sent = new CopyOnWriteArrayList<>();
+
+    protected final TransportInterceptor.AsyncSender sender = new TransportInterceptor.AsyncSender() {
+        @Override
+        public <T extends TransportResponse> void sendRequest(final Transport.Connection connection, final String action,
+                final TransportRequest request, final TransportRequestOptions options, final TransportResponseHandler<T> handler) {
+            sent.add(new Sent(action, request, handler));
+        }
+    };
+
+    protected final Transport.Connection connection = new Connection();
+
+    protected ThreadPool threadPool;
+
+    protected QueryResultCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        threadPool = new ThreadPool(Settings.builder().put("node.name", getClass().getSimpleName()).build());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    protected static ShardSearchTransportRequest request(final int size) {
+        final SearchSourceBuilder source = new SearchSourceBuilder().query(QueryBuilders.termQuery("service", "checkout")).size(size);
+        final SearchRequest searchRequest = new SearchRequest(INDEX).source(source).allowPartialSearchResults(true);
+        return new ShardSearchTransportRequest(new OriginalIndices(new String[] { INDEX }, IndicesOptions.strictExpandOpen()),
+                searchRequest, SHARD, 2, new AliasFilter(null, new String[0]), 1.0f, 1550000000000L, null, new String[0]);
+    }
+
+    protected static QuerySearchResult result(final long id, final long totalHits, final ScoreDoc... scoreDocs) {
+        final QuerySearchResult result = new QuerySearchResult(id, new SearchShardTarget("node", SHARD, null, OriginalIndices.NONE));
+        result.from(0);
+        result.size(scoreDocs.length);
+        result.topDocs(new TopDocs(totalHits, scoreDocs, Float.NaN), null);
+        return result;
+    }
+
+    protected QueryResultCache cache(final Settings settings) {
+        final NamedWriteableRegistry registry =
+                new NamedWriteableRegistry(new SearchModule(Settings.EMPTY, false, emptyList()).getNamedWriteables());
+        final Set<Setting<?>> settingSet = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        for (final Setting<?> setting : new QueryResultCachePlugin(settings).getSettings()) {
+            if (setting.hasNodeScope()) {
+                settingSet.add(setting);
+            }
+        }
+        final ClusterState state = ClusterState.builder(ClusterName.DEFAULT).metaData(MetaData.builder()
+                .put(IndexMetaData.builder(INDEX)
+                        .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                                .put(IndexMetaData.SETTING_INDEX_UUID, "_na_")
+                                .put(QueryResultCache.INDEX_ENABLED_SETTING.getKey(), true))
+                        .numberOfShards(2).numberOfReplicas(0))
+                .build()).build();
+        final ClusterService clusterService =
+                new ClusterService(settings, new ClusterSettings(settings, settingSet), threadPool, emptyMap()) {
+                    @Override
+                    public ClusterState state() {
+                        return state;
+                    }
+                };
+        return new QueryResultCache(settings, null, clusterService, threadPool, null, registry);
+    }
+
+    protected static class Sent {
+
+        final String action;
+
+        final TransportRequest request;
+
+        @SuppressWarnings("rawtypes")
+        final TransportResponseHandler handler;
+
+        Sent(final String action, final TransportRequest request, final TransportResponseHandler<?> handler) {
+            this.action = action;
+            this.request = request;
+            this.handler = handler;
+        }
+
+        @SuppressWarnings("unchecked")
+        void respond(final TransportResponse response) {
+            handler.handleResponse(response);
+        }
+
+        void fail(final TransportException e) {
+            handler.handleException(e);
+        }
+    }
+
+    protected static class Handler<T extends TransportResponse> implements TransportResponseHandler<T> {
+
+        final BlockingQueue<T> responses = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<TransportException> failures = new LinkedBlockingQueue<>();
+
+        T response() throws InterruptedException {
+            final T response = responses.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no response", response);
+            return response;
+        }
+
+        TransportException failure() throws InterruptedException {
+            final TransportException failure = failures.poll(10, TimeUnit.SECONDS);
+            assertNotNull("no failure", failure);
+            return failure;
+        }
+
+        @Override
+        public T read(final StreamInput in) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void handleResponse(final T response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void handleException(final TransportException exp) {
+            failures.add(exp);
+        }
+
+        @Override
+        public String executor() {
+            return ThreadPool.Names.SAME;
+        }
+    }
+
+    private static class Connection implements Transport.Connection {
+
+        private final DiscoveryNode node =
+                new DiscoveryNode("node", new TransportAddress(InetAddress.getLoopbackAddress(), 9300), Version.CURRENT);
+
+        @Override
+        public DiscoveryNode getNode() {
+            return node;
+        }
+
+        @Override
+        public void sendRequest(final long requestId, final String action, final TransportRequest request,
+                final TransportRequestOptions options) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addCloseListener(final ActionListener<Void> listener) {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
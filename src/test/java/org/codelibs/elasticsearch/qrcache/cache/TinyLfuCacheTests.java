@@ -0,0 +1,145 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+import junit.framework.TestCase;
+
+public class TinyLfuCacheTests extends TestCase {
+
+    private final List<RemovalNotification<Integer, Integer>> removals = new ArrayList<>();
+
+    public void test_asMap() throws Exception {
+        final TinyLfuCache<Integer, Integer> cache = cache(10, 0.01);
+        final ConcurrentMap<Integer, Integer> map = cache.asMap();
+
+        assertNull(map.put(1, 1));
+        assertEquals(Integer.valueOf(1), map.put(1, 2));
+        assertEquals(Integer.valueOf(2), map.putIfAbsent(1, 3));
+        assertNull(map.putIfAbsent(2, 2));
+        assertNull(map.replace(3, 3));
+        assertFalse(map.containsKey(3));
+        assertEquals(Integer.valueOf(2), map.replace(2, 4));
+        assertFalse(map.replace(2, 2, 5));
+        assertTrue(map.replace(2, 4, 5));
+        assertFalse(map.remove(2, 4));
+        assertTrue(map.remove(2, 5));
+        assertFalse(map.containsKey(2));
+        assertEquals(Integer.valueOf(2), cache.getIfPresent(1));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weightedSize());
+
+        assertEquals(4, removals.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(RemovalCause.REPLACED, removals.get(i).getCause());
+        }
+        assertEquals(RemovalCause.EXPLICIT, removals.get(3).getCause());
+        assertEquals(Integer.valueOf(5), removals.get(3).getValue());
+    }
+
+    public void test_scanResistance() throws Exception {
+        final TinyLfuCache<Integer, Integer> cache = cache(100, 0.01);
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.getIfPresent(i);
+            }
+            cache.cleanUp();
+        }
+        for (int i = 1000; i < 3000; i++) {
+            cache.put(i, i);
+        }
+        int hot = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.asMap().containsKey(i)) {
+                hot++;
+            }
+        }
+        assertTrue("hot entries left: " + hot, hot >= 45);
+        assertTrue(cache.weightedSize() <= 100);
+    }
+
+    public void test_lru() throws Exception {
+        final TinyLfuCache<Integer, Integer> cache = cache(10, 1.0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+        }
+        cache.getIfPresent(0);
+        cache.put(10, 10);
+        assertNotNull(cache.getIfPresent(0));
+        assertNull(cache.getIfPresent(1));
+        assertEquals(10, cache.size());
+        assertEquals(RemovalCause.SIZE, removals.get(0).getCause());
+        assertEquals(Integer.valueOf(1), removals.get(0).getKey());
+    }
+
+    public void test_setMaximumWeight() throws Exception {
+        final TinyLfuCache<Integer, Integer> cache = cache(100, 0.01);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(100, cache.weightedSize());
+        cache.setMaximumWeight(10);
+        assertEquals(10, cache.maximumWeight());
+        assertEquals(10, cache.weightedSize());
+        assertEquals(10, cache.size());
+        assertEquals(90, removals.size());
+    }
+
+    public void test_expireAfterAccess() throws Exception {
+        final TinyLfuCache<Integer, Integer> cache = cache(10, 0.01);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.setExpireAfterAccess(TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(10);
+        assertNull(cache.getIfPresent(1));
+        cache.cleanUp();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+        assertEquals(2, removals.size());
+        for (final RemovalNotification<Integer, Integer> removal : removals) {
+            assertEquals(RemovalCause.EXPIRED, removal.getCause());
+        }
+    }
+
+    public void test_frequencySketch() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency(1));
+        // the first access only goes to the doorkeeper
+        sketch.increment(1);
+        assertEquals(1, sketch.frequency(1));
+        for (int i = 0; i < 9; i++) {
+            sketch.increment(1);
+        }
+        assertEquals(10, sketch.frequency(1));
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(1);
+        }
+        // counters saturate at 15, plus the doorkeeper
+        assertEquals(16, sketch.frequency(1));
+    }
+
+    public void test_frequencySketchAging() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(1);
+        }
+        assertEquals(10, sketch.frequency(1));
+        // ten times the table size of other accesses halve the counters
+        for (int i = 2; sketch.frequency(1) >= 10 && i < 1000; i++) {
+            sketch.increment(i);
+        }
+        assertTrue(sketch.frequency(1) < 10);
+    }
+
+    private TinyLfuCache<Integer, Integer> cache(final long maximumWeight, final double windowRatio) {
+        return new TinyLfuCache<>(maximumWeight, windowRatio, (k, v) -> 1, removals::add, 0, maximumWeight);
+    }
+}
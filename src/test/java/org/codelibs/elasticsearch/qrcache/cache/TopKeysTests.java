@@ -0,0 +1,41 @@
+package org.codelibs.elasticsearch.qrcache.cache;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TopKeysTests extends TestCase {
+
+    public void test_top() throws Exception {
+        final TopKeys<Integer, String> topKeys = new TopKeys<>(64);
+        for (int i = 0; i < 1000; i++) {
+            topKeys.record(i % 100, 1, "key-" + (i % 100));
+            topKeys.record(1000 + i % 3, 2, "hot-" + (i % 3));
+        }
+        final List<TopKeys.Entry<Integer, String>> top = topKeys.top(3);
+        assertEquals(3, top.size());
+        for (final TopKeys.Entry<Integer, String> entry : top) {
+            assertTrue(entry.key >= 1000);
+            assertEquals("hot-" + (entry.key - 1000), entry.label);
+            assertTrue(entry.weight - entry.error <= 667 * 2);
+        }
+        assertTrue(topKeys.size() <= 64);
+    }
+
+    public void test_add() throws Exception {
+        final TopKeys<Integer, String> topKeys = new TopKeys<>(8);
+        topKeys.add(new TopKeys.Entry<>(1, "one", 5, 0, 0));
+        topKeys.record(1, 1, "other");
+        final List<TopKeys.Entry<Integer, String>> top = topKeys.top(10);
+        assertEquals(1, top.size());
+        assertEquals(6, top.get(0).weight);
+        assertEquals("one", top.get(0).label);
+    }
+
+    public void test_disabled() throws Exception {
+        final TopKeys<Integer, String> topKeys = new TopKeys<>(0);
+        topKeys.record(1, 1, "one");
+        assertEquals(0, topKeys.size());
+        assertTrue(topKeys.top(10).isEmpty());
+    }
+}
@@ -0,0 +1,130 @@
+package org.codelibs.elasticsearch.qrcache.index;
+
+import static java.util.Collections.emptyList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsRequest;
+import org.codelibs.elasticsearch.qrcache.action.InvalidateShardsResponse;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import junit.framework.TestCase;
+
+public class ShardRefreshWatcherTests extends TestCase {
+
+    private final ShardId logs0 = new ShardId(new Index("logs", "_na_"), 0);
+
+    private final ShardId logs1 = new ShardId(new Index("logs", "_na_"), 1);
+
+    private final ShardId logs2 = new ShardId(new Index("logs", "_na_"), 2);
+
+    private final BlockingQueue<Invalidation> invalidations = new LinkedBlockingQueue<>();
+
+    private ThreadPool threadPool;
+
+    private ShardRefreshWatcher watcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        threadPool = new ThreadPool(Settings.builder().put("node.name", "refresh-watcher").build());
+        watcher = new ShardRefreshWatcher(new InvalidationClient(threadPool), threadPool);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void test_onRefreshed() throws Exception {
+        watcher.onRefreshed(logs0);
+        final Invalidation invalidation = next();
+        assertEquals(Arrays.asList(logs0), invalidation.request.shardIds());
+        invalidation.respond();
+        assertNull(invalidations.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void test_batchesWhileInFlight() throws Exception {
+        watcher.onRefreshed(logs0);
+        final Invalidation first = next();
+        // refreshes during the request are sent together once it completes
+        watcher.onRefreshed(logs1);
+        watcher.onRefreshed(logs2);
+        watcher.onRefreshed(logs1);
+        assertNull(invalidations.poll(100, TimeUnit.MILLISECONDS));
+        first.respond();
+
+        final Invalidation second = next();
+        assertEquals(new HashSet<>(Arrays.asList(logs1, logs2)), new HashSet<>(second.request.shardIds()));
+        second.respond();
+        assertNull(invalidations.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void test_continuesAfterFailure() throws Exception {
+        watcher.onRefreshed(logs0);
+        final Invalidation first = next();
+        watcher.onRefreshed(logs1);
+        first.listener.onFailure(new IllegalStateException("no master"));
+
+        final Invalidation second = next();
+        assertEquals(Arrays.asList(logs1), second.request.shardIds());
+        second.respond();
+
+        watcher.onRefreshed(logs2);
+        assertEquals(Arrays.asList(logs2), next().request.shardIds());
+    }
+
+    private Invalidation next() throws InterruptedException {
+        final Invalidation invalidation = invalidations.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no invalidation sent", invalidation);
+        return invalidation;
+    }
+
+    private static class Invalidation {
+
+        final InvalidateShardsRequest request;
+
+        final ActionListener<InvalidateShardsResponse> listener;
+
+        Invalidation(final InvalidateShardsRequest request, final ActionListener<InvalidateShardsResponse> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        void respond() {
+            listener.onResponse(new InvalidateShardsResponse(ClusterName.DEFAULT, new ArrayList<>(), emptyList()));
+        }
+    }
+
+    private class InvalidationClient extends AbstractClient {
+
+        InvalidationClient(final ThreadPool threadPool) {
+            super(Settings.EMPTY, threadPool);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                final Action<Request, Response, RequestBuilder> action, final Request request, final ActionListener<Response> listener) {
+            invalidations.add(new Invalidation((InvalidateShardsRequest) request, (ActionListener<InvalidateShardsResponse>) listener));
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}